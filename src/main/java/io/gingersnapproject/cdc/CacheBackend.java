@@ -1,7 +1,10 @@
 package io.gingersnapproject.cdc;
 
+import java.util.BitSet;
+import java.util.List;
 import java.util.concurrent.CompletionStage;
 
+import org.apache.kafka.connect.data.Schema;
 import org.infinispan.commons.dataconversion.internal.Json;
 
 public interface CacheBackend {
@@ -9,6 +12,24 @@ public interface CacheBackend {
 
    CompletionStage<Void> put(Json json);
 
+   /**
+    * Applies a group of changes with as few round trips as possible.
+    * <p>A key changed more than once in the group keeps only its last change. There is no ordering between the
+    * operations of different keys.</p>
+    *
+    * @param changes: Values to write in or remove from the cache, in the order they changed.
+    * @param removes: The indexes of the changes removing the value, the other changes write it.
+    * @return A stage that completes when all the operations complete.
+    */
+   CompletionStage<Void> bulk(List<Json> changes, BitSet removes);
+
+   /**
+    * Notifies the schema of the captured rows changed, before writing any row with the new schema.
+    *
+    * @param row: The Kafka Connect schema of the row images.
+    */
+   default void schemaChanged(Schema row) { }
+
    void stop();
 
    void start();
@@ -0,0 +1,167 @@
+package io.gingersnapproject.cdc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import io.gingersnapproject.cdc.cache.CacheIdentifier;
+
+/**
+ * The state of a capture, kept next to its offsets in the member keeping them.
+ *
+ * <p>The epoch names the offsets of the capture. A new epoch starts without offsets, so the capture snapshots all
+ * the tables again. A member of a fan-out is marked as lagging before the offsets advance past the changes it queued,
+ * and unmarked once it caught up, so a capture starting again knows the members that missed changes. The tables
+ * captured are kept as well, so a capture starting with more tables snapshots only the added ones.</p>
+ */
+public final class CaptureState {
+   private static final String PREFIX = "___capture:";
+   private final OffsetBackend offsets;
+   private final String name;
+   // The caches marked as lagging.
+   private final Set<CacheIdentifier> lagging = ConcurrentHashMap.newKeySet();
+   private volatile int epoch;
+   private volatile Set<String> tables;
+
+   private CaptureState(OffsetBackend offsets, String name) {
+      this.offsets = offsets;
+      this.name = name;
+   }
+
+   /**
+    * Reads the state of a capture.
+    *
+    * @param name: Names the capture, unique among the captures keeping the offsets in the same member.
+    * @param caches: The caches the capture writes to, whose marks are read.
+    */
+   public static CompletionStage<CaptureState> load(OffsetBackend offsets, String name,
+                                                    Collection<CacheIdentifier> caches) {
+      CaptureState state = new CaptureState(offsets, name);
+      Map<ByteBuffer, CacheIdentifier> marks = new HashMap<>();
+      for (CacheIdentifier cache : caches) {
+         marks.put(state.markKey(cache), cache);
+      }
+      List<ByteBuffer> keys = new ArrayList<>(marks.keySet());
+      keys.add(state.epochKey());
+      keys.add(state.tablesKey());
+      return offsets.get(keys).thenApply(values -> {
+         ByteBuffer epoch = values.get(state.epochKey());
+         if (epoch != null) state.epoch = Integer.parseInt(decode(epoch));
+         ByteBuffer tables = values.get(state.tablesKey());
+         if (tables != null) {
+            state.tables = Stream.of(decode(tables).split(","))
+                  .filter(table -> !table.isEmpty())
+                  .collect(Collectors.toUnmodifiableSet());
+         }
+         marks.forEach((key, cache) -> {
+            ByteBuffer mark = values.get(key);
+            if (mark != null && Boolean.parseBoolean(decode(mark))) state.lagging.add(cache);
+         });
+         return state;
+      });
+   }
+
+   /**
+    * @return The name of the capture.
+    */
+   public String name() {
+      return name;
+   }
+
+   /**
+    * @return The epoch of the offsets, zero until the capture snapshots again.
+    */
+   public int epoch() {
+      return epoch;
+   }
+
+   /**
+    * @return true if the cache is marked as lagging.
+    */
+   public boolean lagging(CacheIdentifier cache) {
+      return lagging.contains(cache);
+   }
+
+   /**
+    * Marks or unmarks a cache as lagging.
+    *
+    * @return Completes once the mark is stored.
+    */
+   public CompletionStage<Void> lagging(CacheIdentifier cache, boolean lagging) {
+      if (lagging) {
+         this.lagging.add(cache);
+      } else {
+         this.lagging.remove(cache);
+      }
+      return set(Map.of(markKey(cache), encode(String.valueOf(lagging))));
+   }
+
+   /**
+    * @return The tables captured on the previous start, empty if the capture never stored them.
+    */
+   public Optional<Set<String>> tables() {
+      return Optional.ofNullable(tables);
+   }
+
+   /**
+    * Stores the tables captured.
+    *
+    * @return Completes once the tables are stored.
+    */
+   public CompletionStage<Void> tables(Set<String> tables) {
+      return set(Map.of(tablesKey(), encode(String.join(",", tables))))
+            .thenRun(() -> this.tables = Set.copyOf(tables));
+   }
+
+   /**
+    * Starts a new epoch, the capture snapshots all the tables again and no cache lags anymore.
+    *
+    * @return Completes once the new epoch is stored.
+    */
+   public CompletionStage<Void> snapshot() {
+      Map<ByteBuffer, ByteBuffer> values = new HashMap<>();
+      values.put(epochKey(), encode(String.valueOf(epoch + 1)));
+      for (CacheIdentifier cache : lagging) {
+         values.put(markKey(cache), encode(String.valueOf(false)));
+      }
+      return set(values).thenRun(() -> {
+         epoch++;
+         lagging.clear();
+      });
+   }
+
+   private CompletionStage<Void> set(Map<ByteBuffer, ByteBuffer> values) {
+      return offsets.set(values, (t, ignore) -> { });
+   }
+
+   // Never collides with the offsets, whose keys are JSON arrays.
+   private ByteBuffer epochKey() {
+      return encode(PREFIX + name + ":epoch");
+   }
+
+   private ByteBuffer tablesKey() {
+      return encode(PREFIX + name + ":tables");
+   }
+
+   private ByteBuffer markKey(CacheIdentifier cache) {
+      return encode(PREFIX + name + ":lagging:" + cache.rule() + "@" + cache.uri());
+   }
+
+   private static ByteBuffer encode(String value) {
+      return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+   }
+
+   private static String decode(ByteBuffer value) {
+      return StandardCharsets.UTF_8.decode(value.duplicate()).toString();
+   }
+}
@@ -0,0 +1,112 @@
+package io.gingersnapproject.cdc;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import io.gingersnapproject.cdc.configuration.Configuration;
+import io.gingersnapproject.cdc.configuration.Processing;
+import io.gingersnapproject.metrics.DBSyncerMetrics;
+
+/**
+ * The threads running the engines and processing their events.
+ * <p>Each engine runs a blocking loop polling the connector, occupying its thread for as long as the engine runs. The
+ * loops run in their own threads, one per engine, so adding rules or members never takes threads from processing
+ * the events. The processing pool converts and writes the events, and commits the offsets, for all the engines.
+ * The rules share the processing threads according to their weights, see {@link FairScheduler}.</p>
+ */
+@ApplicationScoped
+public class EngineExecutors {
+   static final String ENGINE_POOL = "engine";
+   static final String PROCESSING_POOL = "processing";
+
+   @Inject Configuration config;
+
+   @Inject DBSyncerMetrics metrics;
+
+   private ThreadPoolExecutor engines;
+   private ThreadPoolExecutor processing;
+   private FairScheduler scheduler;
+
+   EngineExecutors() { }
+
+   public EngineExecutors(Processing processing, DBSyncerMetrics metrics) {
+      this.metrics = metrics;
+      initialize(processing);
+   }
+
+   @PostConstruct
+   void initialize() {
+      initialize(config.processing());
+   }
+
+   private void initialize(Processing config) {
+      int engineThreads = config.engineThreads() > 0 ? config.engineThreads() : Integer.MAX_VALUE;
+      // Never queues, an engine waiting for a thread would never start. Idle threads are kept for engine restarts.
+      this.engines = new ThreadPoolExecutor(0, engineThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+            threadFactory("engine-loop"));
+
+      int processingThreads = config.processingThreads() > 0
+            ? config.processingThreads()
+            : Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+      this.processing = new ThreadPoolExecutor(processingThreads, processingThreads, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), threadFactory("engine-processing"));
+      this.scheduler = new FairScheduler(processing, processingThreads);
+
+      metrics.registerExecutor(ENGINE_POOL, engines);
+      metrics.registerExecutor(PROCESSING_POOL, this.processing);
+   }
+
+   @PreDestroy
+   void shutdown() {
+      engines.shutdown();
+      processing.shutdown();
+   }
+
+   /**
+    * Runs the engine loop in a thread of its own.
+    *
+    * @throws IOException if all the engine threads are taken.
+    */
+   void run(Runnable engine) throws IOException {
+      try {
+         engines.execute(engine);
+      } catch (RejectedExecutionException e) {
+         throw new IOException("No thread available for the engine, all " + engines.getMaximumPoolSize() + " are running", e);
+      }
+   }
+
+   /**
+    * @param name: The engine name, a rule or the multiplexed engine.
+    * @param weight: The share of the processing threads of the engine, relative to the other engines.
+    * @return The executor processing the events of the engines with the name, to {@link #release(String) release}
+    * once the engine shuts down.
+    */
+   Executor processing(String name, int weight) {
+      return scheduler.executor(name, weight);
+   }
+
+   void release(String name) {
+      scheduler.release(name);
+   }
+
+   private static ThreadFactory threadFactory(String prefix) {
+      AtomicInteger count = new AtomicInteger();
+      return runnable -> {
+         Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      };
+   }
+}
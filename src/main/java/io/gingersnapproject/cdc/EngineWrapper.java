@@ -3,64 +3,125 @@ package io.gingersnapproject.cdc;
 import static io.debezium.relational.HistorizedRelationalDatabaseConnectorConfig.SCHEMA_HISTORY;
 
 import java.io.IOException;
+import java.net.URI;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
 import java.util.regex.Pattern;
 
 import io.gingersnapproject.cdc.cache.CacheIdentifier;
 import io.gingersnapproject.cdc.cache.CacheService;
 import io.gingersnapproject.cdc.chain.EventProcessingChain;
 import io.gingersnapproject.cdc.chain.EventProcessingChainFactory;
+import io.gingersnapproject.cdc.chain.EventProjection;
 import io.gingersnapproject.cdc.configuration.Configuration;
-import io.gingersnapproject.cdc.configuration.Connector;
 import io.gingersnapproject.cdc.configuration.Database;
 import io.gingersnapproject.cdc.configuration.Rule;
 import io.gingersnapproject.cdc.connector.DatabaseProvider;
 import io.gingersnapproject.cdc.consumer.BatchConsumer;
+import io.gingersnapproject.cdc.consumer.InFlightWrites;
+import io.gingersnapproject.cdc.consumer.RecordFilter;
+import io.gingersnapproject.cdc.consumer.Routes;
+import io.gingersnapproject.cdc.deadletter.DeadLetters;
 import io.gingersnapproject.cdc.event.NotificationManager;
 import io.gingersnapproject.cdc.remote.RemoteOffsetStore;
 import io.gingersnapproject.cdc.remote.RemoteSchemaHistory;
+import io.gingersnapproject.cdc.util.AggregateCompletionStage;
+import io.gingersnapproject.cdc.util.CompletionStages;
+import io.gingersnapproject.metrics.DBSyncerMetrics;
 
 import io.debezium.embedded.Connect;
 import io.debezium.engine.ChangeEvent;
 import io.debezium.engine.DebeziumEngine;
 import org.apache.kafka.connect.source.SourceRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class EngineWrapper {
+   private static final Logger log = LoggerFactory.getLogger(EngineWrapper.class);
 
-   private static final ExecutorService executor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2), runnable ->
-         new Thread(runnable, "engine"));
    private static final Pattern PG_SLOT_NAME_PATTERN = Pattern.compile("[^a-zA-Z0-9_]");
    private final CacheIdentifier identifier;
    private final CacheService cacheService;
    private final Configuration config;
-   private final Rule rule;
+   // The rules whose changes the engine captures, by name.
+   private final Map<String, Rule> rules;
+   // The members the engine writes to, sorted. Changes as the members join and leave a fan-out.
+   private volatile List<URI> members;
+   // Names the offsets and schema history of the capture.
+   private final String capture;
+   // The backend of each rule writing to all the members, with fan-out.
+   private volatile Map<String, CacheBackend> fanOuts;
    private final Properties properties;
    private final NotificationManager eventing;
+   private final DBSyncerMetrics metrics;
+   private final InFlightWrites writes;
+   private final DeadLetters deadLetters;
+   private final EngineExecutors executors;
+   // Acquired on the first start, kept across the restarts until the shutdown.
+   private Executor processing;
    private volatile DebeziumEngine<ChangeEvent<SourceRecord, SourceRecord>> engine;
    private volatile boolean stopped = false;
 
-   private EngineWrapper(CacheIdentifier identifier, Configuration config, Rule rule, Properties properties, CacheService cacheService,
-                         NotificationManager eventing) {
+   /**
+    * Creates a single engine capturing the tables of all the rules, writing each change to the caches of its rules in
+    * all the members.
+    * <p>The offsets are kept per engine, in the member identified. The rules changing keep the offsets: the engine
+    * captures the new tables from where it stopped, and only the added tables are snapshotted. With fan-out, the
+    * members join and leave the running capture.</p>
+    *
+    * @param identifier: Identifies the engine and the member keeping the offsets. The rule name is only a name for
+    *                  the engine.
+    * @param rules: The rules by name.
+    * @param members: The members to write to.
+    */
+   public EngineWrapper(CacheIdentifier identifier, Configuration config, Map<String, Rule> rules, List<URI> members,
+                        CacheService cacheService, NotificationManager eventing,
+                        InFlightWrites globalWrites, DBSyncerMetrics metrics, DeadLetters deadLetters,
+                        EngineExecutors executors) {
       this.identifier = identifier;
       this.cacheService = cacheService;
       this.config = config;
-      this.rule = rule;
+      this.rules = new TreeMap<>(rules);
+      this.members = members.stream().sorted().toList();
+      this.capture = identifier.rule();
       this.eventing = eventing;
-      this.properties = properties;
+      this.properties = defaultProperties(identifier, config, this.rules.values(), capture);
+      this.metrics = metrics;
+      // Outlives the engine restarts, writes from a stopped engine might still be in-flight.
+      this.writes = new InFlightWrites(this.rules.values().stream()
+            .map(Rule::maxInFlight)
+            .filter(OptionalInt::isPresent)
+            .mapToInt(OptionalInt::getAsInt)
+            .max()
+            .orElse(config.processing().maxInFlightPerEngine()), globalWrites, metrics);
+      this.deadLetters = deadLetters;
+      this.executors = executors;
    }
 
-   public EngineWrapper(CacheIdentifier identifier, Configuration config, Rule rule, CacheService cacheService, NotificationManager eventing) {
-      this(identifier, config, rule, defaultProperties(identifier, config, rule), cacheService, eventing);
+   public EngineWrapper(CacheIdentifier identifier, Configuration config, Rule rule, CacheService cacheService, NotificationManager eventing,
+                        InFlightWrites globalWrites, DBSyncerMetrics metrics, DeadLetters deadLetters,
+                        EngineExecutors executors) {
+      this(identifier, config, Map.of(identifier.rule(), rule), List.of(identifier.uri()),
+            cacheService, eventing, globalWrites, metrics, deadLetters, executors);
    }
 
-   private static Properties defaultProperties(CacheIdentifier identifier, Configuration config, Rule rule) {
-      String name = identifier.rule();
+   private static Properties defaultProperties(CacheIdentifier identifier, Configuration config, Collection<Rule> rules,
+                                               String name) {
       Properties props = new Properties();
       props.setProperty("name", "engine");
 
-      Connector connector = rule.connector();
       // Required property
       props.setProperty("topic.prefix", identifier.toString());
 
@@ -81,6 +142,13 @@ public class EngineWrapper {
       props.setProperty("tombstones.on.delete", "false"); // Emit single event on delete. Doc says it should be true when using Kafka.
       props.setProperty("converter.schemas.enable", "true"); // Include schema in events, we use to retrieve the key.
       props.setProperty("tasks.max", "1"); // If updated, SQL Server metrics might need update.
+      if (config.processing().heartbeatInterval() > 0) {
+         // Idle connectors still deliver batches, which commit the changes written since the previous batch.
+         props.setProperty("heartbeat.interval.ms", String.valueOf(config.processing().heartbeatInterval()));
+      }
+      if (config.processing().transactions()) {
+         props.setProperty("provide.transaction.metadata", "true"); // Emits the BEGIN and END of each transaction.
+      }
 
       String uri = identifier.uri().toString();
       props.setProperty(RemoteOffsetStore.URI_CACHE, uri);
@@ -92,18 +160,46 @@ public class EngineWrapper {
       props.setProperty(SCHEMA_HISTORY.name(), RemoteSchemaHistory.class.getCanonicalName());
 
       DatabaseProvider provider = database.type();
-      props.putAll(provider.databaseProperties(connector, database));
+      props.putAll(provider.databaseProperties(rules.stream().map(Rule::connector).toList(), database));
 
       return props;
    }
 
    public void start() throws IOException {
-      CacheBackend c = cacheService.start(identifier, rule);
-      EventProcessingChain chain = EventProcessingChainFactory.create(rule, c);
+      CaptureState state = state();
+      boolean fanOut = config.processing().fanOut();
+      List<CacheBackend> backends = new ArrayList<>(rules.size());
+      Map<String, CacheBackend> fanOuts = new HashMap<>();
+      List<Routes.Route> routes = new ArrayList<>(rules.size());
+      for (Map.Entry<String, Rule> entry : rules.entrySet()) {
+         CacheIdentifier target = CacheIdentifier.of(entry.getKey(), identifier.uri());
+         Rule rule = entry.getValue();
+         List<CacheIdentifier> targets = targets(entry.getKey());
+         // With fan-out, each change is encoded once and written to all the members, even to a single one as others
+         // might join.
+         CacheBackend c = fanOut
+               ? cacheService.startAll(targets, rule, state)
+               : cacheService.start(targets.get(0), rule);
+         backends.add(c);
+         if (fanOut) fanOuts.put(entry.getKey(), c);
+         EventProcessingChain chain = EventProcessingChainFactory.create(rule, c,
+               () -> metrics.recordSkippedWrite(target.toString()));
+         routes.add(new Routes.Route(entry.getKey(), new RecordFilter(rule),
+               new EventProjection(rule, row -> c.schemaChanged(row)), chain, rule.writeBehind()));
+      }
+
+      // The rules share the engine, the most demanding rule sets the weight.
+      int weight = rules.values().stream().mapToInt(Rule::weight).max().orElse(1);
+      if (processing == null) processing = executors.processing(identifier.rule(), weight);
+      Properties props = new Properties();
+      props.putAll(properties);
+      // The offsets are keyed by the engine name, a new epoch starts without offsets and snapshots all the tables.
+      if (state.epoch() > 0) props.setProperty("name", "engine-" + state.epoch());
       this.engine = DebeziumEngine.create(Connect.class)
-            .using(properties)
+            .using(props)
             .using(this.getClass().getClassLoader())
-            .notifying(new BatchConsumer(this, chain, executor))
+            .notifying(new BatchConsumer(this, new Routes(routes), processing,
+                  config.processing(), writes, deadLetters))
             .using(new DebeziumEngine.ConnectorCallback() {
                @Override
                public void taskStarted() {
@@ -113,17 +209,138 @@ public class EngineWrapper {
                @Override
                public void connectorStopped() {
                   eventing.connectorStopped(identifier);
-                  cacheService.stop(identifier);
+                  // A fan-out stops catching up its lagging members, they stay marked.
+                  backends.forEach(CacheBackend::stop);
+                  for (String rule : rules.keySet()) {
+                     targets(rule).forEach(cacheService::stop);
+                  }
                }
             })
             .using((success, message, error) -> {
                if (error != null) eventing.connectorFailed(identifier, error);
             })
             .build();
-      executor.submit(engine);
+      metrics.registerInFlightWrites(identifier.toString(), writes::inFlight);
+      this.fanOuts = fanOuts;
+      executors.run(engine);
       stopped = false;
    }
 
+   /**
+    * Writes to the given members from now on, without restarting the capture. A member joining copies the caches of
+    * another member up to date, before the changes are written to it.
+    *
+    * <p>Only a fan-out with a catch-up budget changes the members while capturing. Otherwise, the members joining are
+    * marked as lagging, so the capture replacing this one snapshots the tables for them.</p>
+    *
+    * @return true if the engine writes to the given members, false if the capture must be replaced.
+    */
+   public boolean members(List<URI> members) throws IOException {
+      List<URI> sorted = members.stream().sorted().toList();
+      // The offsets are kept in the member identified, another member starts another capture.
+      if (!config.processing().fanOut() || !sorted.contains(identifier.uri())) return false;
+
+      List<URI> joined = sorted.stream().filter(member -> !this.members.contains(member)).toList();
+      List<URI> left = this.members.stream().filter(member -> !sorted.contains(member)).toList();
+      // Marked before joining, a capture replacing this one after a failure still re-seeds them.
+      mark(joined);
+      if (config.processing().catchUpKeys() <= 0) return false;
+
+      this.members = sorted;
+      Map<String, CacheBackend> running = fanOuts;
+      if (running == null) return true;
+      for (String rule : rules.keySet()) {
+         CacheBackend fanOut = running.get(rule);
+         for (URI member : left) {
+            log.info("Member {} left engine {}", member, identifier);
+            cacheService.leave(fanOut, CacheIdentifier.of(rule, member));
+         }
+         for (URI member : joined) {
+            log.info("Member {} joined engine {}, copying the caches of another member", member, identifier);
+            cacheService.join(fanOut, CacheIdentifier.of(rule, member), rules.get(rule));
+         }
+      }
+      return true;
+   }
+
+   // Marks the members as lagging, the capture starting next re-seeds or snapshots them.
+   private void mark(List<URI> joined) throws IOException {
+      if (joined.isEmpty()) return;
+      List<CacheIdentifier> caches = rules.keySet().stream()
+            .flatMap(rule -> joined.stream().map(member -> CacheIdentifier.of(rule, member)))
+            .toList();
+      try {
+         CaptureState state = CaptureState.load(cacheService.offsetBackend(identifier.uri()), capture, caches)
+               .toCompletableFuture().join();
+         AggregateCompletionStage<Void> marks = CompletionStages.aggregateCompletionStage();
+         caches.forEach(cache -> marks.dependsOn(state.lagging(cache, true)));
+         marks.freeze().toCompletableFuture().join();
+      } catch (CompletionException e) {
+         throw new IOException("Failed marking the members " + joined + " of capture " + capture, e.getCause());
+      }
+   }
+
+   private CaptureState state() throws IOException {
+      List<CacheIdentifier> caches = rules.keySet().stream().flatMap(rule -> targets(rule).stream()).toList();
+      try {
+         CaptureState state = CaptureState.load(cacheService.offsetBackend(identifier.uri()), capture, caches)
+               .toCompletableFuture().join();
+         if (missedChanges(state)) {
+            log.warn("Members of engine {} missed changes no other member has, snapshotting the tables again",
+                  identifier);
+            state.snapshot().toCompletableFuture().join();
+         } else {
+            snapshotAdded(state);
+         }
+         Set<String> tables = tables();
+         if (!state.tables().equals(Optional.of(tables))) state.tables(tables).toCompletableFuture().join();
+         return state;
+      } catch (CompletionException e) {
+         throw new IOException("Failed reading the state of capture " + capture, e.getCause());
+      }
+   }
+
+   // The offsets are kept once the rules capture more tables, the engine would only stream the changes of the added.
+   private void snapshotAdded(CaptureState state) throws IOException {
+      // Without the tables of the previous start, the capture either never started or already snapshotted them.
+      Set<String> added = state.tables()
+            .map(known -> tables().stream().filter(table -> !known.contains(table)).collect(Collectors.toSet()))
+            .orElse(Set.of());
+      if (added.isEmpty()) return;
+
+      Database database = config.database();
+      if (database.signalTable().isEmpty()) {
+         log.warn("Engine {} captures the new tables {} without a signal table, snapshotting all the tables again",
+               identifier, added);
+         state.snapshot().toCompletableFuture().join();
+         return;
+      }
+
+      log.info("Engine {} captures the new tables {}, signaling an incremental snapshot", identifier, added);
+      try {
+         database.type().incrementalSnapshot(added, database);
+      } catch (SQLException e) {
+         throw new IOException("Failed signaling the snapshot of tables " + added, e);
+      }
+   }
+
+   private Set<String> tables() {
+      return rules.values().stream()
+            .map(rule -> rule.connector().schema() + "." + rule.connector().table())
+            .collect(Collectors.toSet());
+   }
+
+   // A lagging member copies the caches of another member up to date, only a snapshot restores the others.
+   private boolean missedChanges(CaptureState state) {
+      boolean catchUp = config.processing().catchUpKeys() > 0;
+      for (String rule : rules.keySet()) {
+         List<CacheIdentifier> targets = targets(rule);
+         long lagging = targets.stream().filter(state::lagging).count();
+         if (lagging == targets.size() || (lagging > 0 && !catchUp)) return true;
+      }
+      return false;
+   }
+
    public void stop() throws IOException {
       if (!stopped) {
          stopped = true;
@@ -132,6 +349,20 @@ public class EngineWrapper {
       }
    }
 
+   /**
+    * Stops the engine for good, releasing the processing queue shared with the engines of the same name.
+    */
+   public void shutdown() throws IOException {
+      try {
+         if (engine != null) stop();
+      } finally {
+         if (processing != null) {
+            executors.release(identifier.rule());
+            processing = null;
+         }
+      }
+   }
+
    public void notifyError(Throwable t) {
       eventing.connectorFailed(identifier, t);
    }
@@ -140,6 +371,38 @@ public class EngineWrapper {
       return identifier.rule();
    }
 
+   /**
+    * @return The rules whose changes the engine captures, by name.
+    */
+   public Map<String, Rule> rules() {
+      return rules;
+   }
+
+   /**
+    * @return The members the engine writes to, sorted.
+    */
+   public List<URI> members() {
+      return members;
+   }
+
+   /**
+    * @return The name of the capture, naming its state and offsets.
+    */
+   public String capture() {
+      return capture;
+   }
+
+   /**
+    * @return true if the engine writes to the cache identified, either its own or of one of its rules.
+    */
+   public boolean serves(CacheIdentifier cache) {
+      return identifier.equals(cache) || (members.contains(cache.uri()) && rules.containsKey(cache.rule()));
+   }
+
+   private List<CacheIdentifier> targets(String rule) {
+      return members.stream().map(member -> CacheIdentifier.of(rule, member)).toList();
+   }
+
    private static String getValidSlotName(CacheIdentifier identifier) {
       String id = identifier.toString();
       return PG_SLOT_NAME_PATTERN.matcher(id).replaceAll("_").substring(0, Math.min(id.length(), 63));
@@ -0,0 +1,132 @@
+package io.gingersnapproject.cdc;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Shares the processing threads between the rules with deficit round-robin.
+ * <p>Each rule queues its tasks separately, and the scheduler hands at most one task per thread to the pool. The rules
+ * with queued tasks take turns, and each turn runs as many tasks as the rule's weight. A rule loading a large
+ * snapshot queues behind its own tasks only, while the other rules keep their share of the threads.</p>
+ *
+ * <p>Every task counts the same. The processing tasks, like a lane drain, are bounded by the lane capacity, so the
+ * count approximates the work.</p>
+ */
+final class FairScheduler {
+   private final Executor pool;
+   private final int threads;
+   private final Map<String, RuleQueue> queues = new ConcurrentHashMap<>();
+   // The rules with queued tasks, in turn order. Guarded by this.
+   private final ArrayDeque<RuleQueue> active = new ArrayDeque<>();
+   // Guarded by this.
+   private int running;
+
+   /**
+    * @param pool: Runs the tasks.
+    * @param threads: The number of threads in the pool.
+    */
+   FairScheduler(Executor pool, int threads) {
+      this.pool = pool;
+      this.threads = threads;
+   }
+
+   /**
+    * Returns the executor queueing the tasks of the engine, which must {@link #release(String) release} it once
+    * shut down. The engines with the same name, like the engines of all the members of a rule, share it.
+    *
+    * @param name: The engine name.
+    * @param weight: The number of tasks the engine runs on each turn.
+    */
+   Executor executor(String name, int weight) {
+      RuleQueue queue = queues.compute(name, (ignore, current) -> {
+         RuleQueue q = current != null ? current : new RuleQueue();
+         q.references++;
+         return q;
+      });
+      queue.weight = Math.max(weight, 1);
+      return queue;
+   }
+
+   /**
+    * Forgets the queue once no engine with the name uses it. The tasks queued still run.
+    *
+    * @param name: The engine name the executor was returned for.
+    */
+   void release(String name) {
+      queues.computeIfPresent(name, (ignore, queue) -> --queue.references == 0 ? null : queue);
+   }
+
+   // Visible for testing.
+   int queues() {
+      return queues.size();
+   }
+
+   private void dispatch() {
+      while (true) {
+         Runnable task;
+         synchronized (this) {
+            if (running >= threads || (task = next()) == null) return;
+            running++;
+         }
+
+         try {
+            pool.execute(() -> {
+               try {
+                  task.run();
+               } finally {
+                  done();
+               }
+            });
+         } catch (Throwable t) {
+            done();
+            throw t;
+         }
+      }
+   }
+
+   private void done() {
+      synchronized (this) {
+         running--;
+      }
+      dispatch();
+   }
+
+   // Guarded by this.
+   private Runnable next() {
+      RuleQueue queue = active.peekFirst();
+      if (queue == null) return null;
+
+      if (queue.deficit == 0) queue.deficit = queue.weight;
+      Runnable task = queue.tasks.poll();
+      queue.deficit--;
+
+      if (queue.tasks.isEmpty()) {
+         // An idle rule does not accumulate turns.
+         queue.deficit = 0;
+         active.pollFirst();
+      } else if (queue.deficit == 0) {
+         active.addLast(active.pollFirst());
+      }
+      return task;
+   }
+
+   private final class RuleQueue implements Executor {
+      // Guarded by the scheduler.
+      private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+      private int deficit;
+      private volatile int weight = 1;
+      // The engines using the queue, guarded by the map of queues.
+      private int references;
+
+      @Override
+      public void execute(Runnable task) {
+         synchronized (FairScheduler.this) {
+            if (tasks.isEmpty()) active.addLast(this);
+            tasks.add(task);
+         }
+         dispatch();
+      }
+   }
+}
@@ -2,6 +2,8 @@ package io.gingersnapproject.cdc;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
@@ -20,10 +22,13 @@ import io.gingersnapproject.cdc.cache.CacheIdentifier;
 import io.gingersnapproject.cdc.cache.CacheService;
 import io.gingersnapproject.cdc.configuration.Configuration;
 import io.gingersnapproject.cdc.configuration.Rule;
+import io.gingersnapproject.cdc.consumer.InFlightWrites;
+import io.gingersnapproject.cdc.deadletter.DeadLetters;
 import io.gingersnapproject.cdc.event.Events;
 import io.gingersnapproject.cdc.event.NotificationManager;
 import io.gingersnapproject.cdc.util.AggregateCompletionStage;
 import io.gingersnapproject.cdc.util.CompletionStages;
+import io.gingersnapproject.metrics.DBSyncerMetrics;
 
 import io.quarkus.runtime.ShutdownEvent;
 import io.quarkus.runtime.StartupEvent;
@@ -34,6 +39,10 @@ import org.slf4j.LoggerFactory;
 @ApplicationScoped
 public class ManagedEngine implements DynamicRuleManagement {
    private static final Logger log = LoggerFactory.getLogger(ManagedEngine.class);
+   // Rules never use the names of the internal caches, nor of the engines.
+   static final String RESERVED_PREFIX = "___";
+   // Names the engine capturing all the rules, when multiplexing.
+   static final String MULTIPLEXED = RESERVED_PREFIX + "multiplexed";
    private static final ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(r ->
          new Thread(r, "scheduled-engine-error-handler"));
    private final Map<CacheIdentifier, StartStopEngine> engines = new ConcurrentHashMap<>();
@@ -46,9 +55,19 @@ public class ManagedEngine implements DynamicRuleManagement {
 
    @Inject NotificationManager eventing;
 
+   @Inject DBSyncerMetrics metrics;
+
+   @Inject DeadLetters deadLetters;
+
+   @Inject EngineExecutors executors;
+
+   private InFlightWrites globalWrites;
+
    public void start(@Observes StartupEvent ignore) {
       log.info("Starting service");
-      knownRules.putAll(config.rules());
+      config.rules().forEach((name, rule) -> {
+         if (valid(name)) knownRules.put(name, rule);
+      });
       addRuleWithKnownMembers();
    }
 
@@ -72,7 +91,11 @@ public class ManagedEngine implements DynamicRuleManagement {
    void memberLeft(@Observes Events.CacheMemberLeaveEvent ev) {
       log.info("Member left {}", ev);
       if (!knownMembers.remove(ev.uri())) return;
-      remove(identifier ->  identifier.uri().equals(ev.uri()));
+      if (reconciled()) {
+         reconcileKnownMembers();
+      } else {
+         remove(identifier ->  identifier.uri().equals(ev.uri()));
+      }
    }
 
    void engineFailed(@Observes Events.ConnectorFailedEvent ev) {
@@ -80,22 +103,48 @@ public class ManagedEngine implements DynamicRuleManagement {
    }
 
    void backendFailed(@Observes Events.BackendFailedEvent ev) {
+      // A member of a fan-out catches up on its own, the engine keeps writing to the other members.
+      if (catchesUp(ev.identifier())) return;
       engineError(ev.identifier());
    }
 
+   void catchUpOverflow(@Observes Events.CatchUpOverflowEvent ev) {
+      // The engine starting again finds the member lagging, without another member to copy from, and snapshots.
+      for (Map.Entry<CacheIdentifier, StartStopEngine> entry : engines.entrySet()) {
+         EngineWrapper engine = entry.getValue().engine;
+         // Only the capture reporting restarts, another engine might write to the same cache.
+         if (engine.capture().equals(ev.capture()) && engine.serves(ev.identifier())) {
+            log.warn("Member {} missed changes no other member has, snapshotting again for engine {}",
+                  ev.identifier(), entry.getKey());
+            engineError(entry.getKey());
+         }
+      }
+   }
+
+   private boolean catchesUp(CacheIdentifier identifier) {
+      if (!config.processing().fanOut() || config.processing().catchUpKeys() <= 0) return false;
+      return engines.values().stream()
+            .anyMatch(sse -> sse.engine.members().size() > 1 && sse.engine.serves(identifier));
+   }
+
    private void engineError(CacheIdentifier identifier) {
       StartStopEngine sse = engines.get(identifier);
+      // The backend of a rule in a member fails, but the engine captures more rules or members.
+      if (sse == null && reconciled()) {
+         sse = engines.values().stream().filter(e -> e.engine.serves(identifier)).findFirst().orElse(null);
+      }
       // Try to mark stop pending, only first caller should submit task
       if (sse == null || !sse.attemptMarkStopping()) {
          return;
       }
       // Have to submit on a different thread to not block the debezium poll loop
+      StartStopEngine failed = sse;
       scheduledExecutorService.submit(() -> {
-         stopEngine(sse, sse.engine.getName());
+         stopEngine(failed, failed.engine.getName());
          log.info("Scheduling retry for engine {}", identifier);
 
          // Executor has a single thread, do not join the completable.
-         retryEngineStart(identifier, sse);
+         retryEngineStart(identifier, failed);
       });
    }
 
@@ -120,18 +169,33 @@ public class ManagedEngine implements DynamicRuleManagement {
 
    @Override
    public void addRule(String name, Rule rule) {
+      if (!valid(name)) return;
       knownRules.put(name, rule);
       addRuleWithKnownMembers();
    }
 
+   private static boolean valid(String rule) {
+      if (rule.startsWith(RESERVED_PREFIX)) {
+         log.error("Ignoring rule {}, names starting with {} are reserved", rule, RESERVED_PREFIX);
+         return false;
+      }
+      return true;
+   }
+
    private void addRuleWithKnownMembers() {
+      if (reconciled()) {
+         reconcileKnownMembers();
+         return;
+      }
+
       AggregateCompletionStage<Void> stage = CompletionStages.aggregateCompletionStage();
       for (Map.Entry<String, Rule> rule : knownRules.entrySet()) {
          for (URI memberURI : knownMembers) {
             var identifier = CacheIdentifier.of(rule.getKey(), memberURI);
             engines.computeIfAbsent(identifier, ignore -> {
                log.info("Creating new engine for {}", identifier);
-               var sse = new StartStopEngine(new EngineWrapper(identifier, config, rule.getValue(), cacheService, eventing));
+               var sse = new StartStopEngine(new EngineWrapper(identifier, config, rule.getValue(), cacheService, eventing,
+                     globalWrites(), metrics, deadLetters, executors));
                stage.dependsOn(startEngine(identifier, sse));
                return sse;
             });
@@ -139,6 +203,90 @@ public class ManagedEngine implements DynamicRuleManagement {
       }
    }
 
+   /**
+    * Keeps the engines capturing more than a rule or writing to more than a member. Once the rules of an engine
+    * change, the engine is replaced by one capturing the new rules from the same offsets. The members join and leave a
+    * running fan-out, unless the engine cannot change its members.
+    */
+   private synchronized void reconcileKnownMembers() {
+      Map<CacheIdentifier, Capture> desired = desiredEngines();
+      for (var it = engines.entrySet().iterator(); it.hasNext();) {
+         var entry = it.next();
+         EngineWrapper engine = entry.getValue().engine;
+         Capture capture = desired.get(entry.getKey());
+         if (capture != null && capture.rules().equals(engine.rules())
+               && (capture.members().equals(engine.members()) || members(entry.getValue(), capture.members()))) {
+            desired.remove(entry.getKey());
+            continue;
+         }
+
+         log.info("Rules or members changed, removing engine for {}", entry.getKey());
+         it.remove();
+         shutdownEngine(entry.getValue(), engine.getName());
+      }
+
+      for (Map.Entry<CacheIdentifier, Capture> entry : desired.entrySet()) {
+         var identifier = entry.getKey();
+         var capture = entry.getValue();
+         log.info("Creating new engine for {} with rules {} and members {}", identifier, capture.rules().keySet(),
+               capture.members());
+         var sse = new StartStopEngine(new EngineWrapper(identifier, config, capture.rules(), capture.members(),
+               cacheService, eventing, globalWrites(), metrics, deadLetters, executors));
+         engines.put(identifier, sse);
+         startEngine(identifier, sse);
+      }
+   }
+
+   private static boolean members(StartStopEngine sse, List<URI> members) {
+      try {
+         return sse.members(members);
+      } catch (IOException e) {
+         log.error("Failed changing the members of engine {}, replacing it", sse.engine.getName(), e);
+         return false;
+      }
+   }
+
+   private Map<CacheIdentifier, Capture> desiredEngines() {
+      Map<CacheIdentifier, Capture> desired = new HashMap<>();
+      Map<String, Rule> rules = Map.copyOf(knownRules);
+      List<URI> members = knownMembers.stream().sorted().toList();
+      if (rules.isEmpty() || members.isEmpty()) return desired;
+
+      boolean multiplex = config.processing().multiplex();
+      if (config.processing().fanOut()) {
+         // A single capture for all the members, a member keeps the offsets for as long as it stays.
+         URI home = engines.keySet().stream()
+               .map(CacheIdentifier::uri)
+               .filter(members::contains)
+               .findFirst()
+               .orElse(members.get(0));
+         if (multiplex) {
+            desired.put(CacheIdentifier.of(MULTIPLEXED, home), new Capture(rules, members));
+         } else {
+            rules.forEach((name, rule) ->
+                  desired.put(CacheIdentifier.of(name, home), new Capture(Map.of(name, rule), members)));
+         }
+      } else {
+         for (URI member : members) {
+            desired.put(CacheIdentifier.of(MULTIPLEXED, member), new Capture(rules, List.of(member)));
+         }
+      }
+      return desired;
+   }
+
+   private boolean reconciled() {
+      return config.processing().multiplex() || config.processing().fanOut();
+   }
+
+   // Rules might be added before the startup event reaches this bean.
+   private synchronized InFlightWrites globalWrites() {
+      if (globalWrites == null) {
+         globalWrites = new InFlightWrites(config.processing().maxInFlight(), metrics);
+         metrics.registerGlobalInFlightWrites(globalWrites::inFlight);
+      }
+      return globalWrites;
+   }
+
    private CompletionStage<Void> startEngine(CacheIdentifier identifier, StartStopEngine sse) {
       try {
          sse.start();
@@ -176,7 +324,11 @@ public class ManagedEngine implements DynamicRuleManagement {
    @Override
    public void removeRule(String name) {
       if (knownRules.remove(name) == null) return;
-      remove(identifier -> identifier.rule().equals(name));
+      if (reconciled()) {
+         reconcileKnownMembers();
+      } else {
+         remove(identifier -> identifier.rule().equals(name));
+      }
    }
 
    private void remove(Predicate<CacheIdentifier> predicate) {
@@ -191,6 +343,11 @@ public class ManagedEngine implements DynamicRuleManagement {
       }
    }
 
+   /**
+    * The rules an engine captures and the members it writes to.
+    */
+   private record Capture(Map<String, Rule> rules, List<URI> members) { }
+
    // Accessible during tests.
    enum Status {
       SHUTDOWN,
@@ -225,6 +382,10 @@ public class ManagedEngine implements DynamicRuleManagement {
          }
       }
 
+      public synchronized boolean members(List<URI> members) throws IOException {
+         return status != Status.SHUTDOWN && engine.members(members);
+      }
+
       public synchronized boolean attemptMarkStopping() {
          if (status == Status.RUNNING) {
             status = Status.STOPPING;
@@ -251,13 +412,12 @@ public class ManagedEngine implements DynamicRuleManagement {
          switch (status) {
             case SHUTDOWN:
                throw new IllegalArgumentException("Engine " + engine.getName() + " was already shutdown");
-            case RUNNING:
-               engine.stop();
             default:
                if (task != null) {
                   task.close();
                   task = null;
                }
+               engine.shutdown();
                status = Status.SHUTDOWN;
          }
       }
@@ -2,8 +2,10 @@ package io.gingersnapproject.cdc.cache;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.List;
 
 import io.gingersnapproject.cdc.CacheBackend;
+import io.gingersnapproject.cdc.CaptureState;
 import io.gingersnapproject.cdc.OffsetBackend;
 import io.gingersnapproject.cdc.SchemaBackend;
 import io.gingersnapproject.cdc.configuration.Rule;
@@ -14,6 +16,25 @@ public interface CacheService {
 
    CacheBackend start(CacheIdentifier identifier, Rule rule) throws IOException;
 
+   /**
+    * Starts the backends of a rule in many members, returning a single backend writing each change to all of them.
+    *
+    * @param identifiers: The rule in each member.
+    * @param state: The state of the capture writing, marking the members lagging.
+    */
+   CacheBackend startAll(List<CacheIdentifier> identifiers, Rule rule, CaptureState state) throws IOException;
+
+   /**
+    * Starts the backend of a rule in a member joining a backend started with {@link #startAll}. The member copies the
+    * caches of another member, before the changes are written to it.
+    */
+   void join(CacheBackend backend, CacheIdentifier identifier, Rule rule) throws IOException;
+
+   /**
+    * Removes a member from a backend started with {@link #startAll}, stopping the backend of the rule in the member.
+    */
+   void leave(CacheBackend backend, CacheIdentifier identifier);
+
    OffsetBackend offsetBackend(URI managerURI);
 
    SchemaBackend schemaBackend(URI managerURI);
@@ -0,0 +1,565 @@
+package io.gingersnapproject.cdc.cache.hotrod;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import io.gingersnapproject.cdc.CacheBackend;
+import io.gingersnapproject.cdc.CaptureState;
+import io.gingersnapproject.cdc.cache.CacheIdentifier;
+import io.gingersnapproject.cdc.util.AggregateCompletionStage;
+import io.gingersnapproject.cdc.util.CompletionStages;
+
+import org.apache.kafka.connect.data.Schema;
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.infinispan.commons.util.concurrent.CompletableFutures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the changes of a rule to the caches of all the members, encoding each change once.
+ *
+ * <p>Each member has a writer with its own writes in-flight. The writes to a member do not wait for the other
+ * members. A change completes once every member acknowledged it, so the engine only commits the source offset of the
+ * changes all the members applied.</p>
+ *
+ * <p>The members of a rule share the translators configuration, the first member encodes the changes for all of
+ * them.</p>
+ *
+ * <p>The members join and leave while the capture runs. A member joining copies the caches of another member up to
+ * date, as a lagging member re-seeds, before the changes are written to it.</p>
+ *
+ * <p>With a catch-up budget and other members, a slow or failing member does not stall the others. Once a write to the member fails,
+ * or the member has too many writes in-flight, the member starts lagging. The changes to a lagging member are queued
+ * by key, the latest change of each key replacing the previous. The queue drains periodically, writing only the net
+ * changes, until the member catches up. If the queue holds more keys than the budget, the changes are dropped and the
+ * member copies the caches of another member up to date, before draining the changes queued since. The copy only
+ * starts once the member accepts writes, so a member down for long does not copy the caches again and again.</p>
+ *
+ * <p>The changes queued count as acknowledged, so the source offset advances past them. The member is marked as
+ * lagging in the capture state before the first change queued completes, and unmarked once it caught up. A member
+ * marked when the capture starts copies the caches of another member first. Without another member up to date, the
+ * member requests a snapshot of the tables.</p>
+ *
+ * <p>The lanes write the changes of a key one after the other, so the queue never holds a change newer than a failed
+ * write of the same key.</p>
+ */
+final class FanOutCacheBackend implements CacheBackend {
+   private static final Logger log = LoggerFactory.getLogger(FanOutCacheBackend.class);
+   private static final long CATCH_UP_INTERVAL_MS = 1000;
+   private static final long PHASE_INTERVAL_MS = 10;
+   // Marks a removed key in the catch-up queue.
+   private static final byte[] REMOVED = new byte[0];
+   private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "member-catch-up");
+      thread.setDaemon(true);
+      return thread;
+   });
+   // Copies the caches between the members, blocking while iterating the entries.
+   private static final ExecutorService seeder = Executors.newCachedThreadPool(r -> {
+      Thread thread = new Thread(r, "member-seed");
+      thread.setDaemon(true);
+      return thread;
+   });
+
+   private final CaptureState state;
+   private final int budget;
+   private final int maxInFlight;
+   private final long interval;
+   // Replaced as the members join and leave, guarded by this.
+   private volatile List<MemberWriter> writers;
+   // The changes in-flight by phase. A member copies the caches of another once the changes of the previous phase,
+   // written before the member started lagging, completed everywhere.
+   private final AtomicInteger[] phases = { new AtomicInteger(), new AtomicInteger() };
+   private volatile int phase;
+   // The schema of the last row, registered in a member before copying the caches of another.
+   private volatile Schema row;
+   private volatile boolean stopped;
+
+   /**
+    * @param state: The state of the capture writing, marking the members lagging.
+    * @param budget: The keys each member queues while lagging. Zero or less fails the writes instead.
+    * @param maxInFlight: The writes each member has in-flight before it starts lagging. Zero or less is unbounded.
+    */
+   FanOutCacheBackend(List<HotRodCacheBackend> members, CaptureState state, int budget, int maxInFlight) {
+      this(members, state, budget, maxInFlight, CATCH_UP_INTERVAL_MS);
+   }
+
+   /**
+    * @param interval: The milliseconds between the attempts to drain the queue of a lagging member.
+    */
+   FanOutCacheBackend(List<HotRodCacheBackend> members, CaptureState state, int budget, int maxInFlight,
+                      long interval) {
+      if (members.isEmpty()) {
+         throw new IllegalArgumentException("At least one member is required");
+      }
+      this.state = state;
+      this.budget = budget;
+      this.maxInFlight = maxInFlight;
+      this.interval = interval;
+      this.writers = members.stream().map(member -> new MemberWriter(member, budget, maxInFlight, interval)).toList();
+      if (budget > 0) {
+         // The offsets advanced past changes the member missed before the capture started again.
+         List<MemberWriter> marked = writers.stream()
+               .filter(writer -> state.lagging(writer.backend.identifier()))
+               .toList();
+         // All the marked members lag before any copies, so none copies from another marked member.
+         marked.forEach(writer -> writer.reseed(CompletableFutures.completedNull()));
+         marked.forEach(writer -> writer.schedule(0));
+      }
+   }
+
+   /**
+    * Adds a member, which copies the caches of another member up to date before the changes are written to it.
+    */
+   void join(HotRodCacheBackend member) {
+      if (budget <= 0) {
+         throw new IllegalStateException("Members join only with a catch-up budget");
+      }
+      MemberWriter writer = new MemberWriter(member, budget, maxInFlight, interval);
+      // The changes queued for the member complete once it is marked, a capture starting again re-seeds it.
+      writer.reseed(state.lagging(member.identifier(), true));
+      synchronized (this) {
+         List<MemberWriter> joined = new ArrayList<>(writers);
+         joined.add(writer);
+         writers = List.copyOf(joined);
+      }
+      writer.schedule(0);
+   }
+
+   /**
+    * Removes a member, the changes are not written to it anymore. The member backend keeps running.
+    */
+   void leave(CacheIdentifier member) {
+      MemberWriter left;
+      synchronized (this) {
+         left = writers.stream().filter(writer -> writer.backend.identifier().equals(member)).findFirst().orElse(null);
+         if (left == null) return;
+         if (writers.size() == 1) {
+            throw new IllegalStateException("The last member " + member + " cannot leave");
+         }
+         writers = writers.stream().filter(writer -> writer != left).toList();
+      }
+      // A member joining again is marked and re-seeded anyway.
+      left.leave();
+   }
+
+   // The members share the translators, any of them encodes the changes.
+   private HotRodCacheBackend encoder() {
+      return writers.get(0).backend;
+   }
+
+   // A member catches up only with another member to copy from.
+   private boolean shared() {
+      return writers.size() > 1;
+   }
+
+   @Override
+   public CompletionStage<Void> remove(Json json) {
+      long start = System.nanoTime();
+      byte[] key;
+      try {
+         key = encoder().key(json);
+      } catch (RuntimeException t) {
+         return CompletableFuture.failedFuture(t);
+      }
+      return write(new HotRodCacheBackend.Encoded(List.of(), List.of(), List.of(key)),
+            backend -> backend.remove(key, start));
+   }
+
+   @Override
+   public CompletionStage<Void> put(Json json) {
+      long start = System.nanoTime();
+      byte[] key;
+      byte[] value;
+      try {
+         key = encoder().key(json);
+         value = encoder().value(json);
+      } catch (RuntimeException t) {
+         return CompletableFuture.failedFuture(t);
+      }
+      return write(new HotRodCacheBackend.Encoded(List.of(key), List.of(value), List.of()),
+            backend -> backend.put(key, value, start));
+   }
+
+   @Override
+   public CompletionStage<Void> bulk(List<Json> changes, BitSet removes) {
+      HotRodCacheBackend.Encoded encoded;
+      try {
+         encoded = encoder().encode(changes, removes);
+      } catch (RuntimeException t) {
+         return CompletableFuture.failedFuture(t);
+      }
+      return write(encoded, backend -> backend.bulk(encoded));
+   }
+
+   private CompletionStage<Void> write(HotRodCacheBackend.Encoded changes,
+                                       Function<HotRodCacheBackend, CompletionStage<Void>> operation) {
+      AtomicInteger inFlight = phases[phase];
+      inFlight.incrementAndGet();
+      AggregateCompletionStage<Void> stage = CompletionStages.aggregateCompletionStage();
+      for (MemberWriter writer : writers) {
+         stage.dependsOn(writer.write(changes, operation));
+      }
+      CompletionStage<Void> written = stage.freeze();
+      written.whenComplete((ignore, t) -> inFlight.decrementAndGet());
+      return written;
+   }
+
+   /**
+    * @return Completes once the changes written before completed in all the members.
+    */
+   private CompletionStage<Void> quiesce() {
+      CompletableFuture<Void> done = new CompletableFuture<>();
+      switchPhase(done);
+      return done;
+   }
+
+   private void switchPhase(CompletableFuture<Void> done) {
+      int previous;
+      synchronized (this) {
+         previous = phase;
+         // Another copy still waits for the changes of the next phase, the new changes must not delay it.
+         if (phases[1 - previous].get() > 0) {
+            timer.schedule(() -> switchPhase(done), PHASE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            return;
+         }
+         phase = 1 - previous;
+      }
+      awaitPhase(previous, done);
+   }
+
+   private void awaitPhase(int previous, CompletableFuture<Void> done) {
+      if (phases[previous].get() == 0) {
+         done.complete(null);
+      } else {
+         timer.schedule(() -> awaitPhase(previous, done), PHASE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   /**
+    * @return A member up to date other than the given, or null if none.
+    */
+   private MemberWriter source(MemberWriter target) {
+      for (MemberWriter writer : writers) {
+         if (writer != target && writer.upToDate()) return writer;
+      }
+      return null;
+   }
+
+   /**
+    * @return true if a member other than the given is lagging, but holds all the changes before its queue.
+    */
+   private boolean othersCatchingUp(MemberWriter target) {
+      for (MemberWriter writer : writers) {
+         if (writer != target && writer.catchingUp()) return true;
+      }
+      return false;
+   }
+
+   /**
+    * @return true if any member is lagging.
+    */
+   boolean lagging() {
+      for (MemberWriter writer : writers) {
+         if (writer.lagging()) return true;
+      }
+      return false;
+   }
+
+   @Override
+   public void schemaChanged(Schema row) {
+      this.row = row;
+      // Each member registers the schema in its own cache.
+      for (MemberWriter writer : writers) {
+         writer.backend.schemaChanged(row);
+      }
+   }
+
+   @Override
+   public void stop() {
+      // The lagging members stay marked, the capture starting again re-seeds them.
+      stopped = true;
+      for (MemberWriter writer : writers) {
+         writer.backend.stop();
+      }
+   }
+
+   @Override
+   public void start() {
+      for (MemberWriter writer : writers) {
+         writer.backend.start();
+      }
+   }
+
+   @Override
+   public boolean reconnect() {
+      boolean reconnected = true;
+      for (MemberWriter writer : writers) {
+         reconnected &= writer.backend.reconnect();
+      }
+      return reconnected;
+   }
+
+   @Override
+   public boolean isRunning() {
+      for (MemberWriter writer : writers) {
+         if (!writer.backend.isRunning()) return false;
+      }
+      return true;
+   }
+
+   /**
+    * Writes the changes to a single member and counts the writes the member did not acknowledge yet.
+    */
+   private final class MemberWriter {
+      private final HotRodCacheBackend backend;
+      private final int budget;
+      private final int maxInFlight;
+      private final long interval;
+      // The writes not acknowledged yet, guarded by this.
+      private int inFlight;
+      // The latest change of each key while lagging, or null when up to date. Guarded by this.
+      private Map<ByteBuffer, byte[]> queue;
+      // Completes once the member is marked as lagging. Guarded by this.
+      private CompletionStage<Void> marked;
+      // Whether the member copies the caches of another before draining the queue. Guarded by this.
+      private boolean seed;
+      // Whether the member left, the changes are not written to it anymore. Guarded by this.
+      private boolean left;
+      // The times the queue overflowed, a copy started before an overflow misses the changes dropped. Guarded by this.
+      private int overflows;
+
+      private MemberWriter(HotRodCacheBackend backend, int budget, int maxInFlight, long interval) {
+         this.backend = backend;
+         this.budget = budget;
+         this.maxInFlight = maxInFlight;
+         this.interval = interval;
+      }
+
+      CompletionStage<Void> write(HotRodCacheBackend.Encoded changes,
+                                  Function<HotRodCacheBackend, CompletionStage<Void>> operation) {
+         if (budget > 0) {
+            synchronized (this) {
+               if (left) return CompletableFutures.completedNull();
+               // Once lagging, the changes queue behind the previous ones to keep the order of each key. A member with
+               // too many writes in-flight is slow, and starts lagging too.
+               if (queue != null || (maxInFlight > 0 && inFlight >= maxInFlight && shared())) {
+                  return lag(changes);
+               }
+               inFlight++;
+            }
+         }
+
+         CompletionStage<Void> stage;
+         try {
+            stage = operation.apply(backend);
+         } catch (Throwable t) {
+            stage = CompletableFuture.failedFuture(t);
+         }
+         // Without a budget, a failed write fails the change and the engine does not commit past it.
+         if (budget <= 0) return stage;
+
+         return stage.handle((ignore, t) -> {
+            synchronized (this) {
+               inFlight--;
+               if (t == null || left) return CompletableFutures.<Void>completedNull();
+               // A single member has none to copy from, the engine does not commit past the failed change.
+               if (queue == null && !shared()) return CompletableFuture.<Void>failedFuture(t);
+               return lag(changes);
+            }
+         }).thenCompose(Function.identity());
+      }
+
+      synchronized boolean lagging() {
+         return queue != null;
+      }
+
+      synchronized boolean upToDate() {
+         return queue == null && backend.isRunning();
+      }
+
+      synchronized boolean catchingUp() {
+         return queue != null && !seed;
+      }
+
+      /**
+       * Starts lagging, copying the caches of another member before draining the queue once scheduled.
+       *
+       * @param marked: Completes once the member is marked as lagging.
+       */
+      synchronized void reseed(CompletionStage<Void> marked) {
+         queue = new HashMap<>();
+         this.marked = marked;
+         seed = true;
+      }
+
+      synchronized void leave() {
+         left = true;
+         queue = null;
+      }
+
+      // Guarded by this.
+      private CompletionStage<Void> lag(HotRodCacheBackend.Encoded changes) {
+         if (queue == null) {
+            log.warn("Member {} is lagging, queueing its changes", backend.identifier());
+            queue = new HashMap<>();
+            // The changes queued complete once the mark is stored, before the source offset advances past them.
+            marked = state.lagging(backend.identifier(), true);
+            schedule(interval);
+         }
+
+         for (int i = 0; i < changes.keys().size(); i++) {
+            queue.put(ByteBuffer.wrap(changes.keys().get(i)), changes.values().get(i));
+         }
+         for (byte[] key : changes.removes()) {
+            queue.put(ByteBuffer.wrap(key), REMOVED);
+         }
+
+         if (queue.size() > budget) {
+            log.warn("Member {} changed more than {} keys while lagging, it needs a re-seed", backend.identifier(),
+                  budget);
+            overflow();
+         }
+         return marked;
+      }
+
+      // Guarded by this.
+      private void overflow() {
+         queue.clear();
+         seed = true;
+         overflows++;
+      }
+
+      void schedule(long delay) {
+         timer.schedule(this::drain, delay, TimeUnit.MILLISECONDS);
+      }
+
+      private void drain() {
+         Map<ByteBuffer, byte[]> batch;
+         synchronized (this) {
+            if (queue == null) return;
+
+            // The capture stopped, the member stays marked and the capture starting again re-seeds it.
+            if (stopped) {
+               queue = null;
+               return;
+            }
+            batch = seed ? null : queue;
+            if (batch != null) queue = new HashMap<>();
+         }
+
+         if (batch == null) {
+            copy();
+            return;
+         }
+
+         CompletionStage<Void> stage;
+         try {
+            stage = batch.isEmpty() ? CompletableFutures.completedNull() : backend.bulk(encode(batch));
+         } catch (Throwable t) {
+            stage = CompletableFuture.failedFuture(t);
+         }
+         stage.whenComplete((ignore, t) -> {
+            synchronized (this) {
+               if (t != null) {
+                  // The changes queued meanwhile are newer.
+                  batch.forEach(queue::putIfAbsent);
+                  if (queue.size() > budget) overflow();
+                  schedule(interval);
+                  return;
+               }
+
+               if (seed || !queue.isEmpty()) {
+                  schedule(0);
+                  return;
+               }
+
+               queue = null;
+               // Issued before any later mark, so a member lagging again stays marked.
+               state.lagging(backend.identifier(), false);
+            }
+
+            log.info("Member {} caught up", backend.identifier());
+            backend.caughtUp();
+         });
+      }
+
+      private void copy() {
+         MemberWriter source = source(this);
+         if (source == null) {
+            // Another member catches up soon, and the member copies from it.
+            if (othersCatchingUp(this)) {
+               schedule(interval);
+               return;
+            }
+
+            // Only a snapshot of the tables has all the rows, requested once the member is back.
+            backend.probe().whenComplete((ignore, t) -> {
+               // A stopped capture leaves the member marked, the capture starting again snapshots.
+               if (t == null && !stopped) {
+                  log.warn("No member up to date to re-seed member {} from, requesting a snapshot",
+                        backend.identifier());
+                  backend.overflowed(state.name());
+               }
+               schedule(interval);
+            });
+            return;
+         }
+
+         int overflowed;
+         synchronized (this) {
+            overflowed = overflows;
+         }
+         log.info("Member {} copies the caches of member {}", backend.identifier(), source.backend.identifier());
+         CompletionStage<Void> stage;
+         try {
+            Schema last = row;
+            if (last != null) backend.schemaChanged(last);
+            // The changes written before the member started lagging might still be in-flight to the source.
+            stage = quiesce().thenCompose(ignore -> backend.copyFrom(source.backend, seeder, () -> stopped));
+         } catch (Throwable t) {
+            stage = CompletableFuture.failedFuture(t);
+         }
+         stage.whenComplete((ignore, t) -> {
+            if (t != null) {
+               log.warn("Member {} failed copying the caches, retrying", backend.identifier(), t);
+               schedule(interval);
+               return;
+            }
+
+            synchronized (this) {
+               // The queue dropped changes during the copy, the member copies again.
+               if (overflows == overflowed) seed = false;
+            }
+            schedule(0);
+         });
+      }
+
+      private static HotRodCacheBackend.Encoded encode(Map<ByteBuffer, byte[]> batch) {
+         List<byte[]> keys = new ArrayList<>(batch.size());
+         List<byte[]> values = new ArrayList<>(batch.size());
+         List<byte[]> removes = new ArrayList<>();
+         for (Map.Entry<ByteBuffer, byte[]> entry : batch.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+               removes.add(entry.getKey().array());
+            } else {
+               keys.add(entry.getKey().array());
+               values.add(entry.getValue());
+            }
+         }
+         return new HotRodCacheBackend.Encoded(keys, values, removes);
+      }
+   }
+}
@@ -1,79 +1,302 @@
 package io.gingersnapproject.cdc.cache.hotrod;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
-import java.util.function.BiConsumer;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
 
 import io.gingersnapproject.cdc.cache.CacheIdentifier;
-import io.gingersnapproject.metrics.CacheServiceAccessRecord;
+import io.gingersnapproject.cdc.util.AggregateCompletionStage;
+import io.gingersnapproject.cdc.util.CompletionStages;
+import io.gingersnapproject.metrics.CacheServiceOperation;
 import io.gingersnapproject.metrics.DBSyncerMetrics;
-import org.infinispan.client.hotrod.DataFormat;
+import org.apache.kafka.connect.data.Schema;
 import org.infinispan.client.hotrod.RemoteCache;
-import org.infinispan.commons.dataconversion.MediaType;
 import org.infinispan.commons.dataconversion.internal.Json;
+import org.infinispan.commons.util.CloseableIterator;
+import org.infinispan.commons.util.concurrent.CompletableFutures;
 
 import io.gingersnapproject.cdc.CacheBackend;
 import io.gingersnapproject.cdc.event.NotificationManager;
 import io.gingersnapproject.cdc.translation.JsonTranslator;
+import io.gingersnapproject.cdc.translation.ProtostreamTranslator;
+import io.gingersnapproject.cdc.translation.Utf8JsonWriter;
 
 public class HotRodCacheBackend implements CacheBackend {
+   // Each thread encodes into its own buffer, copying the bytes out before the next write.
+   private static final ThreadLocal<Utf8JsonWriter> writers = ThreadLocal.withInitial(Utf8JsonWriter::new);
+   private static final byte[] PROBE_KEY = "___db-syncer-probe".getBytes(StandardCharsets.UTF_8);
    private final CacheIdentifier identifier;
-   final RemoteCache<String, String> remoteCache;
+   final RemoteCache<byte[], byte[]> remoteCache;
    final JsonTranslator<?> keyTranslator;
    final JsonTranslator<?> valueTranslator;
    private final NotificationManager eventing;
-   private final BiConsumer<Object, Throwable> eventBiConsumer;
    private final DBSyncerMetrics metrics;
+   private final int maxBatchSize;
+   // Null when redundant writes are not tracked.
+   private final WriteFingerprints fingerprints;
+   private final WriteRetry retry;
    private boolean stopped;
 
-   public HotRodCacheBackend(CacheIdentifier identifier, RemoteCache<String, String> remoteCache, JsonTranslator<?> keyTranslator,
-                             JsonTranslator<?> valueTranslator, NotificationManager eventing, DBSyncerMetrics metrics) {
+   /**
+    * @param remoteCache: The cache writing the encoded keys and values as they are, see {@link HotRodService}.
+    */
+   public HotRodCacheBackend(CacheIdentifier identifier, RemoteCache<byte[], byte[]> remoteCache, JsonTranslator<?> keyTranslator,
+                             JsonTranslator<?> valueTranslator, NotificationManager eventing, DBSyncerMetrics metrics,
+                             int maxBatchSize) {
+      this(identifier, remoteCache, keyTranslator, valueTranslator, eventing, metrics, maxBatchSize, null, null);
+   }
+
+   /**
+    * @param fingerprints: Skips the puts of the value last written for the key, or null to write all.
+    * @param retry: Retries the writes failing with transient failures, or null to fail right away.
+    */
+   HotRodCacheBackend(CacheIdentifier identifier, RemoteCache<byte[], byte[]> remoteCache, JsonTranslator<?> keyTranslator,
+                      JsonTranslator<?> valueTranslator, NotificationManager eventing, DBSyncerMetrics metrics,
+                      int maxBatchSize, WriteFingerprints fingerprints, WriteRetry retry) {
+      if (maxBatchSize < 1) {
+         throw new IllegalArgumentException("Maximum batch size must be positive");
+      }
       this.identifier = identifier;
-      this.remoteCache = remoteCache.withDataFormat(DataFormat.builder()
-            .keyType(MediaType.TEXT_PLAIN).valueType(MediaType.TEXT_PLAIN).build());
+      this.remoteCache = remoteCache;
       this.keyTranslator = keyTranslator;
       this.valueTranslator = valueTranslator;
       this.eventing = eventing;
-      this.eventBiConsumer = (ignore, t) -> {
-         if (t != null) {
-            this.eventing.backendFailedEvent(identifier, t);
-         }
-      };
       this.metrics = metrics;
+      this.maxBatchSize = maxBatchSize;
+      this.fingerprints = fingerprints;
+      this.retry = retry != null ? retry : new WriteRetry(0, 0, 0, () -> {});
    }
 
-   HotRodCacheBackend copy(RemoteCache<String, String> rc) {
-      var o = new HotRodCacheBackend(identifier, rc, keyTranslator, valueTranslator, eventing, metrics);
+   HotRodCacheBackend copy(RemoteCache<byte[], byte[]> rc) {
+      // The cache might have lost the entries while disconnected, the writes are tracked again from scratch.
+      var o = new HotRodCacheBackend(identifier, rc, keyTranslator, valueTranslator, eventing, metrics, maxBatchSize,
+            fingerprints == null ? null : fingerprints.empty(), retry);
       o.stopped = this.stopped;
       return o;
    }
 
    @Override
    public CompletionStage<Void> remove(Json json) {
-      CacheServiceAccessRecord<String> record = metrics.recordCacheServiceRemove();
+      long start = System.nanoTime();
+      byte[] key;
+      try {
+         key = key(json);
+      } catch (RuntimeException t) {
+         metrics.recordCacheServiceAccess(CacheServiceOperation.REMOVE, start, t);
+         return CompletableFuture.failedFuture(t);
+      }
+      return remove(key, start);
+   }
+
+   /**
+    * Removes a key encoded with {@link #key(Json)}.
+    *
+    * @param start: The nanos the operation started, to record the latency.
+    */
+   CompletionStage<Void> remove(byte[] key, long start) {
       try {
-         return remoteCache.removeAsync(keyTranslator.apply(json).toString())
-               .whenComplete(eventBiConsumer)
-               .whenComplete(record)
-               .thenApply(__ -> null);
+         if (fingerprints != null) fingerprints.forget(key);
+         // The failure reaches the engine only after the retries are exhausted.
+         return completed(retry.execute(() -> remoteCache.removeAsync(key)), CacheServiceOperation.REMOVE, start);
       } catch (Throwable t) {
-         record.recordThrowable(t);
+         metrics.recordCacheServiceAccess(CacheServiceOperation.REMOVE, start, t);
          return CompletableFuture.failedFuture(t);
       }
    }
 
    @Override
    public CompletionStage<Void> put(Json json) {
-      CacheServiceAccessRecord<String> record = metrics.recordCacheServicePut();
+      long start = System.nanoTime();
+      byte[] key;
+      byte[] value;
+      try {
+         key = key(json);
+         value = value(json);
+      } catch (RuntimeException t) {
+         metrics.recordCacheServiceAccess(CacheServiceOperation.PUT, start, t);
+         return CompletableFuture.failedFuture(t);
+      }
+      return put(key, value, start);
+   }
+
+   /**
+    * Writes a key and value encoded with {@link #key(Json)} and {@link #value(Json)}.
+    *
+    * @param start: The nanos the operation started, to record the latency.
+    */
+   CompletionStage<Void> put(byte[] key, byte[] value, long start) {
+      try {
+         if (fingerprints == null) {
+            return completed(retry.execute(() -> remoteCache.putAsync(key, value)), CacheServiceOperation.PUT, start);
+         }
+
+         long keyHash = WriteFingerprints.hash(key);
+         long valueHash = WriteFingerprints.hash(value);
+         if (fingerprints.matches(keyHash, valueHash)) return skipped();
+
+         // Until the write completes, the value in the cache is unknown.
+         fingerprints.forget(keyHash);
+         return completed(retry.execute(() -> remoteCache.putAsync(key, value)), CacheServiceOperation.PUT, start)
+               .thenRun(() -> fingerprints.record(keyHash, valueHash));
+      } catch (RuntimeException t) {
+         metrics.recordCacheServiceAccess(CacheServiceOperation.PUT, start, t);
+         return CompletableFuture.failedFuture(t);
+      }
+   }
+
+   @Override
+   public CompletionStage<Void> bulk(List<Json> changes, BitSet removes) {
+      Encoded encoded;
       try {
-      return remoteCache.putAsync(keyTranslator.apply(json).toString(), valueTranslator.apply(json).toString())
-            .whenComplete(eventBiConsumer)
-            .whenComplete(record)
-            .thenApply(__ -> null);
+         encoded = encode(changes, removes);
       } catch (RuntimeException t) {
-         record.recordThrowable(t);
          return CompletableFuture.failedFuture(t);
       }
+      return bulk(encoded);
+   }
+
+   /**
+    * Applies a group of changes encoded with {@link #encode(List, BitSet)}, each key present at most once.
+    */
+   CompletionStage<Void> bulk(Encoded changes) {
+      AggregateCompletionStage<Void> stage = CompletionStages.aggregateCompletionStage();
+      try {
+         List<byte[]> keys = changes.keys();
+         List<byte[]> values = changes.values();
+         Map<byte[], byte[]> entries = new HashMap<>();
+         long[] hashes = fingerprints == null ? null : new long[Math.min(keys.size(), maxBatchSize) * 2];
+         for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i);
+            byte[] value = values.get(i);
+            if (hashes != null) {
+               long keyHash = WriteFingerprints.hash(key);
+               long valueHash = WriteFingerprints.hash(value);
+               if (fingerprints.matches(keyHash, valueHash)) {
+                  stage.dependsOn(skipped());
+                  continue;
+               }
+               fingerprints.forget(keyHash);
+               hashes[entries.size() * 2] = keyHash;
+               hashes[entries.size() * 2 + 1] = valueHash;
+            }
+
+            entries.put(key, value);
+            if (entries.size() == maxBatchSize) {
+               stage.dependsOn(putAll(entries, hashes));
+               entries = new HashMap<>();
+               if (hashes != null) hashes = new long[hashes.length];
+            }
+         }
+
+         if (!entries.isEmpty()) stage.dependsOn(putAll(entries, hashes));
+
+         // There is no bulk remove operation. The requests are pipelined without waiting for the responses.
+         for (byte[] key : changes.removes()) {
+            stage.dependsOn(remove(key, System.nanoTime()));
+         }
+      } catch (RuntimeException t) {
+         stage.dependsOn(CompletableFuture.failedFuture(t));
+      }
+      return stage.freeze();
+   }
+
+   /**
+    * @return The key of the row, as written to the cache.
+    */
+   byte[] key(Json json) {
+      return encode(keyTranslator, json);
+   }
+
+   /**
+    * @return The value of the row, as written to the cache.
+    */
+   byte[] value(Json json) {
+      return encode(valueTranslator, json);
+   }
+
+   /**
+    * Encodes a group of changes, to apply with {@link #bulk(Encoded)}.
+    * <p>Different rows can share the columns of the cache key, so the changes are merged by the encoded key. The last
+    * change of each key wins, and only its value is encoded.</p>
+    */
+   Encoded encode(List<Json> changes, BitSet removes) {
+      Map<ByteBuffer, Integer> last = new HashMap<>(changes.size());
+      for (int i = 0; i < changes.size(); i++) {
+         last.put(ByteBuffer.wrap(key(changes.get(i))), i);
+      }
+      List<byte[]> keys = new ArrayList<>(last.size());
+      List<byte[]> values = new ArrayList<>(last.size());
+      List<byte[]> removed = new ArrayList<>();
+      for (Map.Entry<ByteBuffer, Integer> entry : last.entrySet()) {
+         byte[] key = entry.getKey().array();
+         int i = entry.getValue();
+         if (removes.get(i)) {
+            removed.add(key);
+         } else {
+            keys.add(key);
+            values.add(value(changes.get(i)));
+         }
+      }
+      return new Encoded(keys, values, removed);
+   }
+
+   private static byte[] encode(JsonTranslator<?> translator, Json json) {
+      Utf8JsonWriter writer = writers.get().reset();
+      translator.write(json, writer);
+      return writer.toByteArray();
+   }
+
+   @Override
+   public void schemaChanged(Schema row) {
+      if (!(valueTranslator instanceof ProtostreamTranslator protostream)) return;
+
+      try {
+         // A schema the server rejects fails the rule, the values are not readable.
+         protostream.schemaChanged(row).whenComplete((ignore, t) -> {
+            if (t != null) eventing.backendFailedEvent(identifier, t);
+         });
+      } catch (RuntimeException e) {
+         eventing.backendFailedEvent(identifier, e);
+         throw e;
+      }
+   }
+
+   private CompletionStage<Void> skipped() {
+      metrics.recordSkippedWrite(identifier.toString());
+      return CompletableFutures.completedNull();
+   }
+
+   // Notifies the failure and records the latency in a single callback, discarding the value.
+   private CompletionStage<Void> completed(CompletionStage<?> stage, CacheServiceOperation operation, long start) {
+      return stage.handle((ignore, t) -> {
+         if (t != null) eventing.backendFailedEvent(identifier, t);
+         metrics.recordCacheServiceAccess(operation, start, t);
+         if (t != null) throw CompletableFutures.asCompletionException(t);
+         return null;
+      });
+   }
+
+   // The hashes hold the key and value hash pairs of the entries, or null when not tracked. Visible for testing.
+   CompletionStage<Void> putAll(Map<byte[], byte[]> entries, long[] hashes) {
+      CompletionStage<Void> stage = completed(retry.execute(() -> remoteCache.putAllAsync(entries)),
+            CacheServiceOperation.PUT_ALL, System.nanoTime());
+      if (hashes == null) return stage;
+
+      int size = entries.size();
+      return stage.thenRun(() -> {
+         for (int i = 0; i < size * 2; i += 2) {
+            fingerprints.record(hashes[i], hashes[i + 1]);
+         }
+      });
    }
 
    @Override
@@ -108,4 +331,71 @@ public class HotRodCacheBackend implements CacheBackend {
    public boolean isRunning() {
       return !stopped;
    }
+
+   CacheIdentifier identifier() {
+      return identifier;
+   }
+
+   /**
+    * Notifies the member applied the changes it missed while lagging.
+    */
+   void caughtUp() {
+      eventing.backendStartedEvent(identifier, true);
+   }
+
+   /**
+    * Notifies the member missed more changes than it could queue, and needs all the rows again.
+    *
+    * @param capture: The capture the member missed the changes from.
+    */
+   void overflowed(String capture) {
+      eventing.catchUpOverflowEvent(identifier, capture);
+   }
+
+   /**
+    * Checks the member accepts requests, without retrying nor notifying a failure.
+    */
+   CompletionStage<Void> probe() {
+      try {
+         return remoteCache.containsKeyAsync(PROBE_KEY).thenApply(ignore -> null);
+      } catch (Throwable t) {
+         return CompletableFuture.failedFuture(t);
+      }
+   }
+
+   /**
+    * Replaces the entries of the cache with the entries of the same cache in another member.
+    * <p>The copy blocks the executor while iterating the entries of the other member.</p>
+    *
+    * @param cancelled: Stops the copy between batches once true.
+    */
+   CompletionStage<Void> copyFrom(HotRodCacheBackend source, Executor executor, BooleanSupplier cancelled) {
+      try {
+         // The cache loses the entries written before, the writes are tracked again from scratch.
+         if (fingerprints != null) fingerprints.clear();
+         return remoteCache.clearAsync().thenRunAsync(() -> {
+            try (CloseableIterator<Map.Entry<Object, Object>> entries =
+                       source.remoteCache.retrieveEntries(null, maxBatchSize)) {
+               Map<byte[], byte[]> batch = new HashMap<>();
+               while (entries.hasNext()) {
+                  Map.Entry<Object, Object> entry = entries.next();
+                  batch.put((byte[]) entry.getKey(), (byte[]) entry.getValue());
+                  if (batch.size() == maxBatchSize) {
+                     remoteCache.putAll(batch);
+                     batch = new HashMap<>();
+                     if (cancelled.getAsBoolean()) throw new CancellationException("Copy to " + identifier + " cancelled");
+                  }
+               }
+               if (!batch.isEmpty()) remoteCache.putAll(batch);
+            }
+         }, executor);
+      } catch (Throwable t) {
+         return CompletableFuture.failedFuture(t);
+      }
+   }
+
+   /**
+    * A group of encoded changes. The keys and values to write are at the same index.
+    */
+   record Encoded(List<byte[]> keys, List<byte[]> values, List<byte[]> removes) { }
 }
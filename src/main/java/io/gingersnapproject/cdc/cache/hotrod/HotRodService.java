@@ -3,33 +3,43 @@ package io.gingersnapproject.cdc.cache.hotrod;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 
 import io.gingersnapproject.cdc.CacheBackend;
+import io.gingersnapproject.cdc.CaptureState;
 import io.gingersnapproject.cdc.OffsetBackend;
 import io.gingersnapproject.cdc.SchemaBackend;
 import io.gingersnapproject.cdc.cache.CacheIdentifier;
 import io.gingersnapproject.cdc.cache.CacheService;
+import io.gingersnapproject.cdc.configuration.Configuration;
 import io.gingersnapproject.cdc.configuration.Rule;
+import io.gingersnapproject.cdc.configuration.ValueEncoding;
 import io.gingersnapproject.cdc.event.NotificationManager;
 import io.gingersnapproject.cdc.translation.ColumnJsonTranslator;
 import io.gingersnapproject.cdc.translation.ColumnStringTranslator;
 import io.gingersnapproject.cdc.translation.IdentityTranslator;
 import io.gingersnapproject.cdc.translation.JsonTranslator;
+import io.gingersnapproject.cdc.translation.ProtostreamTranslator;
 import io.gingersnapproject.metrics.DBSyncerMetrics;
 
+import org.infinispan.client.hotrod.DataFormat;
 import org.infinispan.client.hotrod.RemoteCache;
 import org.infinispan.client.hotrod.RemoteCacheManager;
+import org.infinispan.client.hotrod.impl.InternalRemoteCache;
 import org.infinispan.client.hotrod.multimap.MultimapCacheManager;
 import org.infinispan.client.hotrod.multimap.RemoteMultimapCacheManagerFactory;
 import org.infinispan.commons.api.CacheContainerAdmin;
 import org.infinispan.commons.configuration.StringConfiguration;
 import org.infinispan.commons.dataconversion.MediaType;
+import org.infinispan.commons.marshall.IdentityMarshaller;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,11 +48,15 @@ public class HotRodService implements CacheService {
    private static final Logger log = LoggerFactory.getLogger(HotRodService.class);
    private static final String OFFSET_CACHE_NAME = "___debezium-offset";
    private static final String SCHEMA_CACHE_NAME = "___debezium-schema";
+   private static final String PROTOBUF_METADATA_CACHE_NAME = "___protobuf_metadata";
+   private static final String PROTOBUF_ERRORS_SUFFIX = ".errors";
 
    @Inject NotificationManager eventing;
 
    @Inject DBSyncerMetrics metrics;
 
+   @Inject Configuration config;
+
    private final ConcurrentHashMap<URI, HotRodCache> managers = new ConcurrentHashMap<>();
 
    private boolean reconnectBackend(CacheIdentifier identifier, HotRodCache cache) {
@@ -52,7 +66,8 @@ public class HotRodService implements CacheService {
       var newCache = new HotRodCache(cache.rcm, offset, schema);
 
       var oldBackend = cache.backends.get(identifier.rule());
-      var backend = oldBackend.copy(newCache.rcm.getCache(identifier.rule()));
+      var backend = oldBackend.copy(newCache.rcm.<byte[], byte[]>getCache(identifier.rule())
+            .withDataFormat(oldBackend.remoteCache.getDataFormat()));
       newCache.backends.putAll(cache.backends);
       newCache.backends.put(identifier.rule(), backend);
 
@@ -76,7 +91,32 @@ public class HotRodService implements CacheService {
 
    @Override
    public CacheBackend start(CacheIdentifier identifier, Rule rule) throws IOException {
-      var cache = managers.computeIfAbsent(identifier.uri(), ignore -> createBackend(identifier));
+      return backend(identifier, rule);
+   }
+
+   @Override
+   public CacheBackend startAll(List<CacheIdentifier> identifiers, Rule rule, CaptureState state) throws IOException {
+      List<HotRodCacheBackend> backends = new ArrayList<>(identifiers.size());
+      for (CacheIdentifier identifier : identifiers) {
+         backends.add(backend(identifier, rule));
+      }
+      return new FanOutCacheBackend(backends, state, config.processing().catchUpKeys(),
+            config.processing().memberInFlight());
+   }
+
+   @Override
+   public void join(CacheBackend backend, CacheIdentifier identifier, Rule rule) throws IOException {
+      ((FanOutCacheBackend) backend).join(backend(identifier, rule));
+   }
+
+   @Override
+   public void leave(CacheBackend backend, CacheIdentifier identifier) {
+      ((FanOutCacheBackend) backend).leave(identifier);
+      stop(identifier);
+   }
+
+   private HotRodCacheBackend backend(CacheIdentifier identifier, Rule rule) throws IOException {
+      var cache = managers.computeIfAbsent(identifier.uri(), this::createBackend);
       var backend = cache.backends.computeIfAbsent(identifier.rule(), ignore -> createBackend(identifier, cache.rcm, rule));
 
       if (!backend.isRunning() && !reconnectBackend(identifier, cache)) {
@@ -87,8 +127,8 @@ public class HotRodService implements CacheService {
       return managers.get(identifier.uri()).backends.get(identifier.rule());
    }
 
-   private HotRodCache createBackend(CacheIdentifier identifier) {
-      var rcm = new RemoteCacheManager(identifier.uri());
+   private HotRodCache createBackend(URI uri) {
+      var rcm = new RemoteCacheManager(uri);
       getOrCreateOffsetBackendCache(OFFSET_CACHE_NAME, rcm);
       getOrCreateSchemaBackendCache(SCHEMA_CACHE_NAME, rcm);
 
@@ -104,8 +144,21 @@ public class HotRodService implements CacheService {
    }
 
    private HotRodCacheBackend createBackend(CacheIdentifier identifier, RemoteCacheManager rcm, Rule rule) {
-      JsonTranslator<?> valueTranslator = rule.valueColumns().isPresent() ?
-            new ColumnJsonTranslator(rule.valueColumns().get()) : IdentityTranslator.getInstance();
+      MediaType valueType;
+      JsonTranslator<?> valueTranslator;
+      if (rule.valueEncoding() == ValueEncoding.PROTOSTREAM) {
+         valueType = MediaType.APPLICATION_PROTOSTREAM;
+         RemoteCache<String, String> metadata = rcm.getCache(PROTOBUF_METADATA_CACHE_NAME);
+         // Keeps the field numbers of the schema registered before, the values in the cache must keep decoding.
+         String registered = metadata.get(ProtostreamTranslator.fileName(identifier.rule()));
+         valueTranslator = new ProtostreamTranslator(identifier.rule(), rule.connector().table(),
+               rule.valueColumns().orElse(null), registered,
+               (file, contents) -> registerProtobufSchema(metadata, file, contents));
+      } else {
+         valueType = MediaType.TEXT_PLAIN;
+         valueTranslator = rule.valueColumns().isPresent() ?
+               new ColumnJsonTranslator(rule.valueColumns().get()) : IdentityTranslator.getInstance();
+      }
       JsonTranslator<?> keyTranslator = switch (rule.keyType()) {
          case TEXT -> new ColumnStringTranslator(rule.keyColumns(), rule.plainSeparator());
          case JSON -> new ColumnJsonTranslator(rule.keyColumns());
@@ -115,27 +168,70 @@ public class HotRodService implements CacheService {
       if (rcm == null)
          throw new IllegalStateException("RemoteCacheManager not initialized");
 
-      getOrCreateCacheBackendCache(identifier.rule(), rcm);
-      var cache = new HotRodCacheBackend(identifier, rcm.getCache(identifier.rule()), keyTranslator, valueTranslator, eventing, metrics);
+      getOrCreateCacheBackendCache(identifier.rule(), valueType, rcm);
+      checkValueEncoding(rcm, identifier.rule(), valueType);
+      var fingerprints = rule.fingerprints() > 0 ? new WriteFingerprints(rule.fingerprints()) : null;
+      var cache = new HotRodCacheBackend(identifier, backendCache(rcm, identifier.rule(), valueType), keyTranslator, valueTranslator, eventing, metrics,
+            config.cache().maxBatchSize(), fingerprints, retry(identifier));
       cache.start();
       return cache;
    }
 
-   private static void getOrCreateCacheBackendCache(String name, RemoteCacheManager rcm) {
+   private WriteRetry retry(CacheIdentifier identifier) {
+      return new WriteRetry(config.cache().maxRetries(), config.cache().retryBackoff(), config.cache().maxRetryBackoff(),
+            () -> metrics.recordWriteRetry(identifier.toString()));
+   }
+
+   // The backends encode keys and values, the client sends the bytes unchanged.
+   private static RemoteCache<byte[], byte[]> backendCache(RemoteCacheManager rcm, String name, MediaType valueType) {
+      return rcm.<byte[], byte[]>getCache(name).withDataFormat(DataFormat.builder()
+            .keyType(MediaType.TEXT_PLAIN).keyMarshaller(IdentityMarshaller.INSTANCE)
+            .valueType(valueType).valueMarshaller(IdentityMarshaller.INSTANCE)
+            .build());
+   }
+
+   // Runs in the processing threads, without blocking them.
+   private static CompletionStage<Void> registerProtobufSchema(RemoteCache<String, String> metadata, String file,
+                                                               String contents) {
+      log.info("Registering protobuf schema {}", file);
+      // The server validates the file once written, and keeps the errors found under another key.
+      return metadata.putAsync(file, contents)
+            .thenCompose(ignore -> metadata.getAsync(file + PROTOBUF_ERRORS_SUFFIX))
+            .thenAccept(errors -> {
+               if (errors != null) {
+                  throw new IllegalStateException("Protobuf schema " + file + " rejected: " + errors);
+               }
+            });
+   }
+
+   private static void getOrCreateCacheBackendCache(String name, MediaType valueType, RemoteCacheManager rcm) {
       rcm.administration()
             .withFlags(CacheContainerAdmin.AdminFlag.VOLATILE)
             .getOrCreateCache(name, new StringConfiguration(
             "<local-cache>" +
                "<encoding>" +
                   "<key media-type=\"" + MediaType.TEXT_PLAIN_TYPE + "\"/>" +
-                  "<value media-type=\"" + MediaType.TEXT_PLAIN_TYPE + "\"/>" +
+                  "<value media-type=\"" + valueType.getTypeSubtype() + "\"/>" +
                "</encoding>" +
             "</local-cache>"));
    }
 
+   // The media type only applies when the cache is created, a cache created before keeps its own.
+   private static void checkValueEncoding(RemoteCacheManager rcm, String name, MediaType valueType) {
+      InternalRemoteCache<?, ?> cache = (InternalRemoteCache<?, ?>) rcm.getCache(name);
+      MediaType stored = cache.ping().toCompletableFuture().join().getValueMediaType();
+      if (stored == null) {
+         log.warn("Unknown value encoding of cache {}, the rule encodes the values as {}", name, valueType);
+      } else if (!stored.match(valueType)) {
+         throw new IllegalStateException(String.format("Cache %s stores the values as %s, the rule encodes them as %s",
+               name, stored, valueType));
+      }
+   }
+
    @Override
    public OffsetBackend offsetBackend(URI managerURI) {
-      return getCacheOrThrow(managerURI).offset;
+      // An engine reads the state of its capture before starting the backends.
+      return managers.computeIfAbsent(managerURI, this::createBackend).offset;
    }
 
    private void getOrCreateOffsetBackendCache(String name, RemoteCacheManager rcm) {
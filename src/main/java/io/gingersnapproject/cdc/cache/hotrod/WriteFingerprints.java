@@ -0,0 +1,131 @@
+package io.gingersnapproject.cdc.cache.hotrod;
+
+import java.util.Arrays;
+
+import org.infinispan.commons.hash.MurmurHash3;
+
+/**
+ * Memory bounded table from the hash of a key to the hash of the value last written for it.
+ * <p>A put whose value hash matches the last write for the key would store the same value again, and can be skipped.
+ * The table is a set-associative array of primitive longs, taking 16 bytes per entry regardless of the number of
+ * keys. Once the set of a key is full, the key written the longest ago is evicted, so an evicted key only costs a
+ * redundant write.</p>
+ *
+ * <p>The table only knows about the writes from this instance. The owner must {@link #forget(byte[]) forget} a key
+ * before writing it in a way the outcome is unknown, and replace the table whenever the cache might have lost
+ * entries.</p>
+ */
+final class WriteFingerprints {
+   private static final int WAYS = 4;
+   private static final int MAX_SETS = 1 << 27;
+   private static final int LOCKS = 64;
+   private static final int SEED = 9001;
+   private static final long EMPTY = 0;
+
+   // Each set holds the key and value hash pairs ordered from the most to the least recently written.
+   private final long[] table;
+   private final int setMask;
+   private final Object[] locks = new Object[LOCKS];
+
+   /**
+    * @param capacity: The minimum number of entries, rounded up to a power of two of at least four entries.
+    */
+   WriteFingerprints(int capacity) {
+      int sets = Math.min(nextPowerOfTwo(capacity / WAYS + (capacity % WAYS == 0 ? 0 : 1)), MAX_SETS);
+      this.setMask = sets - 1;
+      this.table = new long[sets * WAYS * 2];
+      for (int i = 0; i < LOCKS; i++) {
+         locks[i] = new Object();
+      }
+   }
+
+   int capacity() {
+      return (setMask + 1) * WAYS;
+   }
+
+   /**
+    * Creates an empty table with the same capacity.
+    */
+   WriteFingerprints empty() {
+      return new WriteFingerprints(capacity());
+   }
+
+   /**
+    * Forgets all the keys, once the cache lost its entries.
+    */
+   void clear() {
+      for (int set = 0; set <= setMask; set++) {
+         int base = set * WAYS * 2;
+         synchronized (locks[set & (LOCKS - 1)]) {
+            Arrays.fill(table, base, base + WAYS * 2, EMPTY);
+         }
+      }
+   }
+
+   static long hash(byte[] bytes) {
+      long hash = MurmurHash3.MurmurHash3_x64_64(bytes, SEED);
+      // Zero marks the empty ways.
+      return hash == EMPTY ? 1 : hash;
+   }
+
+   /**
+    * @return true if the value hash is the one last recorded for the key hash.
+    */
+   boolean matches(long key, long value) {
+      int set = set(key);
+      synchronized (locks[set & (LOCKS - 1)]) {
+         int way = find(set, key);
+         return way >= 0 && table[way + 1] == value;
+      }
+   }
+
+   /**
+    * Records the value hash as the last written for the key hash, evicting the least recently written key of the set
+    * if needed.
+    */
+   void record(long key, long value) {
+      int set = set(key);
+      int base = set * WAYS * 2;
+      synchronized (locks[set & (LOCKS - 1)]) {
+         int way = find(set, key);
+         // Shifts the more recent ways over the key, or over the last way when absent, and places the key first.
+         int last = way < 0 ? base + (WAYS - 1) * 2 : way;
+         System.arraycopy(table, base, table, base + 2, last - base);
+         table[base] = key;
+         table[base + 1] = value;
+      }
+   }
+
+   void forget(byte[] key) {
+      forget(hash(key));
+   }
+
+   void forget(long key) {
+      int set = set(key);
+      int end = (set + 1) * WAYS * 2;
+      synchronized (locks[set & (LOCKS - 1)]) {
+         int way = find(set, key);
+         if (way < 0) return;
+
+         System.arraycopy(table, way + 2, table, way, end - way - 2);
+         table[end - 2] = EMPTY;
+         table[end - 1] = EMPTY;
+      }
+   }
+
+   private static int nextPowerOfTwo(int value) {
+      return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+   }
+
+   private int set(long key) {
+      return (int) (key ^ (key >>> 32)) & setMask;
+   }
+
+   private int find(int set, long key) {
+      int base = set * WAYS * 2;
+      for (int i = base; i < base + WAYS * 2; i += 2) {
+         if (table[i] == key) return i;
+      }
+      return -1;
+   }
+}
@@ -0,0 +1,113 @@
+package io.gingersnapproject.cdc.cache.hotrod;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.infinispan.client.hotrod.exceptions.HotRodTimeoutException;
+import org.infinispan.client.hotrod.exceptions.RemoteIllegalLifecycleStateException;
+import org.infinispan.client.hotrod.exceptions.RemoteNodeSuspectException;
+import org.infinispan.client.hotrod.exceptions.TransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries the failed cache writes with exponential backoff and jitter.
+ * <p>Only the transient failures, like timeouts or connection problems, are retried. Each retry waits twice as long
+ * as the previous, up to the maximum backoff, with a random jitter keeping the writes from retrying in lockstep.
+ * The write fails once the attempts are exhausted, and only then the failure reaches the engine. The retries are
+ * scheduled without blocking the caller.</p>
+ */
+final class WriteRetry {
+   private static final Logger log = LoggerFactory.getLogger(WriteRetry.class);
+   private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "cache-write-retry");
+      thread.setDaemon(true);
+      return thread;
+   });
+
+   private final int maxRetries;
+   private final long backoff;
+   private final long maxBackoff;
+   private final Runnable onRetry;
+
+   /**
+    * @param maxRetries: The number of retries after the first attempt. Zero disables the retries.
+    * @param backoff: The milliseconds to wait before the first retry.
+    * @param maxBackoff: The maximum milliseconds to wait before a retry.
+    * @param onRetry: Invoked before every retry.
+    */
+   WriteRetry(int maxRetries, long backoff, long maxBackoff, Runnable onRetry) {
+      this.maxRetries = Math.max(maxRetries, 0);
+      this.backoff = Math.max(backoff, 1);
+      this.maxBackoff = Math.max(maxBackoff, this.backoff);
+      this.onRetry = onRetry;
+   }
+
+   /**
+    * Executes the write, retrying while it fails with a transient failure.
+    *
+    * @param write: Issues the write, invoked once per attempt.
+    * @return A stage completing with the first successful attempt, or the failure of the last attempt.
+    */
+   <T> CompletionStage<T> execute(Supplier<CompletionStage<T>> write) {
+      if (maxRetries == 0) return write.get();
+
+      CompletableFuture<T> result = new CompletableFuture<>();
+      attempt(write, 0, result);
+      return result;
+   }
+
+   private <T> void attempt(Supplier<CompletionStage<T>> write, int retry, CompletableFuture<T> result) {
+      CompletionStage<T> stage;
+      try {
+         stage = write.get();
+      } catch (Throwable t) {
+         stage = CompletableFuture.failedFuture(t);
+      }
+
+      stage.whenComplete((value, t) -> {
+         if (t == null) {
+            result.complete(value);
+            return;
+         }
+
+         if (retry >= maxRetries || !isRetryable(t)) {
+            result.completeExceptionally(t);
+            return;
+         }
+
+         long delay = delay(retry);
+         log.debug("Write failed, retrying in {} ms, attempt {} of {}", delay, retry + 1, maxRetries, t);
+         onRetry.run();
+         try {
+            scheduler.schedule(() -> attempt(write, retry + 1, result), delay, TimeUnit.MILLISECONDS);
+         } catch (Throwable e) {
+            result.completeExceptionally(t);
+         }
+      });
+   }
+
+   // Waits between half and the full exponential backoff.
+   long delay(int retry) {
+      // Shifting past the sign bit overflows, the backoff is at the maximum long before that.
+      long exponential = retry >= Long.numberOfLeadingZeros(backoff) - 1 ? maxBackoff : Math.min(maxBackoff, backoff << retry);
+      return exponential / 2 + ThreadLocalRandom.current().nextLong(exponential / 2 + 1);
+   }
+
+   static boolean isRetryable(Throwable t) {
+      if (t instanceof CompletionException && t.getCause() != null) return isRetryable(t.getCause());
+
+      return t instanceof TransportException
+            || t instanceof HotRodTimeoutException
+            || t instanceof RemoteNodeSuspectException
+            || t instanceof RemoteIllegalLifecycleStateException
+            || t instanceof IOException;
+   }
+}
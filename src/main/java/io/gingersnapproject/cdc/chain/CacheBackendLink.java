@@ -4,7 +4,6 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 
 import io.gingersnapproject.cdc.CacheBackend;
-import io.gingersnapproject.cdc.util.CompletionStages;
 
 import org.infinispan.commons.dataconversion.internal.Json;
 import org.slf4j.Logger;
@@ -24,33 +23,36 @@ public class CacheBackendLink extends EventProcessingChain {
    }
 
    @Override
-   public boolean process(Event event, EventContext ctx) {
-      return CompletionStages.join(processAsync(event));
-   }
-
-   private CompletionStage<Boolean> processAsync(Event event) {
-      Json jsonPayload = event.value();
-
-      Json jsonBefore = jsonPayload.at("before");
-      Json jsonAfter = jsonPayload.at("after");
+   public CompletionStage<Boolean> process(Event event, EventContext ctx) {
+      // Only the row the operation needs is decoded.
+      Operation op = event.operation();
+      if (op == null) {
+         log.info("Unrecognized operation [{}] for {}", event.op(), event);
+         return CompletableFuture.completedFuture(false);
+      }
 
-      log.info("BEFORE -> {}", jsonBefore);
-      log.info("AFTER -> {}", jsonAfter);
-      String op = jsonPayload.at("op").asString();
       switch (op) {
-         // create
-         case "c":
-         // snapshot
-         case "r":
-         // update
-         case "u":
-            return cache.put(jsonAfter).thenApply(ignore -> true);
-         //delete
-         case "d":
-            return cache.remove(jsonBefore).thenApply(ignore -> true);
+         case CREATE:
+         case READ:
+         case UPDATE:
+            Json jsonAfter = event.after();
+            log.trace("AFTER -> {}", jsonAfter);
+            return put(jsonAfter, ctx);
+         case DELETE:
+            Json jsonBefore = event.before();
+            log.trace("BEFORE -> {}", jsonBefore);
+            return remove(jsonBefore, ctx);
          default:
-            log.info("Unrecognized operation [{}] for {}", jsonPayload.at("op"), jsonPayload);
+            log.info("Unrecognized operation [{}] for {}", event.op(), event);
             return CompletableFuture.completedFuture(false);
       }
    }
+
+   private CompletionStage<Boolean> put(Json json, EventContext ctx) {
+      return ctx != null && ctx.isBulk() ? ctx.put(cache, json) : cache.put(json).thenApply(ignore -> true);
+   }
+
+   private CompletionStage<Boolean> remove(Json json, EventContext ctx) {
+      return ctx != null && ctx.isBulk() ? ctx.remove(cache, json) : cache.remove(json).thenApply(ignore -> true);
+   }
 }
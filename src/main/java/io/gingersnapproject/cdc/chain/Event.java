@@ -16,6 +16,10 @@ import org.infinispan.commons.dataconversion.internal.Json;
  *    <li><i>op</i>: Identify the kind of operation.</li>
  * </lu>
  *
+ * <p>Links should prefer the accessors for each property instead of navigating the {@link #value}. Subclasses can
+ * be lazy views over the underlying record, decoding only the parts a link reads. Events are not thread-safe, each
+ * one is processed by a single thread at a time.</p>
+ *
  * @author Jose Bolina
  */
 public class Event {
@@ -36,8 +40,61 @@ public class Event {
       return value;
    }
 
+   /**
+    * @return The operation identifier, or null if not present.
+    */
+   public String op() {
+      Json op = value().at("op");
+      return op == null || op.isNull() ? null : op.asString();
+   }
+
+   /**
+    * @return The decoded operation, or null if not present or not recognized.
+    */
+   public Operation operation() {
+      return Operation.of(op());
+   }
+
+   /**
+    * @return The table that originated the event, or null if not present.
+    */
+   public String table() {
+      Json source = value().at("source");
+      if (source == null || source.isNull()) return null;
+
+      Json table = source.at("table");
+      return table == null || table.isNull() ? null : table.asString();
+   }
+
+   /**
+    * @return true if the event is a schema change.
+    */
+   public boolean isDdl() {
+      Json ddl = value().at("ddl");
+      return ddl != null && !ddl.isNull();
+   }
+
+   /**
+    * @return The row before the change, or null for creations.
+    */
+   public Json before() {
+      return row("before");
+   }
+
+   /**
+    * @return The row after the change, or null for deletions.
+    */
+   public Json after() {
+      return row("after");
+   }
+
+   private Json row(String name) {
+      Json row = value().at(name);
+      return row == null || row.isNull() ? null : row;
+   }
+
    @Override
    public String toString() {
-      return "Event{" + "key=" + key + ", value=" + value + '}';
+      return "Event{" + "key=" + key() + ", value=" + value() + '}';
    }
 }
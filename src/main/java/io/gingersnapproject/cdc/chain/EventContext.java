@@ -1,3 +1,179 @@
 package io.gingersnapproject.cdc.chain;
 
-public class EventContext { }
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import io.gingersnapproject.cdc.CacheBackend;
+import io.gingersnapproject.cdc.util.AggregateCompletionStage;
+import io.gingersnapproject.cdc.util.CompletionStages;
+
+import org.infinispan.client.hotrod.exceptions.HotRodClientException;
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.infinispan.commons.util.concurrent.CompletableFutures;
+
+/**
+ * State shared by the links while processing events.
+ *
+ * <p>A context created with {@link #bulk()} collects the cache writes instead of applying them one by one. The
+ * owner of the context must {@link #flush()} it after all the events went through the chain, the stages returned
+ * by the links only complete after the flush finishes. A bulk context can be shared by multiple threads, and reused
+ * once flushed.</p>
+ *
+ * <p>When the bulk write fails, the writes are applied again one by one, so a single malformed write does not fail
+ * the other events sharing the context. A failure of the backend itself fails all the writes at once, without
+ * retrying them.</p>
+ *
+ * <p>Each {@link #scope(Object) scope} of a bulk context collects its writes apart, so the failure of a scope never
+ * applies the writes of another one by one.</p>
+ *
+ * @see CacheBackend#bulk(List, BitSet)
+ */
+public class EventContext {
+   private final Map<CacheBackend, PendingWrites> pending;
+   private final Map<Object, EventContext> scopes;
+
+   public EventContext() {
+      this(null, null);
+   }
+
+   private EventContext(Map<CacheBackend, PendingWrites> pending, Map<Object, EventContext> scopes) {
+      this.pending = pending;
+      this.scopes = scopes;
+   }
+
+   public static EventContext bulk() {
+      return new EventContext(new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+   }
+
+   /**
+    * @return The context collecting the writes of the owner, flushed together with this context. The same context
+    * when the writes are not collected.
+    */
+   public EventContext scope(Object owner) {
+      if (pending == null) return this;
+
+      return scopes.computeIfAbsent(owner, ignore -> bulk());
+   }
+
+   public boolean isBulk() {
+      return pending != null;
+   }
+
+   /**
+    * @return A stage completing with <code>true</code> after the write is applied.
+    */
+   CompletionStage<Boolean> put(CacheBackend backend, Json json) {
+      return add(backend, json, true);
+   }
+
+   CompletionStage<Boolean> remove(CacheBackend backend, Json json) {
+      return add(backend, json, false);
+   }
+
+   private CompletionStage<Boolean> add(CacheBackend backend, Json json, boolean put) {
+      CompletableFuture<Boolean> done = new CompletableFuture<>();
+      // A flush closes the writes it took, a write racing with it goes to the next writes of the backend.
+      while (!pending.computeIfAbsent(backend, ignore -> new PendingWrites()).add(json, done, put)) {
+         Thread.onSpinWait();
+      }
+      return done;
+   }
+
+   /**
+    * Submits all the collected writes to the respective backends.
+    *
+    * @return A stage that completes after all the backends applied the writes.
+    */
+   public CompletionStage<Void> flush() {
+      if (pending == null || (pending.isEmpty() && scopes.isEmpty())) return CompletableFutures.completedNull();
+
+      AggregateCompletionStage<Void> stage = CompletionStages.aggregateCompletionStage();
+      for (CacheBackend backend : pending.keySet()) {
+         PendingWrites writes = pending.remove(backend);
+         if (writes != null) stage.dependsOn(writes.flush(backend));
+      }
+      // The scopes are kept, the owners reuse them with the next writes.
+      for (EventContext scope : scopes.values()) {
+         stage.dependsOn(scope.flush());
+      }
+      return stage.freeze();
+   }
+
+   private static class PendingWrites {
+      private final List<Json> changes = new ArrayList<>();
+      private final BitSet removes = new BitSet();
+      // Completed with true, so the links return them without another stage.
+      private final List<CompletableFuture<Boolean>> done = new ArrayList<>();
+      // Set once flushed, guarded by this.
+      private boolean closed;
+
+      /**
+       * @return false if the writes were already flushed, without adding the write.
+       */
+      synchronized boolean add(Json json, CompletableFuture<Boolean> done, boolean put) {
+         if (closed) return false;
+
+         if (!put) removes.set(changes.size());
+         changes.add(json);
+         this.done.add(done);
+         return true;
+      }
+
+      synchronized CompletionStage<Void> flush(CacheBackend backend) {
+         closed = true;
+         CompletionStage<Void> bulk;
+         try {
+            bulk = backend.bulk(changes, removes);
+         } catch (Throwable t) {
+            bulk = CompletableFuture.failedFuture(t);
+         }
+
+         return bulk.handle((ignore, t) -> {
+            if (t == null) {
+               done.forEach(cf -> cf.complete(Boolean.TRUE));
+               return CompletableFutures.<Void>completedNull();
+            }
+
+            if (done.size() == 1 || isBackendFailure(t)) {
+               done.forEach(cf -> cf.completeExceptionally(t));
+               return CompletableFuture.<Void>failedFuture(t);
+            }
+
+            // A single malformed write fails the whole bulk. The writes are applied one by one, so each write
+            // completes with its own outcome.
+            AggregateCompletionStage<Void> stage = CompletionStages.aggregateCompletionStage();
+            for (int i = 0; i < changes.size(); i++) {
+               Function<Json, CompletionStage<Void>> write = removes.get(i) ? backend::remove : backend::put;
+               stage.dependsOn(single(changes.get(i), write, done.get(i)));
+            }
+            return stage.freeze();
+         }).thenCompose(Function.identity());
+      }
+
+      private static boolean isBackendFailure(Throwable t) {
+         if (t instanceof CompletionException) return isBackendFailure(t.getCause());
+
+         return t instanceof HotRodClientException;
+      }
+
+      private static CompletionStage<Boolean> single(Json json, Function<Json, CompletionStage<Void>> write,
+                                                     CompletableFuture<Boolean> done) {
+         try {
+            write.apply(json).whenComplete((ignore, t) -> {
+               if (t != null) done.completeExceptionally(t);
+               else done.complete(Boolean.TRUE);
+            });
+         } catch (Throwable t) {
+            done.completeExceptionally(t);
+         }
+         return done;
+      }
+   }
+}
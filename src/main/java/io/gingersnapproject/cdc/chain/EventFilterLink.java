@@ -1,8 +1,10 @@
 package io.gingersnapproject.cdc.chain;
 
+import java.util.concurrent.CompletionStage;
+
 import io.gingersnapproject.cdc.configuration.Rule;
 
-import org.infinispan.commons.dataconversion.internal.Json;
+import org.infinispan.commons.util.concurrent.CompletableFutures;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,14 +29,16 @@ public class EventFilterLink extends EventProcessingChain {
    }
 
    @Override
-   public boolean process(Event event, EventContext ctx) {
+   public CompletionStage<Boolean> process(Event event, EventContext ctx) {
       if (!acceptEvent(event)) {
          log.warn("Discarded event {}", event);
-         return false;
+         return CompletableFutures.completedFalse();
       }
 
-      String table = event.value().at("source").at("table").asString();
-      return rule.connector().table().equals(table) && processNext(event, ctx);
+      if (!rule.connector().table().equals(event.table())) {
+         return CompletableFutures.completedFalse();
+      }
+      return processNext(event, ctx);
    }
 
    /**
@@ -48,14 +52,8 @@ public class EventFilterLink extends EventProcessingChain {
     * @return true if accepted, and false otherwise.
     */
    private boolean acceptEvent(Event event) {
-      var json = event.value();
-      return !exists(json, "ddl") &&
-              exists(json, "source") &&
-              exists(json.at("source"), "table") &&
-              exists(json, "op");
-   }
-
-   private boolean exists(Json json, String property) {
-      return json.has(property) && !json.at(property).equals(Json.nil());
+      return !event.isDdl() &&
+              event.table() != null &&
+              event.op() != null;
    }
 }
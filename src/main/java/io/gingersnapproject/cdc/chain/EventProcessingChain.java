@@ -1,10 +1,17 @@
 package io.gingersnapproject.cdc.chain;
 
+import java.util.concurrent.CompletionStage;
+
+import org.infinispan.commons.util.concurrent.CompletableFutures;
+
 /**
  * The base class to create a link in the event processing chain.
  * <p>Each link {@link #process(Event, EventContext)} the {@link Event} and can abort the execution or
  * invokes {@link #processNext(Event, EventContext)} to proceed to the next link in the chain. Each link
  * can change and decorate the {@link Event} as needed.</p>
+ * <p>Processing is asynchronous. A link returns a {@link CompletionStage} which completes with <code>true</code>
+ * when the event was applied, or with <code>false</code> when the execution was aborted. Links must not block
+ * waiting on remote operations, since the same thread is shared to process many events.</p>
  * <p>
  * <h3>The ordering of links matters!</h3>
  *
@@ -14,11 +21,11 @@ package io.gingersnapproject.cdc.chain;
 public abstract class EventProcessingChain {
    private EventProcessingChain next;
 
-   public abstract boolean process(Event event, EventContext ctx);
+   public abstract CompletionStage<Boolean> process(Event event, EventContext ctx);
 
-   boolean processNext(Event event, EventContext ctx) {
+   CompletionStage<Boolean> processNext(Event event, EventContext ctx) {
       if (next == null) {
-         return true;
+         return CompletableFutures.completedTrue();
       }
       return next.process(event, ctx);
    }
@@ -1,17 +1,33 @@
 package io.gingersnapproject.cdc.chain;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import io.gingersnapproject.cdc.CacheBackend;
 import io.gingersnapproject.cdc.configuration.Rule;
 
 public class EventProcessingChainFactory {
 
    public static EventProcessingChain create(Rule rule, CacheBackend backend) {
-      return EventProcessingChain.chained(
-            // The filter link should always be the head.
-            new EventFilterLink(rule),
+      return create(rule, backend, () -> {});
+   }
+
+   /**
+    * Creates the processing for the rule, a single fused step unless custom links are provided.
+    *
+    * @param onSkippedWrite: Invoked for every update skipped as unchanged.
+    * @param links: Custom links, running after the filter and before writing the event.
+    */
+   public static EventProcessingChain create(Rule rule, CacheBackend backend, Runnable onSkippedWrite,
+                                             EventProcessingChain ... links) {
+      if (links.length == 0) return new RuleProcessor(rule, backend, onSkippedWrite);
+
+      List<EventProcessingChain> chain = new ArrayList<>(List.of(links));
+      chain.add(new UnchangedUpdateLink(onSkippedWrite));
+      // The cache link should always be last.
+      chain.add(new CacheBackendLink(backend));
 
-            // The cache link should always be last.
-            new CacheBackendLink(backend)
-      );
+      // The filter link should always be the head.
+      return EventProcessingChain.chained(new EventFilterLink(rule), chain.toArray(EventProcessingChain[]::new));
    }
 }
@@ -0,0 +1,248 @@
+package io.gingersnapproject.cdc.chain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import io.gingersnapproject.cdc.configuration.Rule;
+import io.gingersnapproject.cdc.util.Serialization;
+
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.infinispan.commons.dataconversion.internal.Json;
+
+/**
+ * Creates the {@link Event} from a change record, reading only the fields the links use.
+ * <p>Converting the whole record with {@link Serialization#convert(Struct)} builds the Json for every column of both
+ * row images and all the source information, even though the rule projects only a few columns. Instead, an accessor
+ * is compiled for each value {@link Schema} instance with the fields for the operation, the source table and the
+ * key and value columns. The event value contains only these properties, with the same layout as the full
+ * conversion.</p>
+ *
+ * <p>The events are lazy views over the record. Each property is read from the {@link Struct} only when a link
+ * accesses it, so filtered events decode only the operation and the table, and deletes never decode the row after
+ * the change.</p>
+ *
+ * <p>Records that are not data changes, like schema changes, are still converted entirely.</p>
+ *
+ * @see Event
+ */
+public class EventProjection {
+
+   // Null to keep all the columns.
+   private final Set<String> columns;
+   private final Consumer<Schema> onSchemaChange;
+   private volatile Accessor accessor;
+
+   public EventProjection(Rule rule) {
+      this(rule, ignore -> { });
+   }
+
+   /**
+    * @param onSchemaChange: Receives the row schema before creating the first event with it.
+    */
+   public EventProjection(Rule rule, Consumer<Schema> onSchemaChange) {
+      this.onSchemaChange = onSchemaChange;
+      this.columns = rule.valueColumns()
+            .map(values -> {
+               Set<String> set = new LinkedHashSet<>(rule.keyColumns());
+               set.addAll(values);
+               return set;
+            })
+            .orElse(null);
+   }
+
+   public Event create(SourceRecord record) {
+      Object value = record.value();
+      if (value instanceof Struct struct) {
+         Accessor current = accessor(struct.schema());
+         if (current.op != null) return new RecordView(record.key(), struct, current);
+
+         // Not a data change event, the record is converted entirely.
+         return new Event(convert(record.key()), Serialization.convert(struct));
+      }
+
+      return new Event(convert(record.key()), convert(value));
+   }
+
+   private Accessor accessor(Schema schema) {
+      // The connector reuses the schema instance until the table changes, so checking the last one is enough.
+      Accessor current = accessor;
+      if (current == null || current.schema != schema) {
+         current = new Accessor(schema, columns);
+         if (current.after != null) onSchemaChange.accept(current.after.schema());
+         accessor = current;
+      }
+      return current;
+   }
+
+   private static Json convert(Object object) {
+      if (object instanceof Struct)
+         return Serialization.convert((Struct) object);
+
+      // Happens only during tests.
+      if (object instanceof Json) return (Json) object;
+
+      throw new IllegalStateException("Object is not a struct");
+   }
+
+   private static final class Accessor {
+      private static final Operation[] OPERATIONS = Operation.values();
+      private final Schema schema;
+      private final Field op;
+      private final Field source;
+      private final Field table;
+      private final Field before;
+      private final Field after;
+      private final List<Field> beforeColumns;
+      private final List<Field> afterColumns;
+      // The operation identifier instances seen, by operation. The connector reuses the same instance for each kind.
+      private final String[] codes = new String[OPERATIONS.length];
+
+      private Accessor(Schema schema, Collection<String> columns) {
+         this.schema = schema;
+         Field op = schema.field("op");
+         Field source = schema.field("source");
+         Field before = schema.field("before");
+         Field after = schema.field("after");
+         Field table = source != null && source.schema().type() == Schema.Type.STRUCT
+               ? source.schema().field("table")
+               : null;
+
+         // Not a data change event, the accessor falls back to the complete conversion.
+         if (schema.field("ddl") != null || op == null || table == null || before == null || after == null) {
+            this.op = this.source = this.table = this.before = this.after = null;
+            this.beforeColumns = this.afterColumns = null;
+            return;
+         }
+
+         this.op = op;
+         this.source = source;
+         this.table = table;
+         this.before = before;
+         this.after = after;
+         this.beforeColumns = columns(before.schema(), columns);
+         this.afterColumns = columns(after.schema(), columns);
+      }
+
+      private static List<Field> columns(Schema row, Collection<String> columns) {
+         if (columns == null) return row.fields();
+
+         List<Field> fields = new ArrayList<>(columns.size());
+         for (String column : columns) {
+            Field field = row.field(column);
+            if (field != null) fields.add(field);
+         }
+         return fields;
+      }
+
+      Operation operation(String op) {
+         for (int i = 0; i < codes.length; i++) {
+            if (codes[i] == op) return OPERATIONS[i];
+         }
+
+         Operation operation = Operation.of(op);
+         // Racing threads store the same identifier, at worst it is decoded again.
+         if (operation != null) codes[operation.ordinal()] = op;
+         return operation;
+      }
+   }
+
+   private static final class RecordView extends Event {
+      private final Object record;
+      private final Struct struct;
+      private final Accessor accessor;
+      private Json key;
+      private Json value;
+      private Json before;
+      private Json after;
+      private boolean beforeDecoded;
+      private boolean afterDecoded;
+
+      private RecordView(Object key, Struct struct, Accessor accessor) {
+         super(null, null);
+         this.record = key;
+         this.struct = struct;
+         this.accessor = accessor;
+      }
+
+      @Override
+      public Json key() {
+         if (key == null) key = convert(record);
+         return key;
+      }
+
+      @Override
+      public Json value() {
+         if (value != null) return value;
+
+         Json json = Json.object();
+         String op = op();
+         if (op != null) json.set("op", op);
+
+         Struct info = (Struct) struct.get(accessor.source);
+         if (info != null) {
+            Json projected = Json.object();
+            String table = table();
+            if (table != null) projected.set("table", table);
+            json.set("source", projected);
+         }
+
+         if (before() != null) json.set("before", before());
+         if (after() != null) json.set("after", after());
+         value = json;
+         return json;
+      }
+
+      @Override
+      public String op() {
+         Object op = struct.get(accessor.op);
+         return op == null ? null : op.toString();
+      }
+
+      @Override
+      public Operation operation() {
+         Object op = struct.get(accessor.op);
+         return op == null ? null : accessor.operation(op.toString());
+      }
+
+      @Override
+      public String table() {
+         Struct info = (Struct) struct.get(accessor.source);
+         if (info == null) return null;
+
+         Object table = info.get(accessor.table);
+         return table == null ? null : table.toString();
+      }
+
+      @Override
+      public boolean isDdl() {
+         return false;
+      }
+
+      @Override
+      public Json before() {
+         if (!beforeDecoded) {
+            Struct row = (Struct) struct.get(accessor.before);
+            before = row == null ? null : Serialization.convert(row, accessor.beforeColumns);
+            beforeDecoded = true;
+         }
+         return before;
+      }
+
+      @Override
+      public Json after() {
+         if (!afterDecoded) {
+            Struct row = (Struct) struct.get(accessor.after);
+            after = row == null ? null : Serialization.convert(row, accessor.afterColumns);
+            afterDecoded = true;
+         }
+         return after;
+      }
+   }
+}
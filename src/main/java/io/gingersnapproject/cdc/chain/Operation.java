@@ -0,0 +1,32 @@
+package io.gingersnapproject.cdc.chain;
+
+/**
+ * The kind of change of an {@link Event}, decoded from its operation identifier.
+ *
+ * @see Event#operation()
+ */
+public enum Operation {
+   CREATE,
+   /**
+    * A row read during the snapshot.
+    */
+   READ,
+   UPDATE,
+   DELETE;
+
+   /**
+    * @param op: The operation identifier of the event.
+    * @return The operation, or null if not recognized.
+    */
+   public static Operation of(String op) {
+      if (op == null || op.length() != 1) return null;
+
+      return switch (op.charAt(0)) {
+         case 'c' -> CREATE;
+         case 'r' -> READ;
+         case 'u' -> UPDATE;
+         case 'd' -> DELETE;
+         default -> null;
+      };
+   }
+}
@@ -0,0 +1,83 @@
+package io.gingersnapproject.cdc.chain;
+
+import java.util.concurrent.CompletionStage;
+
+import io.gingersnapproject.cdc.CacheBackend;
+import io.gingersnapproject.cdc.configuration.Rule;
+
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.infinispan.commons.util.concurrent.CompletableFutures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single step applying the events of a rule to the {@link CacheBackend}.
+ * <p>Does the same as chaining the {@link EventFilterLink}, {@link UnchangedUpdateLink} and {@link CacheBackendLink},
+ * without walking the links for each event. The rule's table is read once, and the connector reuses the same table
+ * name instance for the events of a table, so after the first match the table is compared by identity. The
+ * operation is read as an {@link Operation}, decoded once by the event, and every branch is resolved in this
+ * class.</p>
+ *
+ * <p>It must be the only step, use the links to add custom processing.</p>
+ *
+ * @see EventProcessingChainFactory
+ */
+final class RuleProcessor extends EventProcessingChain {
+   private static final Logger log = LoggerFactory.getLogger(RuleProcessor.class);
+
+   private final String table;
+   private final CacheBackend cache;
+   private final Runnable onSkipped;
+   // The last table instance equal to the rule's table.
+   private volatile String matched;
+
+   RuleProcessor(Rule rule, CacheBackend cache, Runnable onSkipped) {
+      this.table = rule.connector().table();
+      this.cache = cache;
+      this.onSkipped = onSkipped;
+   }
+
+   @Override
+   public CompletionStage<Boolean> process(Event event, EventContext ctx) {
+      // The same checks as the EventFilterLink, an event without an operation is discarded.
+      String source = event.table();
+      if (event.isDdl() || source == null || event.op() == null) {
+         log.warn("Discarded event {}", event);
+         return CompletableFutures.completedFalse();
+      }
+
+      if (source != matched) {
+         if (!table.equals(source)) return CompletableFutures.completedFalse();
+         matched = source;
+      }
+
+      Operation operation = event.operation();
+      if (operation == null) {
+         log.info("Unrecognized operation [{}] for {}", event.op(), event);
+         return CompletableFutures.completedFalse();
+      }
+
+      if (operation == Operation.DELETE) {
+         Json before = event.before();
+         log.trace("BEFORE -> {}", before);
+         return ctx != null && ctx.isBulk() ? ctx.remove(cache, before) : applied(cache.remove(before));
+      }
+
+      if (operation == Operation.UPDATE) {
+         Json previous = event.before();
+         if (previous != null && previous.equals(event.after())) {
+            log.trace("Skipped unchanged update {}", event);
+            onSkipped.run();
+            return CompletableFutures.completedFalse();
+         }
+      }
+
+      Json after = event.after();
+      log.trace("AFTER -> {}", after);
+      return ctx != null && ctx.isBulk() ? ctx.put(cache, after) : applied(cache.put(after));
+   }
+
+   private static CompletionStage<Boolean> applied(CompletionStage<Void> stage) {
+      return stage.thenApply(ignore -> true);
+   }
+}
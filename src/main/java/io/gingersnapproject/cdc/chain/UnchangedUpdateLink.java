@@ -0,0 +1,42 @@
+package io.gingersnapproject.cdc.chain;
+
+import java.util.concurrent.CompletionStage;
+
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.infinispan.commons.util.concurrent.CompletableFutures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Link responsible for aborting updates that do not change the cache entry.
+ * <p>The {@link EventProjection} keeps only the key and value columns of the rule in the row images. An update
+ * changing only other columns has equal images before and after, and writing it would put the same entry again.
+ * Updates without the image before the change are always written.</p>
+ *
+ * @see EventProcessingChain
+ */
+public class UnchangedUpdateLink extends EventProcessingChain {
+   private static final Logger log = LoggerFactory.getLogger(UnchangedUpdateLink.class);
+
+   private final Runnable onSkipped;
+
+   /**
+    * @param onSkipped: Invoked for every update skipped.
+    */
+   public UnchangedUpdateLink(Runnable onSkipped) {
+      this.onSkipped = onSkipped;
+   }
+
+   @Override
+   public CompletionStage<Boolean> process(Event event, EventContext ctx) {
+      if (event.operation() == Operation.UPDATE) {
+         Json before = event.before();
+         if (before != null && before.equals(event.after())) {
+            log.trace("Skipped unchanged update {}", event);
+            onSkipped.run();
+            return CompletableFutures.completedFalse();
+         }
+      }
+      return processNext(event, ctx);
+   }
+}
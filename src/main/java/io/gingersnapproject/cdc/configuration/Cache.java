@@ -2,6 +2,8 @@ package io.gingersnapproject.cdc.configuration;
 
 import java.net.URI;
 
+import io.smallrye.config.WithDefault;
+
 public interface Cache {
 
    static String property(String p) {
@@ -9,4 +11,30 @@ public interface Cache {
    }
 
    URI uri();
+
+   /**
+    * The maximum number of entries written in a single bulk operation to the cache.
+    */
+   @WithDefault("1000")
+   int maxBatchSize();
+
+   /**
+    * The number of times a write failing with a transient failure, like a timeout or a connection problem, is
+    * retried. Once exhausted, the engine restarts and replays the changes. Zero disables the retries.
+    */
+   @WithDefault("3")
+   int maxRetries();
+
+   /**
+    * The milliseconds to wait before retrying a write the first time. Each retry waits twice the previous, with some
+    * random jitter.
+    */
+   @WithDefault("100")
+   long retryBackoff();
+
+   /**
+    * The maximum milliseconds to wait before retrying a write.
+    */
+   @WithDefault("5000")
+   long maxRetryBackoff();
 }
@@ -16,6 +16,8 @@ public interface Configuration {
 
    Cache cache();
 
+   Processing processing();
+
    @WithName("rule")
    Map<String, Rule> rules();
 }
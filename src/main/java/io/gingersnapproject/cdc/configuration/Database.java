@@ -21,4 +21,11 @@ public interface Database {
    String password();
 
    Optional<String> database();
+
+   /**
+    * The table receiving the signals of the engines, as schema.table, with the columns id, type and data. Once the
+    * rules capture more tables, an engine signals an incremental snapshot of only the added tables. Without it, the
+    * engine snapshots all the tables again.
+    */
+   Optional<String> signalTable();
 }
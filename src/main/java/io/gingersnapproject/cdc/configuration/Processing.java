@@ -0,0 +1,137 @@
+package io.gingersnapproject.cdc.configuration;
+
+import io.smallrye.config.WithDefault;
+
+/**
+ * Configuration for how each engine processes the change events before writing to the cache.
+ */
+public interface Processing {
+
+   /**
+    * The number of threads processing the events of all the engines. Zero or less uses twice the available
+    * processors, with a minimum of four.
+    */
+   @WithDefault("0")
+   int processingThreads();
+
+   /**
+    * The maximum number of engines running at once. Each engine runs in a thread of its own, outside the processing
+    * threads. An engine starting past the limit fails and is retried later. Zero or less is unbounded.
+    */
+   @WithDefault("0")
+   int engineThreads();
+
+   /**
+    * Whether each member has a single engine capturing the tables of all the rules, instead of an engine for each rule.
+    * The database keeps a single replication slot or binlog reader for each member, and the engine routes the changes
+    * of each table to the rules capturing it. Changing the rules restarts the engine from the same offsets, which
+    * snapshots only the added tables through the signal table of the database, or all the tables without it. Each
+    * rule keeps its own write-behind window, while the most demanding rule sets the weight of the engine. A table
+    * captured by rules with different windows uses the shortest.
+    */
+   @WithDefault("false")
+   boolean multiplex();
+
+   /**
+    * Whether the changes are captured once for all the members, instead of an engine for each member. Each change is
+    * read and encoded once, and written to every member. The source offset advances once all the members applied the
+    * change. With a catch-up budget, the members join and leave the running capture, a member joining copies the
+    * caches of another member. Without it, a member joining restarts the capture, which snapshots the tables again.
+    * The member keeping the offsets leaving always starts another capture, from a snapshot.
+    */
+   @WithDefault("false")
+   boolean fanOut();
+
+   /**
+    * The maximum number of keys each member queues while slow or failing, when fanning out. A lagging member does
+    * not stall the others, its queue keeps the latest change of each key and drains once the member accepts writes
+    * again. Past the limit, the queue is dropped and the member copies the caches of another member up to date, once
+    * it accepts writes. Zero or less restarts the capture once any member fails.
+    *
+    * <p>The changes queued count as applied, so the source offset advances past them. The member is marked as lagging
+    * next to the offsets before, and unmarked once it caught up. A member still marked when the capture starts again
+    * copies the caches of another member, or the capture snapshots the tables again if no member is up to date.</p>
+    */
+   @WithDefault("100000")
+   int catchUpKeys();
+
+   /**
+    * The maximum number of writes in-flight to each member, when fanning out with a catch-up queue. A member with more
+    * writes in-flight is slow, and starts lagging instead of stalling the others. Zero or less only lags the members
+    * failing writes.
+    */
+   @WithDefault("10000")
+   int memberInFlight();
+
+   /**
+    * The number of ordered lanes each engine partitions the events by key.
+    */
+   @WithDefault("8")
+   int lanes();
+
+   /**
+    * The number of batches each engine has in-flight. With more than one, the engine reads and converts the next
+    * batch while the previous is still being written.
+    */
+   @WithDefault("2")
+   int pipelineDepth();
+
+   /**
+    * The milliseconds between the heartbeats of each engine. The engine commits the changes written as it receives
+    * the next batch, a heartbeat lets an idle engine commit the changes already written. Zero or less disables the
+    * heartbeats, and the last changes commit only once the database changes again.
+    */
+   @WithDefault("5000")
+   long heartbeatInterval();
+
+   /**
+    * The maximum number of writes in-flight for all the engines. Once reached, engines stop accepting batches until
+    * writes complete. Zero or less is unbounded.
+    */
+   @WithDefault("100000")
+   int maxInFlight();
+
+   /**
+    * The maximum number of writes in-flight for each engine, that is, each rule and member. A rule can override it.
+    * Zero or less is unbounded.
+    */
+   @WithDefault("10000")
+   int maxInFlightPerEngine();
+
+   /**
+    * Whether to apply each database transaction as a single bulk write, after the transaction ends. Readers never
+    * observe a partially applied transaction, at the cost of holding the changes until the end and writing the
+    * transactions one at a time.
+    */
+   @WithDefault("false")
+   boolean transactions();
+
+   /**
+    * The number of records of a batch each engine deduplicates and dispatches at a time. Bounds the memory to process
+    * large batches, like during the snapshot. Together with the maximum writes in-flight, the memory does not depend
+    * on the batch size. Zero or less processes the whole batch at once. Does not apply to transactions.
+    */
+   @WithDefault("0")
+   int chunkSize();
+
+   /**
+    * The number of events each lane holds until written, rounded to the next power of two. Once full, the engine
+    * waits for the lane according to the wait strategy.
+    */
+   @WithDefault("1024")
+   int laneCapacity();
+
+   /**
+    * How the engine waits for room in a full lane.
+    */
+   @WithDefault("SLEEP")
+   WaitStrategy waitStrategy();
+
+   /**
+    * The maximum number of events failing processing kept in the dead-letter store, for all the engines. The failed
+    * events are skipped, instead of restarting the engine to replay them. Failures writing to the cache service still
+    * restart the engine. Zero or less disables the store, and any failure restarts the engine.
+    */
+   @WithDefault("1000")
+   int deadLetters();
+}
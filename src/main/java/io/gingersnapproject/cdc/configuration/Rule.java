@@ -2,6 +2,7 @@ package io.gingersnapproject.cdc.configuration;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalInt;
 
 import io.gingersnapproject.proto.api.config.v1alpha1.KeyFormat;
 import io.smallrye.config.WithDefault;
@@ -20,4 +21,36 @@ public interface Rule {
 
       Optional<List<String>> valueColumns();
 
+      /**
+       * Overrides the maximum number of writes in-flight for each member of this rule.
+       */
+      OptionalInt maxInFlight();
+
+      @WithDefault("JSON")
+      ValueEncoding valueEncoding();
+
+      /**
+       * The number of keys remembering the value last written, to skip writing the same value again. Rounded up to a
+       * power of two, each key takes 16 bytes, and the least recently written keys are forgotten once full. Zero
+       * disables it.
+       */
+      @WithDefault("0")
+      int fingerprints();
+
+      /**
+       * The share of the processing threads for this rule, relative to the other rules. While several rules have
+       * events waiting, each runs this many processing tasks on its turn.
+       */
+      @WithDefault("1")
+      int weight();
+
+      /**
+       * The milliseconds to hold the changes before writing, keeping only the latest change of each key. A row
+       * changing many times within the window is written once, and the cache lags the database by up to the window.
+       * The offsets are committed only after the write completes. Zero writes right away. Does not apply to
+       * transactions.
+       */
+      @WithDefault("0")
+      long writeBehind();
+
 }
@@ -0,0 +1,19 @@
+package io.gingersnapproject.cdc.configuration;
+
+/**
+ * How the rule stores the values in the cache.
+ * <p>The encoding only applies when the cache is created. A rule whose cache already exists with another media type
+ * fails to start.</p>
+ */
+public enum ValueEncoding {
+   /**
+    * Json text, with the <code>text/plain</code> media type.
+    */
+   JSON,
+
+   /**
+    * Protobuf messages, with the <code>application/x-protostream</code> media type. The schema is generated from the
+    * captured table and registered with the cache service.
+    */
+   PROTOSTREAM
+}
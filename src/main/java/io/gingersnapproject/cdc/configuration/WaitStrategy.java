@@ -0,0 +1,21 @@
+package io.gingersnapproject.cdc.configuration;
+
+/**
+ * How the engine waits for room to hand over the change events for processing.
+ */
+public enum WaitStrategy {
+   /**
+    * Spins without giving up the CPU. The lowest latency, but keeps a core busy while waiting.
+    */
+   SPIN,
+
+   /**
+    * Spins yielding the CPU to other threads in between.
+    */
+   YIELD,
+
+   /**
+    * Parks the thread for a short while in between. The least CPU usage, with higher latency.
+    */
+   SLEEP
+}
@@ -2,8 +2,17 @@ package io.gingersnapproject.cdc.connector;
 
 import static io.debezium.connector.sqlserver.SqlServerConnectorConfig.DATABASE_NAMES;
 
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
 import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import io.debezium.connector.oracle.OracleConnector;
 import io.gingersnapproject.cdc.configuration.Connector;
@@ -12,54 +21,81 @@ import io.gingersnapproject.cdc.configuration.Database;
 import io.debezium.connector.mysql.MySqlConnector;
 import io.debezium.connector.postgresql.PostgresConnector;
 import io.debezium.connector.sqlserver.SqlServerConnector;
+import org.infinispan.commons.dataconversion.internal.Json;
 
 public enum DatabaseProvider {
    MYSQL {
       @Override
-      public Properties databaseProperties(Connector connector, Database database) {
+      public Properties databaseProperties(Collection<Connector> connectors, Database database) {
          Properties properties = new Properties();
          properties.setProperty("connector.class", MySqlConnector.class.getCanonicalName());
-         properties.setProperty("table.include.list", String.format("%s.%s", connector.schema(), connector.table()));
+         properties.setProperty("table.include.list", tables(connectors, database));
 
          // MySQL requires a unique id, this can change between restarts.
          properties.setProperty("database.server.id", String.valueOf(Math.abs(new Random().nextInt())));
+         signals(properties, database);
 
          return properties;
       }
+
+      @Override
+      public String jdbcUrl(Database database) {
+         return String.format("jdbc:mysql://%s:%d/%s", database.host(), database.port(), database.database().orElse(""));
+      }
    },
    POSTGRESQL {
       @Override
-      public Properties databaseProperties(Connector connector, Database database) {
+      public Properties databaseProperties(Collection<Connector> connectors, Database database) {
          Properties properties = new Properties();
          properties.setProperty("connector.class", PostgresConnector.class.getCanonicalName());
          properties.setProperty("database.dbname", database.database().orElseThrow(() -> new IllegalStateException("Postgres requires database name.")));
-         properties.setProperty("schema.include.list", connector.schema());
-         properties.setProperty("table.include.list", String.format("%s.%s", connector.schema(), connector.table()));
+         properties.setProperty("schema.include.list", schemas(connectors, database));
+         properties.setProperty("table.include.list", tables(connectors, database));
 
          // Using `pgoutput` to parse the output should use a filtered publication.
          // This will create a new publication for the filtered tables, which debezium listens.
          // The filter is based on `schema.include/exclude.list` and `table.include/exclude.list`.
          properties.setProperty("publication.autocreate.mode", "filtered");
          properties.setProperty("plugin.name", "pgoutput");
+         signals(properties, database);
 
          return properties;
       }
+
+      @Override
+      public String jdbcUrl(Database database) {
+         return String.format("jdbc:postgresql://%s:%d/%s", database.host(), database.port(),
+               database.database().orElseThrow(() -> new IllegalStateException("Postgres requires database name.")));
+      }
    },
    SQLSERVER {
       @Override
-      public Properties databaseProperties(Connector connector, Database database) {
+      public Properties databaseProperties(Collection<Connector> connectors, Database database) {
          Properties properties = new Properties();
          String databaseName = database.database().orElseThrow(() -> new IllegalStateException("SQL Server requires database name."));
          properties.setProperty("connector.class", SqlServerConnector.class.getCanonicalName());
          properties.setProperty(DATABASE_NAMES.name(), databaseName);
-         properties.setProperty("table.include.list", String.format("%s.%s", connector.schema(), connector.table()));
+         properties.setProperty("table.include.list", tables(connectors, database));
          properties.setProperty("database.encrypt", "false");
+         signals(properties, database);
          return properties;
       }
+
+      @Override
+      public String jdbcUrl(Database database) {
+         return String.format("jdbc:sqlserver://%s:%d;databaseName=%s;encrypt=false", database.host(), database.port(),
+               database.database().orElseThrow(() -> new IllegalStateException("SQL Server requires database name.")));
+      }
+
+      @Override
+      public String dataCollection(String table, Database database) {
+         // The tables are identified in the database.
+         return database.database().orElseThrow() + "." + table;
+      }
    },
    ORACLE {
       @Override
-      public Properties databaseProperties(Connector connector, Database database) {
+      public Properties databaseProperties(Collection<Connector> connectors, Database database) {
          Properties properties = new Properties();
          String databaseName = database.database().orElseThrow(() -> new IllegalStateException("Oracle DB requires database name."));
          String[] dbNameParts = databaseName.split("\\.");
@@ -72,13 +108,100 @@ public enum DatabaseProvider {
             properties.setProperty("database.dbname", dbNameParts[0]);
             properties.setProperty("database.pdb.name", dbNameParts[1]);
          }
-         properties.setProperty("schema.include.list", connector.schema());
-         properties.setProperty("table.include.list", String.format("%s.%s", connector.schema(), connector.table()));
+         properties.setProperty("schema.include.list", schemas(connectors, database));
+         properties.setProperty("table.include.list", tables(connectors, database));
          properties.setProperty("log.mining.strategy", "online_catalog");
+         signals(properties, database);
          return properties;
       }
+
+      @Override
+      public String jdbcUrl(Database database) {
+         return String.format("jdbc:oracle:thin:@//%s:%d/%s", database.host(), database.port(), container(database));
+      }
+
+      @Override
+      public String dataCollection(String table, Database database) {
+         // The tables are identified in the pluggable database, if any.
+         return container(database) + "." + table;
+      }
+
+      private String container(Database database) {
+         String[] dbNameParts = database.database()
+               .orElseThrow(() -> new IllegalStateException("Oracle DB requires database name."))
+               .split("\\.");
+         return dbNameParts[dbNameParts.length - 1];
+      }
    }
    ;
 
-   public abstract Properties databaseProperties(Connector connector, Database database);
+   public Properties databaseProperties(Connector connector, Database database) {
+      return databaseProperties(List.of(connector), database);
+   }
+
+   /**
+    * Creates the properties of a single connector capturing the tables of all the given connectors.
+    */
+   public abstract Properties databaseProperties(Collection<Connector> connectors, Database database);
+
+   /**
+    * @return The JDBC URL of the database, to write the signals.
+    */
+   public abstract String jdbcUrl(Database database);
+
+   /**
+    * Identifies a table in the signals, as the connector does.
+    *
+    * @param table: The table, as schema.table.
+    */
+   public String dataCollection(String table, Database database) {
+      return table;
+   }
+
+   /**
+    * Signals the engines capturing the tables to snapshot the given tables incrementally, while streaming the changes.
+    * The engine reads the signal once it streams the insert, a stopped engine reads it once started.
+    *
+    * @param tables: The tables to snapshot, as schema.table.
+    */
+   public void incrementalSnapshot(Collection<String> tables, Database database) throws SQLException {
+      String signalTable = database.signalTable()
+            .orElseThrow(() -> new IllegalStateException("Incremental snapshots require a signal table."));
+      Json collections = Json.array();
+      for (String table : tables) {
+         collections.add(dataCollection(table, database));
+      }
+      Json data = Json.object()
+            .set("data-collections", collections)
+            .set("type", "incremental");
+      try (Connection connection = DriverManager.getConnection(jdbcUrl(database), database.username(), database.password());
+           PreparedStatement insert = connection.prepareStatement(
+                 "INSERT INTO " + signalTable + " (id, type, data) VALUES (?, ?, ?)")) {
+         insert.setString(1, UUID.randomUUID().toString());
+         insert.setString(2, "execute-snapshot");
+         insert.setString(3, data.toString());
+         insert.executeUpdate();
+      }
+   }
+
+   // The engines read the signals from the changes of the signal table.
+   private static void signals(Properties properties, Database database) {
+      database.signalTable().ifPresent(table ->
+            properties.setProperty("signal.data.collection", database.type().dataCollection(table, database)));
+   }
+
+   private static String tables(Collection<Connector> connectors, Database database) {
+      return Stream.concat(connectors.stream()
+                  .map(connector -> String.format("%s.%s", connector.schema(), connector.table())),
+                  database.signalTable().stream())
+            .distinct()
+            .collect(Collectors.joining(","));
+   }
+
+   private static String schemas(Collection<Connector> connectors, Database database) {
+      return Stream.concat(connectors.stream().map(Connector::schema),
+                  database.signalTable().stream().map(table -> table.substring(0, table.indexOf('.'))))
+            .distinct()
+            .collect(Collectors.joining(","));
+   }
 }
@@ -1,98 +1,335 @@
 package io.gingersnapproject.cdc.consumer;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 import io.gingersnapproject.cdc.EngineWrapper;
 import io.gingersnapproject.cdc.chain.Event;
 import io.gingersnapproject.cdc.chain.EventContext;
 import io.gingersnapproject.cdc.chain.EventProcessingChain;
-import io.gingersnapproject.cdc.util.CompletionStages;
-import io.gingersnapproject.cdc.util.Serialization;
+import io.gingersnapproject.cdc.chain.EventProjection;
+import io.gingersnapproject.cdc.configuration.Processing;
+import io.gingersnapproject.cdc.configuration.WaitStrategy;
+import io.gingersnapproject.cdc.deadletter.DeadLetters;
 
 import io.debezium.engine.ChangeEvent;
 import io.debezium.engine.DebeziumEngine;
-import org.apache.kafka.connect.data.Struct;
 import org.apache.kafka.connect.source.SourceRecord;
 import org.infinispan.client.hotrod.exceptions.HotRodClientException;
-import org.infinispan.commons.dataconversion.internal.Json;
+import org.infinispan.commons.util.concurrent.CompletableFutures;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class BatchConsumer implements DebeziumEngine.ChangeConsumer<ChangeEvent<SourceRecord, SourceRecord>> {
    private static final Logger log = LoggerFactory.getLogger(BatchConsumer.class);
    private final EngineWrapper engine;
-   private final EventProcessingChain chain;
-   private final Executor executor;
+   private final Routes routes;
+   // The lanes of each write-behind window, the changes of a rule only wait for the window of the rule.
+   private final Map<Long, Lanes> lanes;
+   // The lanes of all the changes when the rules share the window, or null.
+   private final Lanes shared;
+   private final CommitWatermark watermark;
+   private final Semaphore batches;
+   private final InFlightWrites writes;
+   // Null unless the changes are applied per transaction.
+   private final Transactions transactions;
+   // Null when the failed events must fail the engine.
+   private final DeadLetters deadLetters;
+   private final int chunkSize;
 
-   public BatchConsumer(EngineWrapper engine, EventProcessingChain chain, Executor executor) {
-      this.chain = chain;
+   public BatchConsumer(EngineWrapper engine, EventProcessingChain chain, EventProjection projection,
+                        Predicate<SourceRecord> filter, Executor executor, int lanes, int pipelineDepth,
+                        InFlightWrites writes) {
+      this(engine, chain, projection, filter, executor, lanes, pipelineDepth, writes, false, null, 0);
+   }
+
+   /**
+    * @param transactional: Whether to apply each database transaction as a single bulk write. Requires the connector
+    *                     to provide the transaction metadata.
+    * @param deadLetters: Stores the events failing for reasons other than the cache service, skipping them. Null to
+    *                   fail the engine instead.
+    * @param chunkSize: The number of records deduplicated and dispatched at a time, or zero or less for the whole
+    *                 batch.
+    */
+   public BatchConsumer(EngineWrapper engine, EventProcessingChain chain, EventProjection projection,
+                        Predicate<SourceRecord> filter, Executor executor, int lanes, int pipelineDepth,
+                        InFlightWrites writes, boolean transactional, DeadLetters deadLetters, int chunkSize) {
+      this(engine, Routes.single(null, filter, projection, chain), executor, lanes, pipelineDepth, writes,
+            transactional, deadLetters, chunkSize, Lanes.DEFAULT_CAPACITY, WaitStrategy.SLEEP);
+   }
+
+   /**
+    * @param routes: The rules whose changes the engine captures, each with its write-behind window.
+    */
+   public BatchConsumer(EngineWrapper engine, Routes routes, Executor executor, Processing processing,
+                        InFlightWrites writes, DeadLetters deadLetters) {
+      this(engine, routes, executor, processing.lanes(), processing.pipelineDepth(), writes,
+            processing.transactions(), deadLetters, processing.chunkSize(), processing.laneCapacity(),
+            processing.waitStrategy());
+   }
+
+   private BatchConsumer(EngineWrapper engine, Routes routes, Executor executor, int lanes, int pipelineDepth,
+                         InFlightWrites writes, boolean transactional, DeadLetters deadLetters, int chunkSize,
+                         int laneCapacity, WaitStrategy waitStrategy) {
+      if (pipelineDepth < 1) {
+         throw new IllegalArgumentException("Pipeline depth must be positive");
+      }
+      this.routes = routes;
       this.engine = engine;
-      this.executor = executor;
+      // The changes of a key always have the same window, as the key belongs to a single table.
+      this.lanes = new HashMap<>();
+      for (long window : routes.windows()) {
+         this.lanes.put(window, new Lanes(lanes, laneCapacity, waitStrategy, window, executor, this::process,
+               this::onLaneWritten));
+      }
+      this.shared = this.lanes.size() == 1 ? this.lanes.values().iterator().next() : null;
+      this.watermark = new CommitWatermark();
+      this.batches = new Semaphore(pipelineDepth);
+      this.writes = writes;
+      this.transactions = transactional ? new Transactions(executor, this::process) : null;
+      this.deadLetters = deadLetters != null && deadLetters.isEnabled() ? deadLetters : null;
+      this.chunkSize = chunkSize > 0 ? chunkSize : Integer.MAX_VALUE;
    }
 
    @Override
-   public void handleBatch(List<ChangeEvent<SourceRecord, SourceRecord>> records, DebeziumEngine.RecordCommitter<ChangeEvent<SourceRecord, SourceRecord>> committer) {
+   public void handleBatch(List<ChangeEvent<SourceRecord, SourceRecord>> records, DebeziumEngine.RecordCommitter<ChangeEvent<SourceRecord, SourceRecord>> committer) throws InterruptedException {
       log.info("Processing {} entries", records.size());
+      // Commits the records written since the previous batch, in the engine thread.
+      watermark.commit();
+      if (records.isEmpty()) {
+         committer.markBatchFinished();
+         return;
+      }
+
+      // Blocks the engine while too many batches are in-flight. The permit returns after the batch is committed.
+      // A batch continuing an open transaction can't wait, the previous batches commit only after the transaction ends.
+      Runnable onCommitted = batches::release;
+      if (transactions != null && transactions.isOpen()) {
+         if (!batches.tryAcquire()) onCommitted = () -> {};
+      } else {
+         acquire();
+      }
 
+      CommitWatermark.Entry[] entries = null;
       try {
-         Map<Object, ChangeEvent<SourceRecord, SourceRecord>> acc = new HashMap<>();
-         for (ChangeEvent<SourceRecord, SourceRecord> curr : records) {
-            acc.compute(curr.value().key(), (key, prev) -> {
-               if (prev != null) {
-                  uncheckedCommit(prev, committer);
-               }
-               return curr;
-            });
-         }
+         entries = watermark.track(records, committer, onCommitted);
+      } finally {
+         // Committing the batch returns the permit, a batch never tracked is never committed.
+         if (entries == null) onCommitted.run();
+      }
 
-         CompletionStages.join(
-               CompletionStages.allOf(
-                     acc.values().parallelStream()
-                           .map(ev ->
-                              CompletableFuture.supplyAsync(() -> {
-                                 Event parsed = create(ev);
-                                 log.trace("Processing event {}", parsed);
-                                 chain.process(parsed, new EventContext());
-                                 uncheckedCommit(ev, committer);
-                                 return null;
-                              }, executor))
-                           .toArray(CompletionStage[]::new)
-               )
-         );
-         committer.markBatchFinished();
+      try {
+         if (transactions != null) {
+            handleTransactional(records, entries);
+         } else {
+            handleChunks(records, entries);
+         }
+      } catch (InterruptedException e) {
+         // The engine is stopping, the uncommitted records are replayed after the restart.
+         throw e;
       } catch (Throwable t) {
-         log.info("Exception encountered writing updates for engine {}", engine.getName(), t);
-         if (!isBackendFailure(t)) engine.notifyError(t);
+         onWriteCompleted(null, t);
+      }
+
+      // Records written synchronously, or dropped like the heartbeats of an idle connector, commit right away.
+      watermark.commit();
+   }
+
+   private void handleChunks(List<ChangeEvent<SourceRecord, SourceRecord>> records, CommitWatermark.Entry[] entries)
+         throws InterruptedException {
+      // Large batches are dispatched in chunks, bounding the records tracked at once. The lanes keep the order of
+      // the keys across chunks, so the last change of a key is still the one remaining in the cache.
+      Map<Object, Integer> acc = new HashMap<>(Math.min(records.size(), chunkSize));
+      for (int start = 0; start < records.size(); start += chunkSize) {
+         int end = (int) Math.min((long) start + chunkSize, records.size());
+         for (int i = start; i < end; i++) {
+            SourceRecord record = records.get(i).value();
+
+            // Records that do not produce events for any rule are committed without any processing.
+            if (routes.of(record).isEmpty()) {
+               log.trace("Dropped record from topic {}", record.topic());
+               watermark.acknowledge(entries[i]);
+               continue;
+            }
+
+            Integer prev = acc.put(record.key(), i);
+
+            // Only the last change for the key is written, the previous is acknowledged right away.
+            if (prev != null) watermark.acknowledge(entries[prev]);
+         }
+
+         dispatch(records, entries, acc);
+         acc.clear();
+      }
+   }
+
+   private void acquire() throws InterruptedException {
+      // Only committing a batch returns its permit, so the engine thread commits while waiting.
+      while (!batches.tryAcquire()) {
+         if (!watermark.await(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+            batches.acquire();
+            return;
+         }
+         watermark.commit();
+      }
+   }
+
+   /**
+    * Commits the records written, waiting up to the timeout for the writes in-flight.
+    * <p>Visible for testing, the engine commits with each batch instead.</p>
+    *
+    * @return true if all the records received were committed.
+    */
+   boolean commit(long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      watermark.commit();
+      while (watermark.pending() > 0) {
+         if (!watermark.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) return false;
+         watermark.commit();
+      }
+      return true;
+   }
+
+   private void dispatch(List<ChangeEvent<SourceRecord, SourceRecord>> records, CommitWatermark.Entry[] entries,
+                         Map<Object, Integer> acc) throws InterruptedException {
+      // The lanes convert and write the events, and the watermark commits them in order as the writes complete.
+      // The method returns without waiting, so the engine reads the next batch while this one is in-flight.
+      for (int i : acc.values()) {
+         // Blocks the engine while too many writes are in-flight, applying backpressure to the connector.
+         writes.acquire();
+         try {
+            lanes(records.get(i).value()).submit(records.get(i), entries[i]);
+         } catch (InterruptedException e) {
+            writes.release();
+            throw e;
+         }
+      }
+   }
+
+   private Lanes lanes(SourceRecord record) {
+      return shared != null ? shared : lanes.get(routes.window(routes.of(record)));
+   }
+
+   private void onLaneWritten(Object entry, Throwable t) {
+      writes.release();
+      if (t == null) watermark.acknowledge((CommitWatermark.Entry) entry);
+      else onWriteCompleted(null, t);
+   }
+
+   private void handleTransactional(List<ChangeEvent<SourceRecord, SourceRecord>> records,
+                                    CommitWatermark.Entry[] entries) throws InterruptedException {
+      // Changes outside a transaction, like the snapshot, are applied together with the rest of the batch.
+      List<Transactions.Member> outside = new ArrayList<>();
+      for (int i = 0; i < records.size(); i++) {
+         ChangeEvent<SourceRecord, SourceRecord> ev = records.get(i);
+         SourceRecord record = ev.value();
+
+         if (Transactions.isMetadata(record)) {
+            List<Transactions.Member> ended = transactions.boundary(record);
+            if (!ended.isEmpty()) {
+               // Keeps the order of the changes preceding the transaction.
+               apply(outside);
+               outside = new ArrayList<>();
+               apply(ended);
+            }
+            watermark.acknowledge(entries[i]);
+            continue;
+         }
+
+         if (routes.of(record).isEmpty()) {
+            log.trace("Dropped record from topic {}", record.topic());
+            watermark.acknowledge(entries[i]);
+            continue;
+         }
+
+         List<Transactions.Member> unterminated = transactions.add(ev, entries[i]);
+         if (unterminated == null) {
+            outside.add(new Transactions.Member(ev, entries[i]));
+         } else if (!unterminated.isEmpty()) {
+            log.warn("Transaction ended without metadata for engine {}, applying its {} changes", engine.getName(),
+                  unterminated.size());
+            apply(outside);
+            outside = new ArrayList<>();
+            apply(unterminated);
+         }
+      }
+      apply(outside);
+   }
+
+   private void apply(List<Transactions.Member> group) throws InterruptedException {
+      if (group.isEmpty()) return;
+
+      Map<Object, Transactions.Member> acc = new LinkedHashMap<>();
+      for (Transactions.Member member : group) {
+         Transactions.Member prev = acc.put(member.event().value().key(), member);
+         if (prev != null) watermark.acknowledge(prev.entry());
+      }
+
+      List<ChangeEvent<SourceRecord, SourceRecord>> events = new ArrayList<>(acc.size());
+      for (Transactions.Member member : acc.values()) {
+         events.add(member.event());
       }
+
+      int size = events.size();
+      writes.acquire(size);
+      transactions.apply(events)
+            .whenComplete((ignore, t) -> writes.release(size))
+            .thenRun(() -> acc.values().forEach(member -> watermark.acknowledge(member.entry())))
+            .whenComplete(this::onWriteCompleted);
    }
 
-   private Event create(ChangeEvent<SourceRecord, SourceRecord> ev) {
-      Json key = create(ev.value().key());
-      Json value = create(ev.value().value());
-      return new Event(key, value);
+   private void onWriteCompleted(Object ignore, Throwable t) {
+      if (t == null) return;
+
+      // The failed record is never acknowledged, holding the commits until the engine restarts and replays it.
+      log.info("Exception encountered writing updates for engine {}", engine.getName(), t);
+      if (!isBackendFailure(t)) engine.notifyError(t);
    }
 
-   private Json create(Object object) {
-      if (object instanceof Struct)
-         return Serialization.convert((Struct) object);
+   private CompletionStage<Boolean> process(ChangeEvent<SourceRecord, SourceRecord> ev, EventContext ctx) {
+      List<Routes.Route> matched = routes.of(ev.value());
+      CompletionStage<Boolean> stage;
+      if (matched.size() == 1) {
+         stage = process(matched.get(0), ev, ctx);
+      } else {
+         // A table captured by several rules is applied to all of them. Each rule writes in a context of its own, so
+         // a rule failing its bulk write does not apply the writes of the others again.
+         stage = CompletableFutures.completedFalse();
+         for (Routes.Route route : matched) {
+            stage = stage.thenCombine(process(route, ev, ctx.scope(route)), Boolean::logicalOr);
+         }
+      }
+
+      if (deadLetters == null) return stage;
 
-      // Happens only during tests.
-      if (object instanceof Json) return (Json) object;
+      // Replaying a malformed event fails again, it is skipped. The cache service failures restart the engine.
+      return stage.exceptionallyCompose(t -> {
+         if (isBackendFailure(t)) return CompletableFuture.failedFuture(t);
 
-      throw new IllegalStateException("Object is not a struct");
+         deadLetters.add(engine.getName(), ev.value(), t instanceof CompletionException && t.getCause() != null
+               ? t.getCause() : t);
+         return CompletableFutures.completedFalse();
+      });
    }
 
-   private void uncheckedCommit(ChangeEvent<SourceRecord, SourceRecord> ev, DebeziumEngine.RecordCommitter<ChangeEvent<SourceRecord, SourceRecord>> committer) {
+   private static CompletionStage<Boolean> process(Routes.Route route, ChangeEvent<SourceRecord, SourceRecord> ev,
+                                                   EventContext ctx) {
       try {
-         committer.markProcessed(ev);
-      } catch (InterruptedException e) {
-         throw new RuntimeException(e);
+         Event parsed = route.projection().create(ev.value());
+         log.trace("Processing event {} for rule {}", parsed, route.rule());
+         return route.chain().process(parsed, ctx);
+      } catch (Throwable t) {
+         return CompletableFuture.failedFuture(t);
       }
    }
 
@@ -0,0 +1,107 @@
+package io.gingersnapproject.cdc.consumer;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.debezium.engine.ChangeEvent;
+import io.debezium.engine.DebeziumEngine;
+import org.apache.kafka.connect.source.SourceRecord;
+
+/**
+ * Commits the records to the {@link DebeziumEngine.RecordCommitter} in the order they were received.
+ *
+ * <p>Records are acknowledged in any order as the writes complete, but only the contiguous prefix of acknowledged
+ * records is committed. A record written out of order waits until every record before it is acknowledged, so the
+ * offset never advances past a record which was not applied. After committing the last record of a batch, the
+ * batch is marked as finished and the callback is notified.</p>
+ *
+ * <p>The engine thread commits, with the next batch or while waiting for the batches in-flight. The engine flushes
+ * the offsets from the same thread when it stops, so a commit never races with it, nor runs once the engine stopped.
+ * An idle engine commits the records acknowledged meanwhile with its next batch, the engine replays them if it
+ * restarts before.</p>
+ */
+final class CommitWatermark {
+   // Guarded by this.
+   private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+   /**
+    * Starts tracking the records of a batch.
+    *
+    * @param records: The records in the order they were received.
+    * @param committer: The committer for the batch.
+    * @param onBatchFinished: Invoked after all the records in the batch are committed.
+    * @return The entries to acknowledge, in the same order as the records.
+    */
+   synchronized Entry[] track(List<ChangeEvent<SourceRecord, SourceRecord>> records,
+                              DebeziumEngine.RecordCommitter<ChangeEvent<SourceRecord, SourceRecord>> committer,
+                              Runnable onBatchFinished) {
+      Entry[] tracked = new Entry[records.size()];
+      for (int i = 0; i < tracked.length; i++) {
+         tracked[i] = new Entry(records.get(i), committer, i == tracked.length - 1 ? onBatchFinished : null);
+         entries.add(tracked[i]);
+      }
+      return tracked;
+   }
+
+   synchronized void acknowledge(Entry entry) {
+      entry.acknowledged = true;
+      if (entries.peek() == entry) notifyAll();
+   }
+
+   /**
+    * Commits the contiguous prefix of acknowledged records. Must run in the engine thread.
+    */
+   void commit() throws InterruptedException {
+      Entry entry;
+      while ((entry = poll()) != null) {
+         entry.committer.markProcessed(entry.event);
+         if (entry.onBatchFinished != null) {
+            entry.committer.markBatchFinished();
+            entry.onBatchFinished.run();
+         }
+      }
+   }
+
+   /**
+    * Waits until the first record tracked is acknowledged.
+    *
+    * @return false if the timeout elapsed or no record is tracked.
+    */
+   synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      Entry head;
+      while ((head = entries.peek()) != null && !head.acknowledged) {
+         long remaining = deadline - System.nanoTime();
+         if (remaining <= 0) return false;
+         TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      }
+      return head != null;
+   }
+
+   synchronized int pending() {
+      return entries.size();
+   }
+
+   private synchronized Entry poll() {
+      Entry head = entries.peek();
+      if (head == null || !head.acknowledged) return null;
+      return entries.poll();
+   }
+
+   static final class Entry {
+      private final ChangeEvent<SourceRecord, SourceRecord> event;
+      private final DebeziumEngine.RecordCommitter<ChangeEvent<SourceRecord, SourceRecord>> committer;
+      private final Runnable onBatchFinished;
+      // Guarded by the watermark.
+      private boolean acknowledged;
+
+      private Entry(ChangeEvent<SourceRecord, SourceRecord> event,
+                    DebeziumEngine.RecordCommitter<ChangeEvent<SourceRecord, SourceRecord>> committer,
+                    Runnable onBatchFinished) {
+         this.event = event;
+         this.committer = committer;
+         this.onBatchFinished = onBatchFinished;
+      }
+   }
+}
@@ -0,0 +1,96 @@
+package io.gingersnapproject.cdc.consumer;
+
+import java.util.concurrent.Semaphore;
+
+import io.gingersnapproject.metrics.DBSyncerMetrics;
+
+/**
+ * Bounds the number of writes in-flight.
+ *
+ * <p>A write acquires a permit before it is dispatched and releases it after it completes. When the limit is
+ * reached, {@link #acquire()} blocks the caller, which is the engine's polling thread. The engine stops accepting
+ * batches, so the connector's internal queue fills and the database reading pauses until the cache catches up.</p>
+ *
+ * <p>Limits can be nested. A write acquires permits from this instance and then from the parent, allowing a
+ * limit per engine bounded by a global limit shared by all the engines. A capacity of zero or less is unbounded.</p>
+ */
+public final class InFlightWrites {
+   private final int capacity;
+   private final Semaphore permits;
+   private final InFlightWrites parent;
+   private final DBSyncerMetrics metrics;
+
+   public InFlightWrites(int capacity, DBSyncerMetrics metrics) {
+      this(capacity, null, metrics);
+   }
+
+   public InFlightWrites(int capacity, InFlightWrites parent, DBSyncerMetrics metrics) {
+      this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+      this.permits = new Semaphore(this.capacity);
+      this.parent = parent;
+      this.metrics = metrics;
+   }
+
+   /**
+    * Acquires a permit for a single write, blocking while the limit is reached.
+    *
+    * @throws InterruptedException If interrupted while waiting, no permit is held in this case.
+    */
+   public void acquire() throws InterruptedException {
+      acquire(1);
+   }
+
+   /**
+    * Acquires the permits for a group of writes applied together, blocking while the limit is reached.
+    * <p>A group larger than the limit takes all the permits, otherwise it would never be dispatched.</p>
+    *
+    * @param writes The number of writes in the group.
+    * @throws InterruptedException If interrupted while waiting, no permit is held in this case.
+    */
+   public void acquire(int writes) throws InterruptedException {
+      long blockedSince = acquire(writes, 0);
+      if (blockedSince != 0) {
+         metrics.recordBackpressure(System.nanoTime() - blockedSince);
+      }
+   }
+
+   private long acquire(int writes, long blockedSince) throws InterruptedException {
+      int n = Math.min(writes, capacity);
+      if (!permits.tryAcquire(n)) {
+         if (blockedSince == 0) blockedSince = System.nanoTime();
+         permits.acquire(n);
+      }
+
+      if (parent == null) return blockedSince;
+
+      try {
+         return parent.acquire(writes, blockedSince);
+      } catch (InterruptedException e) {
+         permits.release(n);
+         throw e;
+      }
+   }
+
+   /**
+    * Releases the permit after the write completes, successfully or not.
+    */
+   public void release() {
+      release(1);
+   }
+
+   /**
+    * Releases the permits after the group of writes completes, successfully or not.
+    */
+   public void release(int writes) {
+      permits.release(Math.min(writes, capacity));
+      if (parent != null) parent.release(writes);
+   }
+
+   public int inFlight() {
+      return capacity - permits.availablePermits();
+   }
+
+   public int capacity() {
+      return capacity;
+   }
+}
@@ -0,0 +1,265 @@
+package io.gingersnapproject.cdc.consumer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import io.gingersnapproject.cdc.chain.EventContext;
+import io.gingersnapproject.cdc.configuration.WaitStrategy;
+import io.gingersnapproject.cdc.util.AggregateCompletionStage;
+import io.gingersnapproject.cdc.util.CompletionStages;
+
+import io.debezium.engine.ChangeEvent;
+import org.apache.kafka.connect.source.SourceRecord;
+
+/**
+ * Partitions the change events by key into a fixed number of single-writer lanes.
+ *
+ * <p>Events with the same key always land in the same lane, and each lane applies the events in submission order.
+ * A lane drains all the events queued since the previous drain, keeps only the last event of each key, and writes
+ * them using a single bulk {@link EventContext}. The lane only drains again after all the writes complete. This
+ * keeps the per-key ordering across batches, while a slow write only delays the events sharing its lane.</p>
+ *
+ * <p>Each lane queues the events in a preallocated ring of reusable slots. The engine's thread is the only producer,
+ * and only one drain runs at a time, so the ring needs no locks. A slot is reused once its write completes, and the
+ * outcome is handed to the listener with the attachment submitted with the event, without allocating a stage per
+ * event. When the ring is full, the producer waits according to the {@link WaitStrategy}, until a slot frees up or
+ * the producer is interrupted.</p>
+ *
+ * <p>With a write-behind window, a lane waits for the window before each drain. The events arriving meanwhile are
+ * coalesced, so a key changing many times within the window is written once, and the superseded events are only
+ * handed to the listener after that write completes.</p>
+ */
+final class Lanes {
+   static final int DEFAULT_CAPACITY = 1024;
+   private static final long SLEEP_NANOS = 50_000;
+   private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "lane-write-behind");
+      thread.setDaemon(true);
+      return thread;
+   });
+
+   private final Lane[] lanes;
+   private final Executor executor;
+   private final BiFunction<ChangeEvent<SourceRecord, SourceRecord>, EventContext, CompletionStage<?>> processor;
+   private final BiConsumer<Object, Throwable> listener;
+   private final WaitStrategy waitStrategy;
+   private final long window;
+
+   /**
+    * Creates lanes completing the stages returned by {@link #submit(ChangeEvent)}.
+    */
+   Lanes(int size, Executor executor, BiFunction<ChangeEvent<SourceRecord, SourceRecord>, EventContext, CompletionStage<?>> processor) {
+      this(size, DEFAULT_CAPACITY, WaitStrategy.SLEEP, 0, executor, processor, Lanes::complete);
+   }
+
+   /**
+    * @param capacity: The number of events each lane holds, rounded to the next power of two.
+    * @param window: The milliseconds a lane waits before each drain, coalescing the events of a key. Zero or less
+    *              drains right away.
+    * @param listener: Receives the attachment and the failure, if any, once the event is written.
+    */
+   Lanes(int size, int capacity, WaitStrategy waitStrategy, long window, Executor executor,
+         BiFunction<ChangeEvent<SourceRecord, SourceRecord>, EventContext, CompletionStage<?>> processor,
+         BiConsumer<Object, Throwable> listener) {
+      if (size < 1) {
+         throw new IllegalArgumentException("Number of lanes must be positive");
+      }
+      if (capacity < 1) {
+         throw new IllegalArgumentException("Lane capacity must be positive");
+      }
+      this.executor = executor;
+      this.processor = processor;
+      this.listener = listener;
+      this.waitStrategy = waitStrategy == null ? WaitStrategy.SLEEP : waitStrategy;
+      this.window = Math.max(window, 0);
+      int slots = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+      this.lanes = new Lane[size];
+      for (int i = 0; i < size; i++) {
+         lanes[i] = new Lane(slots);
+      }
+   }
+
+   /**
+    * Submits the event to the lane owning its key.
+    *
+    * @param event: The event to process.
+    * @return A stage that completes after the event, or a later event with the same key, is written.
+    * @throws InterruptedException: If interrupted while waiting for a free slot.
+    */
+   CompletionStage<Void> submit(ChangeEvent<SourceRecord, SourceRecord> event) throws InterruptedException {
+      CompletableFuture<Void> done = new CompletableFuture<>();
+      submit(event, done);
+      return done;
+   }
+
+   /**
+    * Submits the event to the lane owning its key. Must be called from a single thread.
+    *
+    * @param event: The event to process.
+    * @param attachment: Handed to the listener after the event, or a later event with the same key, is written.
+    * @throws InterruptedException: If interrupted while waiting for a free slot, the event is not submitted.
+    */
+   void submit(ChangeEvent<SourceRecord, SourceRecord> event, Object attachment) throws InterruptedException {
+      Object key = event.value().key();
+      lanes[index(key)].submit(key, event, attachment);
+   }
+
+   @SuppressWarnings("unchecked")
+   private static void complete(Object attachment, Throwable t) {
+      CompletableFuture<Void> done = (CompletableFuture<Void>) attachment;
+      if (t != null) done.completeExceptionally(t);
+      else done.complete(null);
+   }
+
+   // Visible for testing.
+   int index(Object key) {
+      int h = Objects.hashCode(key);
+      // Spread the bits, in case the hash is not well distributed in the lower bits.
+      return Math.floorMod(h ^ (h >>> 16), lanes.length);
+   }
+
+   private void idle(int attempt) {
+      switch (waitStrategy) {
+         case SPIN -> Thread.onSpinWait();
+         case YIELD -> Thread.yield();
+         // Spins for a short while first, the ring usually frees up quickly.
+         case SLEEP -> {
+            if (attempt < 100) Thread.onSpinWait();
+            else LockSupport.parkNanos(SLEEP_NANOS);
+         }
+      }
+   }
+
+   private final class Lane implements Runnable {
+      private final Slot[] slots;
+      private final int mask;
+      // Written only by the producer.
+      private final AtomicLong published = new AtomicLong();
+      // Written only by the drain, after the slots are free.
+      private final AtomicLong consumed = new AtomicLong();
+      private final AtomicBoolean running = new AtomicBoolean();
+      // Maps each key to the slot of its last event in the drain, used only by the drain.
+      private final Map<Object, Slot> last = new HashMap<>();
+      // Reused by every drain, it is empty again after the flush.
+      private final EventContext ctx = EventContext.bulk();
+
+      private Lane(int capacity) {
+         this.slots = new Slot[capacity];
+         this.mask = capacity - 1;
+         for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+         }
+      }
+
+      void submit(Object key, ChangeEvent<SourceRecord, SourceRecord> event, Object attachment)
+            throws InterruptedException {
+         long seq = published.get();
+         for (int attempt = 0; seq - consumed.get() >= slots.length; attempt++) {
+            if (Thread.interrupted()) throw new InterruptedException();
+            idle(attempt);
+         }
+
+         slots[(int) seq & mask].set(key, event, attachment);
+         published.lazySet(seq + 1);
+         schedule();
+      }
+
+      private void schedule() {
+         if (published.get() != consumed.get() && running.compareAndSet(false, true)) {
+            if (window > 0) timer.schedule(() -> executor.execute(this), window, TimeUnit.MILLISECONDS);
+            else executor.execute(this);
+         }
+      }
+
+      @Override
+      public void run() {
+         long start = consumed.get();
+         long end = published.get();
+
+         // The previous event of a key is superseded, it completes with the later one.
+         last.clear();
+         for (long seq = start; seq < end; seq++) {
+            Slot slot = slots[(int) seq & mask];
+            last.put(slot.key, slot);
+         }
+
+         AggregateCompletionStage<Void> written = CompletionStages.aggregateCompletionStage();
+         for (long seq = start; seq < end; seq++) {
+            Slot slot = slots[(int) seq & mask];
+            if (last.get(slot.key) != slot) continue;
+
+            CompletionStage<?> stage;
+            try {
+               stage = processor.apply(slot.event, ctx);
+            } catch (Throwable t) {
+               stage = CompletableFuture.failedFuture(t);
+            }
+            stage.whenComplete(slot);
+            written.dependsOn(stage);
+         }
+         ctx.flush();
+
+         written.freeze().whenComplete((ignore, t) -> release(start, end));
+      }
+
+      private void release(long start, long end) {
+         for (long seq = start; seq < end; seq++) {
+            Slot slot = slots[(int) seq & mask];
+            Throwable failure = last.get(slot.key).failure;
+            Object attachment = slot.attachment;
+            slot.clear();
+            try {
+               listener.accept(attachment, failure);
+            } catch (Throwable ignore) {
+               // The listener handles its own failures, the slots must be released regardless.
+            }
+         }
+         // The failures are read above, the slots are cleared only after all are read.
+         for (long seq = start; seq < end; seq++) {
+            slots[(int) seq & mask].failure = null;
+         }
+         last.clear();
+         consumed.lazySet(end);
+         running.set(false);
+         schedule();
+      }
+   }
+
+   private static final class Slot implements BiConsumer<Object, Throwable> {
+      private Object key;
+      private ChangeEvent<SourceRecord, SourceRecord> event;
+      private Object attachment;
+      private volatile Throwable failure;
+
+      void set(Object key, ChangeEvent<SourceRecord, SourceRecord> event, Object attachment) {
+         this.key = key;
+         this.event = event;
+         this.attachment = attachment;
+      }
+
+      void clear() {
+         key = null;
+         event = null;
+         attachment = null;
+      }
+
+      @Override
+      public void accept(Object ignore, Throwable t) {
+         // Same failure as a dependent stage would see.
+         failure = t == null || t instanceof CompletionException ? t : new CompletionException(t);
+      }
+   }
+}
@@ -0,0 +1,38 @@
+package io.gingersnapproject.cdc.consumer;
+
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import io.gingersnapproject.cdc.configuration.Rule;
+
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.source.SourceRecord;
+
+/**
+ * Selects the records that produce events for the rule, using only the topic and value schema name.
+ * <p>The connector names the data change topics as <code>prefix.[database.][schema.]table</code> and their value
+ * schemas as <code>topic.Envelope</code>. Heartbeats, schema changes and transaction metadata use other topics or
+ * schema names, so they are dropped before decoding the record or handing it to another thread.</p>
+ */
+public class RecordFilter implements Predicate<SourceRecord> {
+   private static final String ENVELOPE_SUFFIX = ".Envelope";
+   // Characters the connector replaces in topic names.
+   private static final Pattern INVALID_TOPIC_CHARS = Pattern.compile("[^a-zA-Z0-9._-]");
+
+   private final String topicSuffix;
+
+   public RecordFilter(Rule rule) {
+      this.topicSuffix = "." + INVALID_TOPIC_CHARS.matcher(rule.connector().table()).replaceAll("_");
+   }
+
+   @Override
+   public boolean test(SourceRecord record) {
+      if (record.value() == null) return false;
+
+      String topic = record.topic();
+      if (topic == null || !topic.endsWith(topicSuffix)) return false;
+
+      Schema schema = record.valueSchema();
+      return schema == null || schema.name() == null || schema.name().endsWith(ENVELOPE_SUFFIX);
+   }
+}
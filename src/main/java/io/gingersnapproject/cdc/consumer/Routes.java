@@ -0,0 +1,116 @@
+package io.gingersnapproject.cdc.consumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+import io.gingersnapproject.cdc.chain.EventProcessingChain;
+import io.gingersnapproject.cdc.chain.EventProjection;
+
+import org.apache.kafka.connect.source.SourceRecord;
+
+/**
+ * Routes the records of an engine to the rules they belong to.
+ * <p>An engine capturing the tables of many rules receives the changes of all of them. Each record is routed by its
+ * topic, which names the table, to the rules of that table. More than one rule can capture the same table. The rules
+ * of each topic are resolved once, the later records of the topic only check the rule's filter.</p>
+ *
+ * <p>Each rule has its own write-behind window. The records of a table routed to rules with different windows use
+ * the shortest, so the changes of a key always wait for the same window.</p>
+ */
+public final class Routes {
+
+   /**
+    * The processing of a single rule.
+    *
+    * @param rule: The rule name, for logging. Null when the engine has a single rule.
+    * @param filter: Selects the records of the rule.
+    * @param projection: Creates the events of the rule from the records.
+    * @param chain: Applies the events of the rule.
+    * @param writeBehind: The milliseconds the changes of a key are coalesced before writing, or zero or less to
+    *                   write right away. Does not apply to transactions.
+    */
+   public record Route(String rule, Predicate<SourceRecord> filter, EventProjection projection,
+                       EventProcessingChain chain, long writeBehind) {
+
+      public Route(String rule, Predicate<SourceRecord> filter, EventProjection projection,
+                   EventProcessingChain chain) {
+         this(rule, filter, projection, chain, 0);
+      }
+   }
+
+   private final List<Route> routes;
+   private final Map<String, List<Route>> byTopic = new ConcurrentHashMap<>();
+
+   public Routes(List<Route> routes) {
+      if (routes.isEmpty()) {
+         throw new IllegalArgumentException("At least one route is required");
+      }
+      this.routes = List.copyOf(routes);
+   }
+
+   public static Routes single(String rule, Predicate<SourceRecord> filter, EventProjection projection,
+                               EventProcessingChain chain) {
+      return new Routes(List.of(new Route(rule, filter, projection, chain)));
+   }
+
+   /**
+    * @return The write-behind windows of the routes, zero when writing right away.
+    */
+   Set<Long> windows() {
+      Set<Long> windows = new TreeSet<>();
+      for (Route route : routes) {
+         windows.add(window(route));
+      }
+      return windows;
+   }
+
+   /**
+    * @return The write-behind window of the record, the shortest of the routes accepting it.
+    */
+   long window(List<Route> accepting) {
+      long window = Long.MAX_VALUE;
+      for (Route route : accepting) {
+         window = Math.min(window, window(route));
+      }
+      return window == Long.MAX_VALUE ? 0 : window;
+   }
+
+   private static long window(Route route) {
+      return Math.max(route.writeBehind(), 0);
+   }
+
+   /**
+    * @return The routes accepting the record, or an empty list if none.
+    */
+   List<Route> of(SourceRecord record) {
+      if (routes.size() == 1) return accepts(routes.get(0), record) ? routes : List.of();
+
+      String topic = record.topic();
+      List<Route> candidates = topic == null ? null : byTopic.get(topic);
+      if (candidates == null) {
+         candidates = new ArrayList<>(1);
+         for (Route route : routes) {
+            if (accepts(route, record)) candidates.add(route);
+         }
+         // Only the data changes are cached, the other records of the topic are rare.
+         if (candidates.isEmpty()) return List.of();
+         if (topic != null) byTopic.put(topic, candidates);
+         return candidates;
+      }
+
+      // The topic is the same, but the record might not be a data change.
+      for (Route route : candidates) {
+         if (!accepts(route, record)) return List.of();
+      }
+      return candidates;
+   }
+
+   private static boolean accepts(Route route, SourceRecord record) {
+      return route.filter().test(record);
+   }
+}
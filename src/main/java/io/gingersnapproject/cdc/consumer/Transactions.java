@@ -0,0 +1,134 @@
+package io.gingersnapproject.cdc.consumer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+
+import io.gingersnapproject.cdc.chain.EventContext;
+import io.gingersnapproject.cdc.util.AggregateCompletionStage;
+import io.gingersnapproject.cdc.util.CompletionStages;
+
+import io.debezium.engine.ChangeEvent;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.infinispan.commons.util.concurrent.CompletableFutures;
+
+/**
+ * Groups the changes by database transaction and applies each group as one bulk write.
+ * <p>Requires the connector to provide the transaction metadata. The changes of a transaction are held until the
+ * transaction ends, even across batches. The group is then written with a single {@link EventContext}, after the
+ * previous group completes, so readers never observe a partially applied transaction. Changes outside a transaction,
+ * like the snapshot, are grouped by the caller.</p>
+ *
+ * <p>The grouping happens in the engine's thread, only the writes run in the executor.</p>
+ */
+final class Transactions {
+   private static final String TOPIC_SUFFIX = ".transaction";
+   private static final String STATUS_END = "END";
+
+   private final Executor executor;
+   private final BiFunction<ChangeEvent<SourceRecord, SourceRecord>, EventContext, CompletionStage<?>> processor;
+   private final List<Member> open = new ArrayList<>();
+   private String openId;
+   private CompletionStage<Void> tail = CompletableFutures.completedNull();
+
+   Transactions(Executor executor,
+                BiFunction<ChangeEvent<SourceRecord, SourceRecord>, EventContext, CompletionStage<?>> processor) {
+      this.executor = executor;
+      this.processor = processor;
+   }
+
+   record Member(ChangeEvent<SourceRecord, SourceRecord> event, CommitWatermark.Entry entry) { }
+
+   /**
+    * @return true if changes of a transaction are waiting for it to end.
+    */
+   boolean isOpen() {
+      return openId != null;
+   }
+
+   static boolean isMetadata(SourceRecord record) {
+      return record.topic() != null && record.topic().endsWith(TOPIC_SUFFIX)
+            && field(record.value(), "status") != null;
+   }
+
+   /**
+    * Handles a transaction metadata record.
+    *
+    * @return The changes of the transaction that ended, or an empty list.
+    */
+   List<Member> boundary(SourceRecord record) {
+      Object status = field(record.value(), "status");
+      Object id = field(record.value(), "id");
+      if (!STATUS_END.equals(String.valueOf(status)) || id == null || !id.toString().equals(openId)) {
+         return List.of();
+      }
+      return close();
+   }
+
+   /**
+    * Adds the change to its transaction.
+    *
+    * @return The changes of a previous transaction that never received its end, or an empty list. Null if the
+    *         change is not part of a transaction.
+    */
+   List<Member> add(ChangeEvent<SourceRecord, SourceRecord> event, CommitWatermark.Entry entry) {
+      Object id = field(field(event.value().value(), "transaction"), "id");
+      if (id == null) return null;
+
+      List<Member> previous = openId == null || openId.equals(id.toString()) ? List.of() : close();
+      openId = id.toString();
+      open.add(new Member(event, entry));
+      return previous;
+   }
+
+   private List<Member> close() {
+      List<Member> group = new ArrayList<>(open);
+      open.clear();
+      openId = null;
+      return group;
+   }
+
+   /**
+    * Writes the group after the previous groups complete.
+    *
+    * @return A stage completing once all the changes are written.
+    */
+   CompletionStage<Void> apply(Collection<ChangeEvent<SourceRecord, SourceRecord>> group) {
+      CompletionStage<Void> stage = tail.thenComposeAsync(ignore -> write(group), executor);
+      tail = stage;
+      return stage;
+   }
+
+   private CompletionStage<Void> write(Collection<ChangeEvent<SourceRecord, SourceRecord>> group) {
+      EventContext ctx = EventContext.bulk();
+      AggregateCompletionStage<Void> written = CompletionStages.aggregateCompletionStage();
+      for (ChangeEvent<SourceRecord, SourceRecord> event : group) {
+         try {
+            written.dependsOn(processor.apply(event, ctx));
+         } catch (Throwable t) {
+            written.dependsOn(CompletableFuture.failedFuture(t));
+         }
+      }
+      written.dependsOn(ctx.flush());
+      return written.freeze();
+   }
+
+   private static Object field(Object value, String name) {
+      if (value instanceof Struct struct)
+         return struct.schema().field(name) == null ? null : struct.get(name);
+
+      // Happens only during tests.
+      if (value instanceof Json json) {
+         Json field = json.at(name);
+         if (field == null || field.isNull()) return null;
+         return field.isObject() ? field : field.getValue();
+      }
+      return null;
+   }
+}
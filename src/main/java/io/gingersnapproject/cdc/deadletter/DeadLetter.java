@@ -0,0 +1,26 @@
+package io.gingersnapproject.cdc.deadletter;
+
+import org.infinispan.commons.dataconversion.internal.Json;
+
+/**
+ * A change event that failed processing and was skipped.
+ *
+ * @param engine: The name of the engine which received the event, that is, the rule name.
+ * @param topic: The topic of the change event, identifying the captured table.
+ * @param key: The key of the change event.
+ * @param value: The value of the change event.
+ * @param error: The failure description.
+ * @param timestamp: The milliseconds since the epoch when the event failed.
+ */
+public record DeadLetter(String engine, String topic, Json key, Json value, String error, long timestamp) {
+
+   public Json toJson() {
+      return Json.object()
+            .set("engine", engine)
+            .set("topic", topic)
+            .set("key", key)
+            .set("value", value)
+            .set("error", error)
+            .set("timestamp", timestamp);
+   }
+}
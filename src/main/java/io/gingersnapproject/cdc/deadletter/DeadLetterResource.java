@@ -0,0 +1,39 @@
+package io.gingersnapproject.cdc.deadletter;
+
+import javax.inject.Inject;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+
+import org.infinispan.commons.dataconversion.internal.Json;
+
+/**
+ * Exposes the {@link DeadLetters} over REST.
+ */
+@Path("/dead-letters")
+public class DeadLetterResource {
+
+   @Inject DeadLetters deadLetters;
+
+   /**
+    * @param engine: Only lists the events received by the engine, optional.
+    * @return The Json array of events stored, from the oldest to the newest.
+    */
+   @GET
+   @Produces(MediaType.APPLICATION_JSON)
+   public String list(@QueryParam("engine") String engine) {
+      Json array = Json.array();
+      for (DeadLetter letter : deadLetters.list()) {
+         if (engine == null || engine.equals(letter.engine())) array.add(letter.toJson());
+      }
+      return array.toString();
+   }
+
+   @DELETE
+   public void clear() {
+      deadLetters.clear();
+   }
+}
@@ -0,0 +1,106 @@
+package io.gingersnapproject.cdc.deadletter;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import io.gingersnapproject.cdc.configuration.Configuration;
+import io.gingersnapproject.cdc.util.Serialization;
+import io.gingersnapproject.metrics.DBSyncerMetrics;
+
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded local store of the change events that failed processing.
+ * <p>An event failing for reasons other than the cache service, like a malformed row, would fail again after the
+ * engine restarts and replays it. Instead, the event is stored here and acknowledged, and the remaining events
+ * proceed. Once full, the oldest events are discarded. The store is kept in memory only.</p>
+ *
+ * @see DeadLetterResource
+ */
+@ApplicationScoped
+public class DeadLetters {
+   private static final Logger log = LoggerFactory.getLogger(DeadLetters.class);
+
+   @Inject Configuration config;
+
+   @Inject DBSyncerMetrics metrics;
+
+   private ArrayDeque<DeadLetter> letters;
+   private int capacity;
+
+   DeadLetters() { }
+
+   /**
+    * @param capacity: The maximum number of events stored. Zero or less disables the store.
+    */
+   public DeadLetters(int capacity, DBSyncerMetrics metrics) {
+      this.metrics = metrics;
+      initialize(capacity);
+   }
+
+   @PostConstruct
+   void initialize() {
+      initialize(config.processing().deadLetters());
+   }
+
+   private void initialize(int capacity) {
+      this.capacity = Math.max(capacity, 0);
+      this.letters = new ArrayDeque<>(Math.min(this.capacity, 1024));
+      metrics.registerDeadLetters(this::size);
+   }
+
+   /**
+    * @return true if the failed events are stored and skipped, false if they must fail the engine.
+    */
+   public boolean isEnabled() {
+      return capacity > 0;
+   }
+
+   /**
+    * Stores the event which failed processing.
+    *
+    * @param engine: The engine which received the event.
+    * @param record: The change event.
+    * @param cause: The failure processing the event.
+    */
+   public void add(String engine, SourceRecord record, Throwable cause) {
+      log.warn("Skipping event from {} for engine {} after failure", record.topic(), engine, cause);
+      var letter = new DeadLetter(engine, record.topic(), convert(record.key()), convert(record.value()),
+            String.valueOf(cause), System.currentTimeMillis());
+      synchronized (this) {
+         if (letters.size() == capacity) letters.pollFirst();
+         letters.addLast(letter);
+      }
+      metrics.recordDeadLetter(engine);
+   }
+
+   /**
+    * @return The events stored, from the oldest to the newest.
+    */
+   public synchronized List<DeadLetter> list() {
+      return List.copyOf(letters);
+   }
+
+   public synchronized int size() {
+      return letters.size();
+   }
+
+   public synchronized void clear() {
+      letters.clear();
+   }
+
+   private static Json convert(Object value) {
+      if (value == null) return Json.nil();
+      if (value instanceof Struct struct) return Serialization.convert(struct);
+      if (value instanceof Json json) return json;
+      return Json.make(String.valueOf(value));
+   }
+}
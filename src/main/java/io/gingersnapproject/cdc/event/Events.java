@@ -15,6 +15,8 @@ public class Events {
 
    public record BackendStoppedEvent(CacheIdentifier identifier) { }
 
+   public record CatchUpOverflowEvent(CacheIdentifier identifier, String capture) { }
+
    public record ConnectorFailedEvent(CacheIdentifier identifier, Throwable throwable) { }
 
    public record ConnectorStartedEvent(CacheIdentifier identifier, Database database) { }
@@ -29,6 +29,7 @@ public class NotificationManager {
    @Inject Event<Events.BackendStartedEvent> backendStartedEvent;
    @Inject Event<Events.BackendFailedEvent> backendFailedEvent;
    @Inject Event<Events.BackendStoppedEvent> backendStoppedEvent;
+   @Inject Event<Events.CatchUpOverflowEvent> catchUpOverflowEvent;
 
    @Inject Event<Events.CacheMemberJoinEvent> memberJoinEvent;
    @Inject Event<Events.CacheMemberLeaveEvent> memberLeaveEvent;
@@ -57,6 +58,10 @@ public class NotificationManager {
       backendStoppedEvent.fire(new Events.BackendStoppedEvent(identifier));
    }
 
+   public void catchUpOverflowEvent(CacheIdentifier identifier, String capture) {
+      catchUpOverflowEvent.fire(new Events.CatchUpOverflowEvent(identifier, capture));
+   }
+
    public void memberJoinEvent(URI uri) {
       memberJoinEvent.fire(new Events.CacheMemberJoinEvent(uri));
    }
@@ -26,4 +26,17 @@ public class ColumnJsonTranslator implements JsonTranslator<Json> {
       }
       return destination;
    }
+
+   @Override
+   public void write(Json json, Utf8JsonWriter writer) {
+      writer.beginObject();
+      writeExisting(json, writer);
+      writer.endObject();
+   }
+
+   public void writeExisting(Json newElements, Utf8JsonWriter writer) {
+      for (String column : columns) {
+         writer.name(column).value(newElements.at(column));
+      }
+   }
 }
@@ -36,4 +36,15 @@ public class ColumnStringTranslator implements JsonTranslator<StringBuilder> {
       }
       return builder;
    }
+
+   @Override
+   public void write(Json json, Utf8JsonWriter writer) {
+      for (int i = 0; i < columns.size(); ++i) {
+         assert json.has(columns.get(i)) : "Column " + columns.get(i) + " not found in JSON: " + json;
+         writer.text(json.at(columns.get(i)).asString());
+         if (i != columns.size() - 1) {
+            writer.text(separator);
+         }
+      }
+   }
 }
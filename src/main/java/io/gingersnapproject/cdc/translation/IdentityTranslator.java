@@ -13,4 +13,9 @@ public class IdentityTranslator implements JsonTranslator<Json> {
    public Json apply(Json json) {
       return json;
    }
+
+   @Override
+   public void write(Json json, Utf8JsonWriter writer) {
+      writer.value(json);
+   }
 }
@@ -5,4 +5,14 @@ import java.util.function.Function;
 import org.infinispan.commons.dataconversion.internal.Json;
 
 public interface JsonTranslator<E> extends Function<Json, E> {
+
+   /**
+    * Writes the translation as UTF-8 bytes, without building the intermediate representation.
+    *
+    * @param json: The row to translate.
+    * @param writer: The destination of the bytes.
+    */
+   default void write(Json json, Utf8JsonWriter writer) {
+      writer.text(apply(json).toString());
+   }
 }
@@ -20,4 +20,11 @@ public class PrependJsonTranslator implements JsonTranslator<Json> {
 
       return translator.applyExisting(json, newJson);
    }
+
+   @Override
+   public void write(Json json, Utf8JsonWriter writer) {
+      writer.beginObject().name(name).string(prefix);
+      translator.writeExisting(json, writer);
+      writer.endObject();
+   }
 }
@@ -20,4 +20,10 @@ public class PrependStringTranslator implements JsonTranslator<StringBuilder> {
 
       return newBuilder.append(translated);
    }
+
+   @Override
+   public void write(Json json, Utf8JsonWriter writer) {
+      writer.text(prefix).text(translator.getSeparator());
+      translator.write(json, writer);
+   }
 }
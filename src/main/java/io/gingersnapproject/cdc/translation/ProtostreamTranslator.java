@@ -0,0 +1,446 @@
+package io.gingersnapproject.cdc.translation;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiFunction;
+import java.util.regex.Pattern;
+
+import org.apache.kafka.connect.data.Decimal;
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Schema;
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.infinispan.commons.util.concurrent.CompletableFutures;
+import org.infinispan.protostream.DescriptorParserException;
+import org.infinispan.protostream.FileDescriptorSource;
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.infinispan.protostream.descriptors.Descriptor;
+import org.infinispan.protostream.descriptors.FieldDescriptor;
+
+/**
+ * Translates the row to an <code>application/x-protostream</code> value.
+ * <p>The protobuf schema is generated from the Kafka Connect schema of the captured table, with one optional field
+ * per column. Each column keeps its field number across schema changes and restarts, the numbers are read back from
+ * the schema registered before. A column removed, or changing to an incompatible type, reserves its number, which is
+ * never given to another field. The reserved numbers stay declared as fields with a reserved name, so the values
+ * written before keep decoding. Columns whose names map to the same protobuf identifier, or to a reserved name, are
+ * rejected. Nested structures, arrays and maps are written as Json strings.</p>
+ *
+ * <p>The schema is registered through the given callback every time it changes. The registration is asynchronous,
+ * the writes do not wait for it, as the server stores the values regardless and only needs the schema to read them.
+ * Once the server rejects the schema, the translator fails all the values until a later schema is accepted.</p>
+ *
+ * <p>The rows in-flight when the schema changes are encoded with the schema they were captured with. The translator
+ * keeps the last few schemas, and encodes each row with the most recent schema having all its columns with
+ * compatible types.</p>
+ *
+ * <p>The values are wrapped in a <code>org.infinispan.protostream.WrappedMessage</code>, identifying the type by its
+ * full name, as the server expects for the protostream media type.</p>
+ */
+public class ProtostreamTranslator implements JsonTranslator<byte[]> {
+   private static final Pattern INVALID_IDENTIFIER = Pattern.compile("[^a-zA-Z0-9_]");
+   // The server parser does not support the reserved statement, the numbers keep a field with this prefix.
+   private static final String RESERVED_PREFIX = "_reserved_";
+   // The schemas kept for the rows in-flight.
+   private static final int MAX_MESSAGES = 8;
+   // Fields from org/infinispan/protostream/message-wrapping.proto
+   private static final int WRAPPED_DESCRIPTOR_FULL_NAME = 16;
+   private static final int WRAPPED_MESSAGE = 17;
+
+   private static final int WIRE_VARINT = 0;
+   private static final int WIRE_FIXED64 = 1;
+   private static final int WIRE_LENGTH_DELIMITED = 2;
+   private static final int WIRE_FIXED32 = 5;
+
+   private final String packageName;
+   private final String messageName;
+   private final byte[] fullName;
+   // Null to keep all the columns.
+   private final Collection<String> columns;
+   private final BiFunction<String, String, CompletionStage<Void>> registry;
+   // The field of each protobuf identifier, guarded by this.
+   private final Map<String, Numbered> numbers = new LinkedHashMap<>();
+   // The protobuf type of the numbers of the fields removed, guarded by this.
+   private final TreeMap<Integer, String> reserved = new TreeMap<>();
+   // Guarded by this.
+   private int next = 1;
+   // The last file registered, guarded by this.
+   private String file;
+   // Guarded by this.
+   private CompletionStage<Void> registration = CompletableFutures.completedNull();
+   private volatile Schema row;
+   // The newest first.
+   private volatile List<Message> messages = List.of();
+   private volatile Throwable rejected;
+
+   public ProtostreamTranslator(String name, String table, Collection<String> columns,
+                                BiFunction<String, String, CompletionStage<Void>> registry) {
+      this(name, table, columns, null, registry);
+   }
+
+   /**
+    * @param name: Identifies the generated types, usually the rule name.
+    * @param table: The captured table, naming the generated message.
+    * @param columns: The value columns, or null for all the columns.
+    * @param registered: The contents of the file registered before, or null.
+    * @throws IllegalStateException: If the file registered before can't be parsed.
+    * @param registry: Registers the protobuf file, receiving the file name and contents. The stage fails if the
+    *                server rejects the file.
+    */
+   public ProtostreamTranslator(String name, String table, Collection<String> columns, String registered,
+                                BiFunction<String, String, CompletionStage<Void>> registry) {
+      this.packageName = packageName(name);
+      this.messageName = identifier(table);
+      this.fullName = (packageName + "." + messageName).getBytes(StandardCharsets.UTF_8);
+      this.columns = columns;
+      this.registry = registry;
+      if (registered != null) restore(registered);
+   }
+
+   public String fileName() {
+      return packageName.replace('.', '/') + ".proto";
+   }
+
+   /**
+    * @param name: Identifies the generated types, usually the rule name.
+    * @return The name of the file registered by the translator created with the same name.
+    */
+   public static String fileName(String name) {
+      return packageName(name).replace('.', '/') + ".proto";
+   }
+
+   private static String packageName(String name) {
+      return "gingersnap." + identifier(name);
+   }
+
+   // Reads back the numbers of the fields registered before, so the values written keep decoding the same way.
+   private void restore(String registered) {
+      // The contents are compared as a whole, the same schema is not registered again.
+      file = registered;
+      SerializationContext ctx = ProtobufUtil.newSerializationContext();
+      try {
+         ctx.registerProtoFiles(FileDescriptorSource.fromString(fileName(), registered));
+      } catch (DescriptorParserException e) {
+         throw new IllegalStateException("Protobuf schema " + fileName() + " registered before is not readable", e);
+      }
+      // The rule captured another table before, its message does not share any value.
+      if (!(ctx.getGenericDescriptors().get(packageName + "." + messageName) instanceof Descriptor message)) return;
+
+      for (FieldDescriptor field : message.getFields()) {
+         if (field.getName().startsWith(RESERVED_PREFIX)) {
+            reserved.put(field.getNumber(), field.getTypeName());
+         } else {
+            numbers.put(field.getName(), new Numbered(field.getNumber(), field.getTypeName()));
+         }
+         next = Math.max(next, field.getNumber() + 1);
+      }
+   }
+
+   /**
+    * Updates the protobuf schema from the row schema, registering it if anything changed.
+    *
+    * @param row: The Kafka Connect schema of the before and after row images.
+    * @return A stage completing once the server accepted the schema, if it changed.
+    * @throws IllegalStateException: If two columns map to the same protobuf identifier.
+    */
+   public synchronized CompletionStage<Void> schemaChanged(Schema row) {
+      if (this.row == row) return CompletableFutures.completedNull();
+
+      Map<String, String> names = new HashMap<>();
+      for (Field field : row.fields()) {
+         if (columns != null && !columns.contains(field.name())) continue;
+
+         if (identifier(field.name()).startsWith(RESERVED_PREFIX)) {
+            throw new IllegalStateException(String.format("Column '%s' of %s maps to a reserved protobuf field",
+                  field.name(), messageName));
+         }
+         String previous = names.put(identifier(field.name()), field.name());
+         if (previous != null) {
+            throw new IllegalStateException(String.format("Columns '%s' and '%s' of %s both map to the protobuf field %s",
+                  previous, field.name(), messageName, identifier(field.name())));
+         }
+      }
+
+      List<Column> updated = new ArrayList<>();
+      for (Field field : row.fields()) {
+         if (columns != null && !columns.contains(field.name())) continue;
+
+         String id = identifier(field.name());
+         ColumnType type = ColumnType.of(field.schema());
+         Numbered numbered = numbers.get(id);
+         // The values written before must keep decoding, an incompatible type needs another number.
+         if (numbered == null || !numbered.proto.equals(type.proto)) {
+            if (numbered != null) reserved.put(numbered.number, numbered.proto);
+            numbered = new Numbered(next++, type.proto);
+            numbers.put(id, numbered);
+         }
+         updated.add(new Column(field.name(), numbered.number, type));
+      }
+      numbers.entrySet().removeIf(entry -> {
+         if (names.containsKey(entry.getKey())) return false;
+         reserved.put(entry.getValue().number, entry.getValue().proto);
+         return true;
+      });
+
+      Message message = new Message(updated);
+      List<Message> current = messages;
+      if (current.isEmpty() || !current.get(0).columns.equals(message.columns)) {
+         List<Message> kept = new ArrayList<>(Math.min(current.size() + 1, MAX_MESSAGES));
+         kept.add(message);
+         for (int i = 0; i < current.size() && kept.size() < MAX_MESSAGES; i++) {
+            kept.add(current.get(i));
+         }
+         messages = kept;
+      }
+      this.row = row;
+
+      String contents = protoFile();
+      if (!contents.equals(file)) {
+         file = contents;
+         // The registrations apply in order, a late one must not replace a newer file.
+         CompletionStage<Void> stage = registration
+               .handle((ignore, t) -> null)
+               .thenCompose(ignore -> registry.apply(fileName(), contents));
+         stage.whenComplete((ignore, t) -> rejected = t);
+         registration = stage;
+         return stage;
+      }
+      return CompletableFutures.completedNull();
+   }
+
+   private String protoFile() {
+      StringBuilder sb = new StringBuilder()
+            .append("// Generated from the captured table schema.\n")
+            .append("syntax = \"proto2\";\n")
+            .append("package ").append(packageName).append(";\n\n")
+            .append("message ").append(messageName).append(" {\n");
+      for (Map.Entry<String, Numbered> entry : numbers.entrySet()) {
+         sb.append("   optional ").append(entry.getValue().proto).append(' ').append(entry.getKey())
+               .append(" = ").append(entry.getValue().number).append(";\n");
+      }
+      for (Map.Entry<Integer, String> entry : reserved.entrySet()) {
+         sb.append("   optional ").append(entry.getValue()).append(' ').append(RESERVED_PREFIX).append(entry.getKey())
+               .append(" = ").append(entry.getKey()).append(";\n");
+      }
+      return sb.append("}\n").toString();
+   }
+
+   @Override
+   public byte[] apply(Json json) {
+      List<Message> current = messages;
+      if (current.isEmpty()) {
+         throw new IllegalStateException("Protobuf schema for " + packageName + "." + messageName + " not registered");
+      }
+      Throwable failure = rejected;
+      if (failure != null) {
+         throw new IllegalStateException("Protobuf schema for " + packageName + "." + messageName + " rejected", failure);
+      }
+
+      Message message = select(current, json);
+      ProtobufBuffer body = new ProtobufBuffer();
+      for (Column column : message.columns) {
+         Json value = json.at(column.name);
+         if (value == null || value.isNull()) continue;
+
+         column.type.write(body, column.number, value);
+      }
+
+      ProtobufBuffer wrapped = new ProtobufBuffer();
+      wrapped.bytes(WRAPPED_DESCRIPTOR_FULL_NAME, fullName, fullName.length);
+      wrapped.bytes(WRAPPED_MESSAGE, body.buf(), body.size());
+      return wrapped.toByteArray();
+   }
+
+   // The most recent schema the row fits in, or the most recent schema if none fits.
+   private Message select(List<Message> current, Json json) {
+      if (current.size() == 1) return current.get(0);
+
+      for (Message message : current) {
+         if (message.accepts(json, columns)) return message;
+      }
+      return current.get(0);
+   }
+
+   @Override
+   public void write(Json json, Utf8JsonWriter writer) {
+      writer.raw(apply(json));
+   }
+
+   private static String identifier(String name) {
+      String identifier = INVALID_IDENTIFIER.matcher(name).replaceAll("_");
+      return identifier.isEmpty() || Character.isDigit(identifier.charAt(0)) ? "_" + identifier : identifier;
+   }
+
+   private static final class Message {
+      private final List<Column> columns;
+      private final Map<String, Column> byName;
+
+      private Message(List<Column> columns) {
+         this.columns = columns;
+         this.byName = new HashMap<>();
+         for (Column column : columns) {
+            byName.put(column.name, column);
+         }
+      }
+
+      // Whether all the values of the row have a field of a compatible type, ignoring the columns not projected.
+      boolean accepts(Json json, Collection<String> projection) {
+         for (Map.Entry<String, Json> entry : json.asJsonMap().entrySet()) {
+            Json value = entry.getValue();
+            if (value == null || value.isNull()) continue;
+            if (projection != null && !projection.contains(entry.getKey())) continue;
+
+            Column column = byName.get(entry.getKey());
+            if (column == null || !column.type.accepts(value)) return false;
+         }
+         return true;
+      }
+   }
+
+   private record Column(String name, int number, ColumnType type) { }
+
+   // The number and protobuf type of a registered field.
+   private record Numbered(int number, String proto) { }
+
+   private enum ColumnType {
+      INT32("int32") {
+         @Override
+         void write(ProtobufBuffer buffer, int number, Json value) {
+            buffer.tag(number, WIRE_VARINT).varint(value.asInteger());
+         }
+      },
+      INT64("int64") {
+         @Override
+         void write(ProtobufBuffer buffer, int number, Json value) {
+            buffer.tag(number, WIRE_VARINT).varint(value.asLong());
+         }
+      },
+      FLOAT("float") {
+         @Override
+         void write(ProtobufBuffer buffer, int number, Json value) {
+            buffer.tag(number, WIRE_FIXED32).fixed32(Float.floatToRawIntBits(value.asFloat()));
+         }
+      },
+      DOUBLE("double") {
+         @Override
+         void write(ProtobufBuffer buffer, int number, Json value) {
+            buffer.tag(number, WIRE_FIXED64).fixed64(Double.doubleToRawLongBits(value.asDouble()));
+         }
+      },
+      BOOL("bool") {
+         @Override
+         void write(ProtobufBuffer buffer, int number, Json value) {
+            buffer.tag(number, WIRE_VARINT).varint(value.asBoolean() ? 1 : 0);
+         }
+      },
+      BYTES("bytes") {
+         @Override
+         void write(ProtobufBuffer buffer, int number, Json value) {
+            // Serialization keeps the raw bytes, which Json exposes as a list of numbers.
+            List<Json> list = value.asJsonList();
+            byte[] bytes = new byte[list.size()];
+            for (int i = 0; i < bytes.length; i++) {
+               bytes[i] = list.get(i).asByte();
+            }
+            buffer.bytes(number, bytes, bytes.length);
+         }
+      },
+      STRING("string") {
+         @Override
+         void write(ProtobufBuffer buffer, int number, Json value) {
+            String text = value.isString() ? value.asString() : value.toString();
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            buffer.bytes(number, bytes, bytes.length);
+         }
+      },
+      DECIMAL("string") {
+         @Override
+         void write(ProtobufBuffer buffer, int number, Json value) {
+            Object decimal = value.getValue();
+            String text = decimal instanceof BigDecimal bd ? bd.toPlainString() : String.valueOf(decimal);
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            buffer.bytes(number, bytes, bytes.length);
+         }
+      };
+
+      private final String proto;
+
+      ColumnType(String proto) {
+         this.proto = proto;
+      }
+
+      abstract void write(ProtobufBuffer buffer, int number, Json value);
+
+      boolean accepts(Json value) {
+         return switch (this) {
+            case INT32, INT64, FLOAT, DOUBLE -> value.isNumber();
+            case BOOL -> value.isBoolean();
+            case BYTES -> value.isArray();
+            case DECIMAL -> value.isNumber() || value.isString();
+            case STRING -> true;
+         };
+      }
+
+      static ColumnType of(Schema schema) {
+         if (Decimal.LOGICAL_NAME.equals(schema.name())) return DECIMAL;
+
+         return switch (schema.type()) {
+            case INT8, INT16, INT32 -> INT32;
+            case INT64 -> INT64;
+            case FLOAT32 -> FLOAT;
+            case FLOAT64 -> DOUBLE;
+            case BOOLEAN -> BOOL;
+            case BYTES -> BYTES;
+            case STRING, STRUCT, ARRAY, MAP -> STRING;
+         };
+      }
+   }
+
+   private static final class ProtobufBuffer extends ByteArrayOutputStream {
+
+      ProtobufBuffer tag(int number, int wireType) {
+         return varint(number << 3 | wireType);
+      }
+
+      ProtobufBuffer varint(long value) {
+         while ((value & ~0x7FL) != 0) {
+            write((int) (value & 0x7F | 0x80));
+            value >>>= 7;
+         }
+         write((int) value);
+         return this;
+      }
+
+      ProtobufBuffer fixed32(int value) {
+         for (int i = 0; i < 4; i++) {
+            write(value >>> (i * 8) & 0xFF);
+         }
+         return this;
+      }
+
+      ProtobufBuffer fixed64(long value) {
+         for (int i = 0; i < 8; i++) {
+            write((int) (value >>> (i * 8) & 0xFF));
+         }
+         return this;
+      }
+
+      void bytes(int number, byte[] bytes, int length) {
+         tag(number, WIRE_LENGTH_DELIMITED).varint(length);
+         write(bytes, 0, length);
+      }
+
+      byte[] buf() {
+         return buf;
+      }
+   }
+}
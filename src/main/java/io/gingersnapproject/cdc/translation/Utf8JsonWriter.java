@@ -0,0 +1,167 @@
+package io.gingersnapproject.cdc.translation;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.infinispan.commons.dataconversion.internal.Json;
+
+/**
+ * Streaming encoder writing {@link Json} values and text as UTF-8 bytes into a reusable buffer.
+ * <p>The output is the same as encoding {@link Json#toString()}, including the escaped characters, but without
+ * creating the intermediate string. The instance is not thread-safe. Call {@link #reset()} before each use and
+ * {@link #toByteArray()} to copy the bytes written.</p>
+ *
+ * @see JsonTranslator#write(Json, Utf8JsonWriter)
+ */
+public final class Utf8JsonWriter {
+   private static final int DEFAULT_CAPACITY = 256;
+   // A large value should not pin its buffer in the thread forever.
+   private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+   private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+   private byte[] buffer = new byte[DEFAULT_CAPACITY];
+   private int size;
+
+   public Utf8JsonWriter reset() {
+      if (buffer.length > MAX_RETAINED_CAPACITY) buffer = new byte[DEFAULT_CAPACITY];
+      size = 0;
+      return this;
+   }
+
+   public int size() {
+      return size;
+   }
+
+   public byte[] toByteArray() {
+      return Arrays.copyOf(buffer, size);
+   }
+
+   public Utf8JsonWriter beginObject() {
+      return write('{');
+   }
+
+   public Utf8JsonWriter endObject() {
+      return write('}');
+   }
+
+   /**
+    * Writes the property name inside an object, preceded by a comma when it is not the first.
+    */
+   public Utf8JsonWriter name(String name) {
+      if (size > 0 && buffer[size - 1] != '{') write(',');
+      string(name);
+      return write(':');
+   }
+
+   /**
+    * Writes the text as a quoted and escaped Json string.
+    */
+   public Utf8JsonWriter string(CharSequence value) {
+      write('"');
+      for (int i = 0; i < value.length(); i++) {
+         char c = value.charAt(i);
+         switch (c) {
+            case '"', '\\' -> write('\\').write(c);
+            case '\b' -> write('\\').write('b');
+            case '\t' -> write('\\').write('t');
+            case '\n' -> write('\\').write('n');
+            case '\f' -> write('\\').write('f');
+            case '\r' -> write('\\').write('r');
+            default -> {
+               if (c < 0x20 || (c >= 0x7f && c <= 0x9f) || c == 0x2028 || c == 0x2029) {
+                  ensure(6);
+                  buffer[size++] = '\\';
+                  buffer[size++] = 'u';
+                  buffer[size++] = HEX[c >> 12 & 0xf];
+                  buffer[size++] = HEX[c >> 8 & 0xf];
+                  buffer[size++] = HEX[c >> 4 & 0xf];
+                  buffer[size++] = HEX[c & 0xf];
+               } else {
+                  i = encode(value, i, c);
+               }
+            }
+         }
+      }
+      return write('"');
+   }
+
+   /**
+    * Writes the text as it is, without quoting or escaping.
+    */
+   public Utf8JsonWriter text(CharSequence value) {
+      for (int i = 0; i < value.length(); i++) {
+         i = encode(value, i, value.charAt(i));
+      }
+      return this;
+   }
+
+   /**
+    * Writes bytes that are already encoded.
+    */
+   public Utf8JsonWriter raw(byte[] bytes) {
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, buffer, size, bytes.length);
+      size += bytes.length;
+      return this;
+   }
+
+   public Utf8JsonWriter value(Json json) {
+      if (json == null || json.isNull()) return text("null");
+      if (json.isString()) return string(json.asString());
+      if (json.isNumber()) return text(json.getValue().toString());
+      if (json.isBoolean()) return text(json.asBoolean() ? "true" : "false");
+      if (json.isArray()) {
+         write('[');
+         boolean first = true;
+         for (Json element : json.asJsonList()) {
+            if (!first) write(',');
+            value(element);
+            first = false;
+         }
+         return write(']');
+      }
+
+      beginObject();
+      for (Map.Entry<String, Json> entry : json.asJsonMap().entrySet()) {
+         name(entry.getKey()).value(entry.getValue());
+      }
+      return endObject();
+   }
+
+   private Utf8JsonWriter write(char c) {
+      ensure(1);
+      buffer[size++] = (byte) c;
+      return this;
+   }
+
+   // Encodes the char at the index, returning the index of the last char consumed.
+   private int encode(CharSequence value, int i, char c) {
+      ensure(4);
+      if (c < 0x80) {
+         buffer[size++] = (byte) c;
+      } else if (c < 0x800) {
+         buffer[size++] = (byte) (0xc0 | c >> 6);
+         buffer[size++] = (byte) (0x80 | c & 0x3f);
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+         int cp = Character.toCodePoint(c, value.charAt(++i));
+         buffer[size++] = (byte) (0xf0 | cp >> 18);
+         buffer[size++] = (byte) (0x80 | cp >> 12 & 0x3f);
+         buffer[size++] = (byte) (0x80 | cp >> 6 & 0x3f);
+         buffer[size++] = (byte) (0x80 | cp & 0x3f);
+      } else if (Character.isSurrogate(c)) {
+         // Same replacement as String#getBytes for malformed input.
+         buffer[size++] = '?';
+      } else {
+         buffer[size++] = (byte) (0xe0 | c >> 12);
+         buffer[size++] = (byte) (0x80 | c >> 6 & 0x3f);
+         buffer[size++] = (byte) (0x80 | c & 0x3f);
+      }
+      return i;
+   }
+
+   private void ensure(int bytes) {
+      if (size + bytes > buffer.length) {
+         buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, size + bytes));
+      }
+   }
+}
@@ -19,8 +19,25 @@ public final class Serialization {
       return json;
    }
 
+   /**
+    * Converts only the given fields of the struct, skipping the remaining columns.
+    *
+    * @param struct: The struct to read.
+    * @param fields: Fields from the struct's schema.
+    * @return A Json object with the non-null fields.
+    */
+   public static Json convert(Struct struct, Collection<Field> fields) {
+      Json json = Json.object();
+      convert(struct, fields, json);
+      return json;
+   }
+
    private static void convert(Struct struct, Json json) {
-      for (Field field : struct.schema().fields()) {
+      convert(struct, struct.schema().fields(), json);
+   }
+
+   private static void convert(Struct struct, Collection<Field> fields, Json json) {
+      for (Field field : fields) {
          Object value = struct.get(field);
          if (value != null) {
             json.set(field.name(), convert(value));
@@ -6,6 +6,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.OptionalInt;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.event.Observes;
@@ -15,6 +16,7 @@ import javax.inject.Inject;
 import io.gingersnapproject.cdc.DynamicRuleManagement;
 import io.gingersnapproject.cdc.configuration.Connector;
 import io.gingersnapproject.cdc.configuration.Rule;
+import io.gingersnapproject.cdc.configuration.ValueEncoding;
 import io.gingersnapproject.k8s.configuration.KubernetesConfiguration;
 import io.gingersnapproject.proto.api.config.v1alpha1.EagerCacheRuleSpec;
 import io.gingersnapproject.proto.api.config.v1alpha1.KeyFormat;
@@ -232,4 +234,29 @@ class EagerCacheRuleSpecAdapter implements Rule {
       var list = eagerRule.getValue().getValueColumnsList();
       return Optional.ofNullable(list.size() > 0 ? list : null);
    }
+
+   @Override
+   public OptionalInt maxInFlight() {
+      return OptionalInt.empty();
+   }
+
+   @Override
+   public ValueEncoding valueEncoding() {
+      return ValueEncoding.JSON;
+   }
+
+   @Override
+   public int fingerprints() {
+      return 0;
+   }
+
+   @Override
+   public int weight() {
+      return 1;
+   }
+
+   @Override
+   public long writeBehind() {
+      return 0;
+   }
 }
\ No newline at end of file
@@ -0,0 +1,12 @@
+package io.gingersnapproject.metrics;
+
+/**
+ * The cache service operations with recorded latency.
+ *
+ * @see DBSyncerMetrics#recordCacheServiceAccess(CacheServiceOperation, long, Throwable)
+ */
+public enum CacheServiceOperation {
+   PUT,
+   REMOVE,
+   PUT_ALL
+}
@@ -1,5 +1,8 @@
 package io.gingersnapproject.metrics;
 
+import java.util.concurrent.ExecutorService;
+import java.util.function.IntSupplier;
+
 /**
  * Metrics interface.
  * <p>
@@ -7,8 +10,71 @@ package io.gingersnapproject.metrics;
  */
 public interface DBSyncerMetrics {
 
-   <T> CacheServiceAccessRecord<T> recordCacheServicePut();
+   /**
+    * Records the latency of a cache service operation, without allocating per operation.
+    *
+    * @param operation The operation.
+    * @param startNanos The {@link System#nanoTime()} when the operation started.
+    * @param t The failure, or null if the operation succeeded.
+    */
+   void recordCacheServiceAccess(CacheServiceOperation operation, long startNanos, Throwable t);
+
+   /**
+    * Records the time an engine was blocked waiting for in-flight writes to complete.
+    *
+    * @param nanos The time blocked, in nanoseconds.
+    */
+   void recordBackpressure(long nanos);
+
+   /**
+    * Registers the number of writes in-flight for an engine. The metric is removed once the connector stops.
+    *
+    * @param name The engine name.
+    * @param inFlight Supplies the current number of writes in-flight.
+    */
+   void registerInFlightWrites(String name, IntSupplier inFlight);
+
+   /**
+    * Registers the number of writes in-flight for all the engines.
+    *
+    * @param inFlight Supplies the current number of writes in-flight.
+    */
+   void registerGlobalInFlightWrites(IntSupplier inFlight);
+
+   /**
+    * Records a write skipped because the cache already holds the same entry.
+    *
+    * @param name The engine name.
+    */
+   void recordSkippedWrite(String name);
+
+   /**
+    * Records a write retried after a transient failure.
+    *
+    * @param name The engine name.
+    */
+   void recordWriteRetry(String name);
+
+   /**
+    * Records an event skipped after failing processing.
+    *
+    * @param name The engine name.
+    */
+   void recordDeadLetter(String name);
+
+   /**
+    * Registers the number of events in the dead-letter store.
+    *
+    * @param size Supplies the current number of events stored.
+    */
+   void registerDeadLetters(IntSupplier size);
 
-   <T> CacheServiceAccessRecord<T> recordCacheServiceRemove();
+   /**
+    * Registers the saturation of a thread pool, like the active threads and the queued tasks.
+    *
+    * @param name The pool name.
+    * @param executor The pool.
+    */
+   void registerExecutor(String name, ExecutorService executor);
 
 }
@@ -2,15 +2,18 @@ package io.gingersnapproject.metrics.micrometer;
 
 import io.gingersnapproject.cdc.configuration.Database;
 import io.gingersnapproject.cdc.event.Events;
-import io.gingersnapproject.metrics.CacheServiceAccessRecord;
+import io.gingersnapproject.metrics.CacheServiceOperation;
 import io.gingersnapproject.metrics.DBSyncerMetrics;
 import io.gingersnapproject.metrics.GenericStreamingBeanLookup;
 import io.gingersnapproject.metrics.MySQLStreamingBeanLookup;
 import io.gingersnapproject.metrics.OracleStreamingBeanLookup;
 import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.Meter;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
 import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,24 +26,39 @@ import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.IntSupplier;
 import java.util.stream.Stream;
 
 import static io.gingersnapproject.metrics.micrometer.TagUtil.CACHE_SERVICE;
 import static io.gingersnapproject.metrics.micrometer.TagUtil.COMPONENT_KEY;
+import static io.gingersnapproject.metrics.micrometer.TagUtil.ENGINE;
+import static io.gingersnapproject.metrics.micrometer.TagUtil.RULE_KEY;
 
 @ApplicationScoped
 public class MicrometerMetrics implements DBSyncerMetrics {
 
    private static final Logger log = LoggerFactory.getLogger(MicrometerMetrics.class);
    public static final String RECONNECT_METRIC_NAME = "gingersnap.reconnects";
+   public static final String IN_FLIGHT_METRIC_NAME = "gingersnap.writes.inflight";
+   public static final String SKIPPED_WRITES_METRIC_NAME = "gingersnap.writes.skipped";
+   public static final String WRITE_RETRIES_METRIC_NAME = "gingersnap.writes.retries";
+   public static final String DEAD_LETTERS_METRIC_NAME = "gingersnap.deadletters";
+   public static final String EXECUTOR_METRIC_PREFIX = "gingersnap";
 
    private final MeterRegistry registry;
    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
    private final Counter reconnectEvents;
    private final EnumMap<TimerMetrics, Timer> timerMetrics = new EnumMap<>(TimerMetrics.class);
+   private final EnumMap<CacheServiceOperation, Timer> successes = new EnumMap<>(CacheServiceOperation.class);
+   private final EnumMap<CacheServiceOperation, Timer> failures = new EnumMap<>(CacheServiceOperation.class);
    private final ConcurrentHashMap<String, RuleMetrics> rulesMetric = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<String, Meter.Id> inFlightMetric = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<String, Counter> skippedWrites = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<String, Counter> writeRetries = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<String, Counter> deadLetters = new ConcurrentHashMap<>();
 
    public MicrometerMetrics(MeterRegistry registry) {
       this.registry = registry;
@@ -50,6 +68,12 @@ public class MicrometerMetrics implements DBSyncerMetrics {
             .tag(COMPONENT_KEY, CACHE_SERVICE)
             .register(registry);
       Arrays.stream(TimerMetrics.values()).forEach(metric -> timerMetrics.put(metric, metric.register(registry)));
+      successes.put(CacheServiceOperation.PUT, timerMetrics.get(TimerMetrics.CACHE_PUT_OK));
+      failures.put(CacheServiceOperation.PUT, timerMetrics.get(TimerMetrics.CACHE_PUT_FAILED));
+      successes.put(CacheServiceOperation.REMOVE, timerMetrics.get(TimerMetrics.CACHE_REMOVE_OK));
+      failures.put(CacheServiceOperation.REMOVE, timerMetrics.get(TimerMetrics.CACHE_REMOVE_FAILED));
+      successes.put(CacheServiceOperation.PUT_ALL, timerMetrics.get(TimerMetrics.CACHE_PUT_ALL_OK));
+      failures.put(CacheServiceOperation.PUT_ALL, timerMetrics.get(TimerMetrics.CACHE_PUT_ALL_FAILED));
    }
 
    void registerMetrics(@Observes Events.ConnectorStartedEvent ev) {
@@ -75,6 +99,24 @@ public class MicrometerMetrics implements DBSyncerMetrics {
          ruleMetrics.ids().forEach(registry::remove);
          return null;
       });
+      Meter.Id inFlight = inFlightMetric.remove(ev.identifier().toString());
+      if (inFlight != null) registry.remove(inFlight);
+      removeCounters(ev.identifier().toString());
+      // The dead letters are recorded by engine name.
+      Counter letters = deadLetters.remove(ev.identifier().rule());
+      if (letters != null) registry.remove(letters);
+   }
+
+   void unregisterMetrics(@Observes Events.BackendStoppedEvent ev) {
+      // An engine writing to many caches records the writes of each cache under its own identifier.
+      removeCounters(ev.identifier().toString());
+   }
+
+   private void removeCounters(String name) {
+      Counter skipped = skippedWrites.remove(name);
+      if (skipped != null) registry.remove(skipped);
+      Counter retries = writeRetries.remove(name);
+      if (retries != null) registry.remove(retries);
    }
 
    void onCacheServiceReconnect(@Observes Events.BackendStartedEvent event) {
@@ -149,22 +191,69 @@ public class MicrometerMetrics implements DBSyncerMetrics {
    }
 
    @Override
-   public <T> CacheServiceAccessRecord<T> recordCacheServicePut() {
-      return new AccessRecordImpl<>(System.nanoTime(), timerMetrics, TimerMetrics.CACHE_PUT_OK, TimerMetrics.CACHE_REMOVE_OK);
+   public void recordCacheServiceAccess(CacheServiceOperation operation, long startNanos, Throwable t) {
+      (t == null ? successes : failures).get(operation).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
    }
 
    @Override
-   public <T> CacheServiceAccessRecord<T> recordCacheServiceRemove() {
-      return new AccessRecordImpl<>(System.nanoTime(), timerMetrics, TimerMetrics.CACHE_REMOVE_OK, TimerMetrics.CACHE_REMOVE_FAILED);
+   public void recordBackpressure(long nanos) {
+      timerMetrics.get(TimerMetrics.BACKPRESSURE).record(nanos, TimeUnit.NANOSECONDS);
    }
 
-   private record AccessRecordImpl<T>(long startNanos, EnumMap<TimerMetrics, Timer> timeMetrics, TimerMetrics success,
-                                      TimerMetrics failed) implements CacheServiceAccessRecord<T> {
+   @Override
+   public void registerInFlightWrites(String name, IntSupplier inFlight) {
+      inFlightMetric.computeIfAbsent(name, ruleName -> Gauge.builder(IN_FLIGHT_METRIC_NAME, inFlight::getAsInt)
+            .description("The number of cache service writes in-flight for the rule")
+            .tag(COMPONENT_KEY, CACHE_SERVICE)
+            .tag(RULE_KEY, ruleName)
+            .register(registry)
+            .getId());
+   }
 
-      @Override
-      public void accept(T t, Throwable throwable) {
-         (throwable == null ? timeMetrics.get(success) : timeMetrics.get(failed)).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
-      }
+   @Override
+   public void registerGlobalInFlightWrites(IntSupplier inFlight) {
+      Gauge.builder(IN_FLIGHT_METRIC_NAME + ".total", inFlight::getAsInt)
+            .description("The number of cache service writes in-flight for all the rules")
+            .tag(COMPONENT_KEY, CACHE_SERVICE)
+            .register(registry);
+   }
+
+   @Override
+   public void recordSkippedWrite(String name) {
+      skippedWrites.computeIfAbsent(name, ruleName -> Counter.builder(SKIPPED_WRITES_METRIC_NAME)
+            .description("The number of cache service writes skipped as the entry is unchanged")
+            .tag(COMPONENT_KEY, CACHE_SERVICE)
+            .tag(RULE_KEY, ruleName)
+            .register(registry)).increment();
+   }
+
+   @Override
+   public void recordWriteRetry(String name) {
+      writeRetries.computeIfAbsent(name, ruleName -> Counter.builder(WRITE_RETRIES_METRIC_NAME)
+            .description("The number of cache service writes retried after a transient failure")
+            .tag(COMPONENT_KEY, CACHE_SERVICE)
+            .tag(RULE_KEY, ruleName)
+            .register(registry)).increment();
+   }
+
+   @Override
+   public void recordDeadLetter(String name) {
+      deadLetters.computeIfAbsent(name, ruleName -> Counter.builder(DEAD_LETTERS_METRIC_NAME)
+            .description("The number of events skipped after failing processing")
+            .tag(RULE_KEY, ruleName)
+            .register(registry)).increment();
+   }
+
+   @Override
+   public void registerDeadLetters(IntSupplier size) {
+      Gauge.builder(DEAD_LETTERS_METRIC_NAME + ".stored", size::getAsInt)
+            .description("The number of events in the dead-letter store")
+            .register(registry);
+   }
+
+   @Override
+   public void registerExecutor(String name, ExecutorService executor) {
+      new ExecutorServiceMetrics(executor, name, EXECUTOR_METRIC_PREFIX, Tags.of(COMPONENT_KEY, ENGINE)).bindTo(registry);
    }
 
    private record RuleMetrics(List<Meter.Id> ids) {
@@ -7,6 +7,7 @@ public final class TagUtil {
    public static final String CONNECTOR_TYPE_KEY = "connector";
    public static final String CACHE_SERVICE = "cache.service";
    public static final String DEBEZIUM_CONNECTOR = "debezium.connector";
+   public static final String ENGINE = "engine";
 
    private TagUtil() {}
 
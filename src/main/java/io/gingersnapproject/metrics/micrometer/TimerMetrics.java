@@ -16,7 +16,10 @@ public enum TimerMetrics {
    CACHE_PUT_OK("cache.put.successes", "The latency of successful cache service put operations"),
    CACHE_PUT_FAILED("cache.put.fails", "The latency of failed cache service put operations"),
    CACHE_REMOVE_OK("cache.remove.successes", "The latency of successful cache service remove operations"),
-   CACHE_REMOVE_FAILED("cache.remove.fails", "The latency of failed cache service remove operations");
+   CACHE_REMOVE_FAILED("cache.remove.fails", "The latency of failed cache service remove operations"),
+   CACHE_PUT_ALL_OK("cache.putall.successes", "The latency of successful cache service bulk put operations"),
+   CACHE_PUT_ALL_FAILED("cache.putall.fails", "The latency of failed cache service bulk put operations"),
+   BACKPRESSURE("backpressure", "The time engines were blocked waiting for in-flight cache service writes to complete");
 
    final String metricName;
    final String description;
@@ -0,0 +1,66 @@
+package io.gingersnapproject.cdc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import io.gingersnapproject.cdc.cache.CacheIdentifier;
+import io.gingersnapproject.util.MemoryOffsetBackend;
+
+import org.junit.jupiter.api.Test;
+
+public class CaptureStateTest {
+   private static final CacheIdentifier FIRST = CacheIdentifier.of("rule", URI.create("hotrod://10.0.0.1:11222"));
+   private static final CacheIdentifier SECOND = CacheIdentifier.of("rule", URI.create("hotrod://10.0.0.2:11222"));
+
+   private final MemoryOffsetBackend offsets = new MemoryOffsetBackend();
+
+   @Test
+   public void testMarksKeptPerCapture() {
+      var state = load("capture");
+      assertEquals(0, state.epoch());
+      state.lagging(FIRST, true).toCompletableFuture().join();
+      state.lagging(SECOND, true).toCompletableFuture().join();
+      state.lagging(SECOND, false).toCompletableFuture().join();
+
+      var loaded = load("capture");
+      assertTrue(loaded.lagging(FIRST));
+      assertFalse(loaded.lagging(SECOND));
+      // Another capture keeping the offsets in the same member has its own marks.
+      assertFalse(load("other").lagging(FIRST));
+   }
+
+   @Test
+   public void testSnapshotStartsNewEpochWithoutMarks() {
+      var state = load("capture");
+      state.lagging(FIRST, true).toCompletableFuture().join();
+      state.snapshot().toCompletableFuture().join();
+      assertEquals(1, state.epoch());
+      assertFalse(state.lagging(FIRST));
+
+      var loaded = load("capture");
+      assertEquals(1, loaded.epoch());
+      assertFalse(loaded.lagging(FIRST));
+      assertEquals(0, load("other").epoch());
+   }
+
+   @Test
+   public void testTablesKeptAcrossEpochs() {
+      var state = load("capture");
+      assertEquals(Optional.empty(), state.tables());
+      state.tables(Set.of("inventory.users", "inventory.orders")).toCompletableFuture().join();
+      state.snapshot().toCompletableFuture().join();
+
+      assertEquals(Optional.of(Set.of("inventory.users", "inventory.orders")), load("capture").tables());
+      assertEquals(Optional.empty(), load("other").tables());
+   }
+
+   private CaptureState load(String name) {
+      return CaptureState.load(offsets, name, List.of(FIRST, SECOND)).toCompletableFuture().join();
+   }
+}
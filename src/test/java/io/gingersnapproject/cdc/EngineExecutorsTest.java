@@ -0,0 +1,74 @@
+package io.gingersnapproject.cdc;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.gingersnapproject.cdc.configuration.Processing;
+import io.gingersnapproject.metrics.DBSyncerMetrics;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class EngineExecutorsTest {
+
+   private EngineExecutors executors;
+
+   @AfterEach
+   public void shutdown() {
+      if (executors != null) executors.shutdown();
+   }
+
+   @Test
+   public void testEngineLoopsDoNotTakeProcessingThreads() throws Exception {
+      var metrics = mock(DBSyncerMetrics.class);
+      executors = new EngineExecutors(processing(1, 0), metrics);
+      var stop = new CountDownLatch(1);
+
+      // More blocking loops than processing threads.
+      for (int i = 0; i < 3; i++) {
+         executors.run(() -> await(stop));
+      }
+
+      var processed = new CountDownLatch(1);
+      executors.processing("rule", 1).execute(processed::countDown);
+      assertTrue(processed.await(5, TimeUnit.SECONDS));
+      stop.countDown();
+
+      verify(metrics).registerExecutor(eq(EngineExecutors.ENGINE_POOL), any());
+      verify(metrics).registerExecutor(eq(EngineExecutors.PROCESSING_POOL), any());
+   }
+
+   @Test
+   public void testEngineFailsPastMaximumEngines() throws Exception {
+      executors = new EngineExecutors(processing(1, 1), mock(DBSyncerMetrics.class));
+      var stop = new CountDownLatch(1);
+
+      executors.run(() -> await(stop));
+      assertThrows(IOException.class, () -> executors.run(() -> await(stop)));
+      stop.countDown();
+   }
+
+   private static Processing processing(int processingThreads, int engineThreads) {
+      Processing processing = mock(Processing.class);
+      when(processing.processingThreads()).thenReturn(processingThreads);
+      when(processing.engineThreads()).thenReturn(engineThreads);
+      return processing;
+   }
+
+   private static void await(CountDownLatch latch) {
+      try {
+         latch.await();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+}
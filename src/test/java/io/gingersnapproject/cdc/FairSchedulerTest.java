@@ -0,0 +1,92 @@
+package io.gingersnapproject.cdc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.jupiter.api.Test;
+
+public class FairSchedulerTest {
+
+   // Runs the tasks only when asked, one at a time.
+   private final List<Runnable> pool = new ArrayList<>();
+   private final List<String> ran = new ArrayList<>();
+
+   @Test
+   public void testRuleDoesNotWaitBehindAnotherRule() {
+      var scheduler = new FairScheduler(pool::add, 1);
+      Executor bulk = scheduler.executor("bulk", 1);
+      Executor streaming = scheduler.executor("streaming", 1);
+
+      for (int i = 0; i < 5; i++) {
+         bulk.execute(task("bulk"));
+      }
+      streaming.execute(task("streaming"));
+
+      runAll();
+      assertEquals(List.of("bulk", "bulk", "streaming", "bulk", "bulk", "bulk"), ran);
+   }
+
+   @Test
+   public void testTurnsFollowWeights() {
+      var scheduler = new FairScheduler(pool::add, 1);
+      // Holds the only thread until all the tasks are queued.
+      scheduler.executor("other", 1).execute(task("other"));
+
+      Executor heavy = scheduler.executor("heavy", 2);
+      Executor light = scheduler.executor("light", 1);
+      for (int i = 0; i < 4; i++) {
+         heavy.execute(task("heavy"));
+         light.execute(task("light"));
+      }
+
+      runAll();
+      assertEquals(List.of("other", "heavy", "heavy", "light", "heavy", "heavy", "light", "light", "light"), ran);
+   }
+
+   @Test
+   public void testDispatchesUpToThreads() {
+      var scheduler = new FairScheduler(pool::add, 2);
+      Executor executor = scheduler.executor("rule", 1);
+      for (int i = 0; i < 5; i++) {
+         executor.execute(task("rule"));
+      }
+
+      assertEquals(2, pool.size());
+      runAll();
+      assertEquals(5, ran.size());
+      assertTrue(pool.isEmpty());
+   }
+
+   @Test
+   public void testQueueForgottenOnceAllEnginesRelease() {
+      var scheduler = new FairScheduler(pool::add, 1);
+      // The engines of two members share the queue of the name.
+      Executor first = scheduler.executor("multiplexed", 1);
+      Executor second = scheduler.executor("multiplexed", 1);
+      assertSame(first, second);
+
+      scheduler.release("multiplexed");
+      assertEquals(1, scheduler.queues());
+      scheduler.release("multiplexed");
+      assertEquals(0, scheduler.queues());
+
+      // Releasing an unknown name does nothing.
+      scheduler.release("multiplexed");
+      assertEquals(0, scheduler.queues());
+   }
+
+   private Runnable task(String name) {
+      return () -> ran.add(name);
+   }
+
+   private void runAll() {
+      while (!pool.isEmpty()) {
+         pool.remove(0).run();
+      }
+   }
+}
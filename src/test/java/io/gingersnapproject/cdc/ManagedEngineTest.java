@@ -3,6 +3,7 @@ package io.gingersnapproject.cdc;
 import static io.gingersnapproject.util.Utils.eventually;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
@@ -18,6 +19,8 @@ import java.net.URI;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BooleanSupplier;
 
@@ -27,11 +30,17 @@ import io.gingersnapproject.cdc.configuration.Cache;
 import io.gingersnapproject.cdc.configuration.Configuration;
 import io.gingersnapproject.cdc.configuration.Connector;
 import io.gingersnapproject.cdc.configuration.Database;
+import io.gingersnapproject.cdc.configuration.Processing;
 import io.gingersnapproject.cdc.configuration.Rule;
+import io.gingersnapproject.cdc.configuration.ValueEncoding;
+import io.gingersnapproject.cdc.configuration.WaitStrategy;
 import io.gingersnapproject.cdc.connector.DatabaseProvider;
+import io.gingersnapproject.cdc.deadletter.DeadLetters;
 import io.gingersnapproject.cdc.event.Events;
 import io.gingersnapproject.cdc.event.NotificationManager;
+import io.gingersnapproject.metrics.DBSyncerMetrics;
 import io.gingersnapproject.proto.api.config.v1alpha1.KeyFormat;
+import io.gingersnapproject.util.MemoryOffsetBackend;
 import io.gingersnapproject.util.Utils;
 
 import org.junit.jupiter.api.BeforeEach;
@@ -55,11 +64,16 @@ public class ManagedEngineTest {
       when(configurationMock.rules()).thenReturn(Map.of("rule", new MockTestRule()));
       when(configurationMock.database()).thenReturn(new MockDatabase());
       when(configurationMock.cache()).thenReturn(new MockCache());
+      when(configurationMock.processing()).thenReturn(new MockProcessing());
+      when(cacheServiceMock.offsetBackend(any())).thenReturn(new MemoryOffsetBackend());
 
       managedEngine = new ManagedEngine();
       managedEngine.config = configurationMock;
       managedEngine.cacheService = cacheServiceMock;
       managedEngine.eventing = notificationManagerMock;
+      managedEngine.metrics = mock(DBSyncerMetrics.class);
+      managedEngine.deadLetters = new DeadLetters(10, managedEngine.metrics);
+      managedEngine.executors = new EngineExecutors(new MockProcessing(), managedEngine.metrics);
    }
 
    @Test
@@ -221,12 +235,318 @@ public class ManagedEngineTest {
       assertFalse(knownRules.containsKey(identifier.rule()));
    }
 
+   @Test
+   public void testMultiplexRulesInSingleEngine() throws Exception {
+      var member = URI.create("hotrod://localhost:11222");
+      var engineId = CacheIdentifier.of(ManagedEngine.MULTIPLEXED, member);
+      when(configurationMock.processing()).thenReturn(new MockProcessing(true, false, 0));
+      when(configurationMock.rules()).thenReturn(Map.of("rule-1", new MockTestRule(), "rule-2", new MockTestRule()));
+      when(cacheServiceMock.start(any(), any())).thenReturn(mock(CacheBackend.class));
+
+      managedEngine.start(null);
+      managedEngine.memberJoined(new Events.CacheMemberJoinEvent(member));
+
+      verify(cacheServiceMock, times(1)).start(eq(CacheIdentifier.of("rule-1", member)), any());
+      verify(cacheServiceMock, times(1)).start(eq(CacheIdentifier.of("rule-2", member)), any());
+
+      Map<CacheIdentifier, ManagedEngine.StartStopEngine> engines = Utils.extractField(ManagedEngine.class, "engines", managedEngine);
+      assertEquals(1, engines.size());
+      var sse = engines.get(engineId);
+      ManagedEngine.Status status = Utils.extractField(ManagedEngine.StartStopEngine.class, "status", sse);
+      assertEquals(ManagedEngine.Status.RUNNING, status);
+
+      // Removing a rule replaces the engine with one capturing the remaining rule.
+      managedEngine.removeRule("rule-1");
+      status = Utils.extractField(ManagedEngine.StartStopEngine.class, "status", sse);
+      assertEquals(ManagedEngine.Status.SHUTDOWN, status);
+      assertEquals(1, engines.size());
+      EngineWrapper engine = Utils.extractField(ManagedEngine.StartStopEngine.class, "engine", engines.get(engineId));
+      assertEquals(Set.of("rule-2"), engine.rules().keySet());
+
+      // Without rules, the member has no engine.
+      managedEngine.removeRule("rule-2");
+      assertTrue(engines.isEmpty());
+   }
+
+   @Test
+   public void testRuleChangesKeepOffsets() throws Exception {
+      var member = URI.create("hotrod://localhost:11222");
+      var engineId = CacheIdentifier.of(ManagedEngine.MULTIPLEXED, member);
+      var offsets = new MemoryOffsetBackend();
+      when(cacheServiceMock.offsetBackend(any())).thenReturn(offsets);
+      when(configurationMock.processing()).thenReturn(new MockProcessing(true, false, 0));
+      when(configurationMock.rules()).thenReturn(Map.of("rule-1", new MockTestRule()));
+      when(cacheServiceMock.start(any(), any())).thenReturn(mock(CacheBackend.class));
+
+      managedEngine.start(null);
+      managedEngine.memberJoined(new Events.CacheMemberJoinEvent(member));
+
+      Map<CacheIdentifier, ManagedEngine.StartStopEngine> engines = Utils.extractField(ManagedEngine.class, "engines", managedEngine);
+      EngineWrapper engine = Utils.extractField(ManagedEngine.StartStopEngine.class, "engine", engines.get(engineId));
+      String capture = engine.capture();
+      var state = CaptureState.load(offsets, capture, List.of()).toCompletableFuture().join();
+      assertEquals(0, state.epoch());
+      assertEquals(Optional.of(Set.of("testing.testers")), state.tables());
+
+      // Without a signal table, a rule capturing another table snapshots all the tables, keeping the offsets name.
+      managedEngine.addRule("rule-2", new MockTestRule("others"));
+      engine = Utils.extractField(ManagedEngine.StartStopEngine.class, "engine", engines.get(engineId));
+      assertEquals(capture, engine.capture());
+      state = CaptureState.load(offsets, capture, List.of()).toCompletableFuture().join();
+      assertEquals(1, state.epoch());
+      assertEquals(Optional.of(Set.of("testing.testers", "testing.others")), state.tables());
+
+      // Removing a table keeps streaming the others from the same offsets.
+      managedEngine.removeRule("rule-1");
+      engine = Utils.extractField(ManagedEngine.StartStopEngine.class, "engine", engines.get(engineId));
+      assertEquals(capture, engine.capture());
+      state = CaptureState.load(offsets, capture, List.of()).toCompletableFuture().join();
+      assertEquals(1, state.epoch());
+      assertEquals(Optional.of(Set.of("testing.others")), state.tables());
+
+      // A rule never takes the name of an engine.
+      managedEngine.addRule(ManagedEngine.MULTIPLEXED, new MockTestRule());
+      engine = Utils.extractField(ManagedEngine.StartStopEngine.class, "engine", engines.get(engineId));
+      assertEquals(Set.of("rule-2"), engine.rules().keySet());
+   }
+
+   @Test
+   public void testFanOutRuleToAllMembers() throws Exception {
+      var first = URI.create("hotrod://10.0.0.1:11222");
+      var second = URI.create("hotrod://10.0.0.2:11222");
+      var engineId = CacheIdentifier.of("rule", first);
+      var offsets = new MemoryOffsetBackend();
+      when(cacheServiceMock.offsetBackend(any())).thenReturn(offsets);
+      when(configurationMock.processing()).thenReturn(new MockProcessing(false, true, 0));
+      when(cacheServiceMock.startAll(any(), any(), any())).thenReturn(mock(CacheBackend.class));
+
+      managedEngine.start(null);
+      managedEngine.memberJoined(new Events.CacheMemberJoinEvent(first));
+
+      Map<CacheIdentifier, ManagedEngine.StartStopEngine> engines = Utils.extractField(ManagedEngine.class, "engines", managedEngine);
+      assertEquals(1, engines.size());
+      var single = engines.get(engineId);
+      verify(cacheServiceMock, times(1)).startAll(eq(List.of(engineId)), any(), any());
+
+      // Without a catch-up budget, the member joining replaces the capture with one writing to both members, which
+      // snapshots the tables for the member joining.
+      managedEngine.memberJoined(new Events.CacheMemberJoinEvent(second));
+      assertEquals(1, engines.size());
+      ManagedEngine.Status status = Utils.extractField(ManagedEngine.StartStopEngine.class, "status", single);
+      assertEquals(ManagedEngine.Status.SHUTDOWN, status);
+      verify(cacheServiceMock, times(1)).startAll(eq(List.of(engineId, CacheIdentifier.of("rule", second))), any(), any());
+      assertEquals(1, CaptureState.load(offsets, "rule", List.of()).toCompletableFuture().join().epoch());
+
+      var sse = engines.get(engineId);
+      status = Utils.extractField(ManagedEngine.StartStopEngine.class, "status", sse);
+      assertEquals(ManagedEngine.Status.RUNNING, status);
+
+      // A backend failing in any member restarts the capture.
+      managedEngine.backendFailed(new Events.BackendFailedEvent(CacheIdentifier.of("rule", second), null));
+      BooleanSupplier bs = () -> {
+         ManagedEngine.Status s = Utils.extractField(ManagedEngine.StartStopEngine.class, "status", sse);
+         return s == ManagedEngine.Status.RETRYING;
+      };
+      eventually(() -> "Engine did not enter into retry", bs, 10, TimeUnit.SECONDS);
+   }
+
+   @Test
+   public void testMembersJoinAndLeaveRunningFanOut() throws Exception {
+      var first = URI.create("hotrod://10.0.0.1:11222");
+      var second = URI.create("hotrod://10.0.0.2:11222");
+      var third = URI.create("hotrod://10.0.0.3:11222");
+      var engineId = CacheIdentifier.of("rule", second);
+      var fanOut = mock(CacheBackend.class);
+      when(configurationMock.processing()).thenReturn(new MockProcessing(false, true, 100));
+      when(cacheServiceMock.startAll(any(), any(), any())).thenReturn(fanOut);
+
+      managedEngine.start(null);
+      managedEngine.memberJoined(new Events.CacheMemberJoinEvent(second));
+
+      Map<CacheIdentifier, ManagedEngine.StartStopEngine> engines = Utils.extractField(ManagedEngine.class, "engines", managedEngine);
+      var sse = engines.get(engineId);
+
+      // The members join the running capture, the member keeping the offsets stays even if another sorts first.
+      managedEngine.memberJoined(new Events.CacheMemberJoinEvent(first));
+      managedEngine.memberJoined(new Events.CacheMemberJoinEvent(third));
+      assertEquals(Map.of(engineId, sse), engines);
+      ManagedEngine.Status status = Utils.extractField(ManagedEngine.StartStopEngine.class, "status", sse);
+      assertEquals(ManagedEngine.Status.RUNNING, status);
+      verify(cacheServiceMock).join(eq(fanOut), eq(CacheIdentifier.of("rule", first)), any());
+      verify(cacheServiceMock).join(eq(fanOut), eq(CacheIdentifier.of("rule", third)), any());
+      verify(cacheServiceMock, times(1)).startAll(any(), any(), any());
+      EngineWrapper engine = Utils.extractField(ManagedEngine.StartStopEngine.class, "engine", sse);
+      assertEquals(List.of(first, second, third), engine.members());
+
+      managedEngine.memberLeft(new Events.CacheMemberLeaveEvent(third));
+      verify(cacheServiceMock).leave(fanOut, CacheIdentifier.of("rule", third));
+      assertEquals(List.of(first, second), engine.members());
+      assertSame(sse, engines.get(engineId));
+
+      // The offsets leave with the member keeping them, another capture starts.
+      managedEngine.memberLeft(new Events.CacheMemberLeaveEvent(second));
+      status = Utils.extractField(ManagedEngine.StartStopEngine.class, "status", sse);
+      assertEquals(ManagedEngine.Status.SHUTDOWN, status);
+      assertEquals(Set.of(CacheIdentifier.of("rule", first)), engines.keySet());
+      verify(cacheServiceMock).startAll(eq(List.of(CacheIdentifier.of("rule", first))), any(), any());
+   }
+
+   @Test
+   public void testLaggingMemberDoesNotRestartFanOut() throws Exception {
+      var first = URI.create("hotrod://10.0.0.1:11222");
+      var second = URI.create("hotrod://10.0.0.2:11222");
+      var engineId = CacheIdentifier.of("rule", first);
+      when(configurationMock.processing()).thenReturn(new MockProcessing(false, true, 100));
+      when(cacheServiceMock.startAll(any(), any(), any())).thenReturn(mock(CacheBackend.class));
+
+      managedEngine.start(null);
+      managedEngine.memberJoined(new Events.CacheMemberJoinEvent(first));
+      managedEngine.memberJoined(new Events.CacheMemberJoinEvent(second));
+
+      Map<CacheIdentifier, ManagedEngine.StartStopEngine> engines = Utils.extractField(ManagedEngine.class, "engines", managedEngine);
+      var sse = engines.get(engineId);
+      managedEngine.backendFailed(new Events.BackendFailedEvent(CacheIdentifier.of("rule", second), null));
+      ManagedEngine.Status status = Utils.extractField(ManagedEngine.StartStopEngine.class, "status", sse);
+      assertEquals(ManagedEngine.Status.RUNNING, status);
+
+      // A replaced capture reporting a member does not restart the current one.
+      managedEngine.catchUpOverflow(new Events.CatchUpOverflowEvent(CacheIdentifier.of("rule", second), "replaced"));
+      status = Utils.extractField(ManagedEngine.StartStopEngine.class, "status", sse);
+      assertEquals(ManagedEngine.Status.RUNNING, status);
+
+      // No member has the changes the member missed, the capture starts again to snapshot the tables.
+      EngineWrapper lagging = Utils.extractField(ManagedEngine.StartStopEngine.class, "engine", sse);
+      managedEngine.catchUpOverflow(new Events.CatchUpOverflowEvent(CacheIdentifier.of("rule", second), lagging.capture()));
+      BooleanSupplier restarting = () -> {
+         ManagedEngine.Status s = Utils.extractField(ManagedEngine.StartStopEngine.class, "status", sse);
+         return s == ManagedEngine.Status.RETRYING;
+      };
+      eventually(() -> "Engine did not restart", restarting, 10, TimeUnit.SECONDS);
+      assertSame(sse, engines.get(engineId));
+   }
+
    private static final class MockCache implements Cache {
 
       @Override
       public URI uri() {
          return URI.create("hotrod://localhost:11222");
       }
+
+      @Override
+      public int maxBatchSize() {
+         return 1000;
+      }
+
+      @Override
+      public int maxRetries() {
+         return 3;
+      }
+
+      @Override
+      public long retryBackoff() {
+         return 100;
+      }
+
+      @Override
+      public long maxRetryBackoff() {
+         return 5000;
+      }
+   }
+
+   private static final class MockProcessing implements Processing {
+      private final boolean multiplex;
+      private final boolean fanOut;
+      private final int catchUpKeys;
+
+      private MockProcessing() {
+         this(false, false, 0);
+      }
+
+      private MockProcessing(boolean multiplex, boolean fanOut, int catchUpKeys) {
+         this.multiplex = multiplex;
+         this.fanOut = fanOut;
+         this.catchUpKeys = catchUpKeys;
+      }
+
+      @Override
+      public int processingThreads() {
+         return 4;
+      }
+
+      @Override
+      public int engineThreads() {
+         return 0;
+      }
+
+      @Override
+      public boolean multiplex() {
+         return multiplex;
+      }
+
+      @Override
+      public boolean fanOut() {
+         return fanOut;
+      }
+
+      @Override
+      public int catchUpKeys() {
+         return catchUpKeys;
+      }
+
+      @Override
+      public int memberInFlight() {
+         return 0;
+      }
+
+      @Override
+      public int lanes() {
+         return 4;
+      }
+
+      @Override
+      public int pipelineDepth() {
+         return 2;
+      }
+
+      @Override
+      public long heartbeatInterval() {
+         return 0;
+      }
+
+      @Override
+      public int maxInFlight() {
+         return 100;
+      }
+
+      @Override
+      public int maxInFlightPerEngine() {
+         return 10;
+      }
+
+      @Override
+      public boolean transactions() {
+         return false;
+      }
+
+      @Override
+      public int chunkSize() {
+         return 0;
+      }
+
+      @Override
+      public int laneCapacity() {
+         return 1024;
+      }
+
+      @Override
+      public WaitStrategy waitStrategy() {
+         return WaitStrategy.SLEEP;
+      }
+
+      @Override
+      public int deadLetters() {
+         return 10;
+      }
    }
 
    private static final class MockDatabase implements Database {
@@ -260,9 +580,24 @@ public class ManagedEngineTest {
       public Optional<String> database() {
          return Optional.empty();
       }
+
+      @Override
+      public Optional<String> signalTable() {
+         return Optional.empty();
+      }
    }
 
    private static final class MockTestRule implements Rule {
+      private final String table;
+
+      MockTestRule() {
+         this("testers");
+      }
+
+      MockTestRule(String table) {
+         this.table = table;
+      }
+
       @Override
       public Connector connector() {
          return new Connector() {
@@ -273,7 +608,7 @@ public class ManagedEngineTest {
 
             @Override
             public String table() {
-               return "testers";
+               return table;
             }
          };
       }
@@ -297,5 +632,30 @@ public class ManagedEngineTest {
       public Optional<List<String>> valueColumns() {
          return Optional.empty();
       }
+
+      @Override
+      public OptionalInt maxInFlight() {
+         return OptionalInt.empty();
+      }
+
+      @Override
+      public ValueEncoding valueEncoding() {
+         return ValueEncoding.JSON;
+      }
+
+      @Override
+      public int fingerprints() {
+         return 0;
+      }
+
+      @Override
+      public int weight() {
+         return 1;
+      }
+
+      @Override
+      public long writeBehind() {
+         return 0;
+      }
    }
 }
@@ -0,0 +1,348 @@
+package io.gingersnapproject.cdc.cache.hotrod;
+
+import static io.gingersnapproject.util.Utils.eventually;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import io.gingersnapproject.cdc.CaptureState;
+import io.gingersnapproject.cdc.cache.CacheIdentifier;
+import io.gingersnapproject.cdc.event.NotificationManager;
+import io.gingersnapproject.cdc.translation.ColumnStringTranslator;
+import io.gingersnapproject.cdc.translation.IdentityTranslator;
+import io.gingersnapproject.metrics.DBSyncerMetrics;
+import io.gingersnapproject.util.MemoryOffsetBackend;
+
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.junit.jupiter.api.Test;
+
+public class FanOutCacheBackendTest {
+   private static final String CAPTURE = "rule-capture";
+
+   private final MemoryOffsetBackend offsets = new MemoryOffsetBackend();
+
+   @Test
+   public void testEncodesOnceAndCompletesAfterAllMembers() {
+      var first = new Member("hotrod://10.0.0.1:11222");
+      var second = new Member("hotrod://10.0.0.2:11222");
+      var backend = new FanOutCacheBackend(List.of(first.backend, second.backend), state(), 0, 0);
+
+      var stage = backend.put(Json.object("id", 1, "name", "first")).toCompletableFuture();
+      assertEquals(1, first.keys.size());
+      assertEquals(1, second.keys.size());
+      // Both members write the same encoded bytes.
+      assertSame(first.keys.get(0), second.keys.get(0));
+      assertSame(first.values.get(0), second.values.get(0));
+
+      first.writes.get(0).complete(null);
+      assertFalse(stage.isDone());
+
+      second.writes.get(0).complete(null);
+      assertTrue(stage.isDone());
+   }
+
+   @Test
+   public void testFailingMemberCatchesUpWithNetChanges() {
+      var healthy = new Member("hotrod://10.0.0.1:11222");
+      var failing = new Member("hotrod://10.0.0.2:11222");
+      var backend = new FanOutCacheBackend(List.of(healthy.backend, failing.backend), state(), 10, 0, 100);
+
+      var stage = backend.put(Json.object("id", 1, "v", "first")).toCompletableFuture();
+      healthy.writes.get(0).complete(null);
+      failing.writes.get(0).completeExceptionally(new RuntimeException("Member down"));
+      // The failure does not reach the engine, the member queues the change and is marked as lagging.
+      assertTrue(stage.isDone());
+      assertFalse(stage.isCompletedExceptionally());
+      assertTrue(backend.lagging());
+      assertTrue(state().lagging(failing.backend.identifier()));
+
+      // The changes while lagging do not wait for the member, and the latest of each key wins.
+      backend.put(Json.object("id", 1, "v", "second"));
+      backend.put(Json.object("id", 2, "v", "other"));
+      backend.remove(Json.object("id", 2));
+      assertEquals(1, failing.writes.size());
+      assertTrue(backend.put(Json.object("id", 3)).toCompletableFuture().isDone());
+
+      eventually(() -> "Member did not catch up", () -> !backend.lagging(), 5, TimeUnit.SECONDS);
+      assertEquals(1, failing.drained.size());
+      var drained = failing.drained.get(0);
+      assertEquals(Set.of("1", "3"), drained.keys().stream().map(String::new).collect(Collectors.toSet()));
+      assertEquals(List.of("2"), drained.removes().stream().map(String::new).toList());
+      int first = drained.keys().stream().map(String::new).toList().indexOf("1");
+      assertEquals(Json.object("id", 1, "v", "second"), Json.read(new String(drained.values().get(first))));
+      verify(failing.eventing, timeout(5000)).backendStartedEvent(failing.backend.identifier(), true);
+      assertFalse(state().lagging(failing.backend.identifier()));
+      assertTrue(failing.copiedFrom.isEmpty());
+   }
+
+   @Test
+   public void testSlowMemberStartsLagging() {
+      var fast = new Member("hotrod://10.0.0.1:11222");
+      var slow = new Member("hotrod://10.0.0.2:11222");
+      var backend = new FanOutCacheBackend(List.of(fast.backend, slow.backend), state(), 10, 1, 100);
+
+      backend.put(Json.object("id", 1));
+      fast.writes.get(0).complete(null);
+      // The slow member has a write in-flight already, the next change does not wait for it.
+      var stage = backend.put(Json.object("id", 2)).toCompletableFuture();
+      fast.writes.get(1).complete(null);
+      assertTrue(stage.isDone());
+      assertEquals(1, slow.writes.size());
+      assertTrue(backend.lagging());
+   }
+
+   @Test
+   public void testOverflowCopiesFromMemberUpToDate() {
+      var healthy = new Member("hotrod://10.0.0.1:11222");
+      var failing = new Member("hotrod://10.0.0.2:11222");
+      var backend = new FanOutCacheBackend(List.of(healthy.backend, failing.backend), state(), 2, 0, 100);
+
+      backend.put(Json.object("id", 0));
+      healthy.writes.get(0).complete(null);
+      failing.writes.get(0).completeExceptionally(new RuntimeException("Member down"));
+      for (int i = 1; i <= 3; i++) {
+         backend.put(Json.object("id", i));
+         healthy.writes.get(i).complete(null);
+      }
+
+      // The changes dropped are in the caches of the other member.
+      eventually(() -> "Member did not catch up", () -> !backend.lagging(), 5, TimeUnit.SECONDS);
+      assertEquals(List.of(healthy.backend.identifier()), failing.copiedFrom);
+      verify(failing.eventing, never()).catchUpOverflowEvent(any(), any());
+      assertFalse(state().lagging(failing.backend.identifier()));
+   }
+
+   @Test
+   public void testMemberDownAfterOverflowKeepsLagging() {
+      var healthy = new Member("hotrod://10.0.0.1:11222");
+      var failing = new Member("hotrod://10.0.0.2:11222");
+      failing.down = true;
+      var backend = new FanOutCacheBackend(List.of(healthy.backend, failing.backend), state(), 2, 0, 20);
+
+      backend.put(Json.object("id", 0));
+      healthy.writes.get(0).complete(null);
+      failing.writes.get(0).completeExceptionally(new RuntimeException("Member down"));
+      // Overflows with the third key, the queue is dropped.
+      for (int i = 1; i <= 2; i++) {
+         backend.put(Json.object("id", i));
+         healthy.writes.get(i).complete(null);
+      }
+
+      eventually(() -> "Member did not retry the copy", () -> failing.failedCopies.get() >= 3, 5, TimeUnit.SECONDS);
+      // The member is still down, it keeps lagging without requesting a snapshot.
+      assertTrue(backend.lagging());
+      verify(failing.eventing, never()).catchUpOverflowEvent(any(), any());
+
+      failing.down = false;
+      eventually(() -> "Member did not catch up", () -> !backend.lagging(), 5, TimeUnit.SECONDS);
+      assertEquals(List.of(healthy.backend.identifier()), failing.copiedFrom);
+      verify(failing.eventing, never()).catchUpOverflowEvent(any(), any());
+   }
+
+   @Test
+   public void testStoppedCaptureKeepsMemberMarked() {
+      var healthy = new Member("hotrod://10.0.0.1:11222");
+      var failing = new Member("hotrod://10.0.0.2:11222");
+      failing.down = true;
+      var backend = new FanOutCacheBackend(List.of(healthy.backend, failing.backend), state(), 10, 0, 20);
+
+      backend.put(Json.object("id", 0));
+      healthy.writes.get(0).complete(null);
+      failing.writes.get(0).completeExceptionally(new RuntimeException("Member down"));
+      backend.stop();
+
+      // The queue is gone with the capture, the member stays marked for the capture starting again.
+      eventually(() -> "Member kept lagging", () -> !backend.lagging(), 5, TimeUnit.SECONDS);
+      assertTrue(failing.drained.isEmpty());
+      assertTrue(state().lagging(failing.backend.identifier()));
+      verify(failing.eventing, never()).backendStartedEvent(any(), anyBoolean());
+   }
+
+   @Test
+   public void testMarkedMemberCopiesOnStart() {
+      var healthy = new Member("hotrod://10.0.0.1:11222");
+      var marked = new Member("hotrod://10.0.0.2:11222");
+      state().lagging(marked.backend.identifier(), true);
+      marked.copying = new CompletableFuture<>();
+      var backend = new FanOutCacheBackend(List.of(healthy.backend, marked.backend), state(), 10, 0, 20);
+
+      // The member missed the changes before the capture started, the changes since wait for the copy.
+      var stage = backend.put(Json.object("id", 1)).toCompletableFuture();
+      healthy.writes.get(0).complete(null);
+      assertTrue(stage.isDone());
+      assertTrue(marked.writes.isEmpty());
+      assertTrue(backend.lagging());
+      marked.copying.complete(null);
+      eventually(() -> "Member did not catch up", () -> !backend.lagging(), 5, TimeUnit.SECONDS);
+      assertEquals(List.of(healthy.backend.identifier()), marked.copiedFrom);
+      assertFalse(state().lagging(marked.backend.identifier()));
+   }
+
+   @Test
+   public void testNoMemberUpToDateRequestsSnapshot() {
+      var first = new Member("hotrod://10.0.0.1:11222");
+      var second = new Member("hotrod://10.0.0.2:11222");
+      state().lagging(first.backend.identifier(), true);
+      state().lagging(second.backend.identifier(), true);
+      var backend = new FanOutCacheBackend(List.of(first.backend, second.backend), state(), 10, 0, 20);
+
+      verify(first.eventing, timeout(5000).atLeastOnce()).catchUpOverflowEvent(first.backend.identifier(), CAPTURE);
+      assertTrue(backend.lagging());
+      assertTrue(first.copiedFrom.isEmpty());
+   }
+
+   @Test
+   public void testJoiningMemberCopiesBeforeWrites() {
+      var first = new Member("hotrod://10.0.0.1:11222");
+      var joining = new Member("hotrod://10.0.0.2:11222");
+      joining.copying = new CompletableFuture<>();
+      var backend = new FanOutCacheBackend(List.of(first.backend), state(), 10, 0, 20);
+
+      backend.join(joining.backend);
+      assertTrue(backend.lagging());
+      assertTrue(state().lagging(joining.backend.identifier()));
+
+      // The changes written while the member copies are queued, and drained once the copy completes.
+      var stage = backend.put(Json.object("id", 1)).toCompletableFuture();
+      first.writes.get(0).complete(null);
+      assertTrue(stage.isDone());
+      assertTrue(joining.writes.isEmpty());
+
+      joining.copying.complete(null);
+      eventually(() -> "Member did not catch up", () -> !backend.lagging(), 5, TimeUnit.SECONDS);
+      assertEquals(List.of(first.backend.identifier()), joining.copiedFrom);
+      assertEquals(List.of("1"), joining.drained.stream()
+            .flatMap(drained -> drained.keys().stream())
+            .map(String::new)
+            .toList());
+      assertFalse(state().lagging(joining.backend.identifier()));
+
+      // Once up to date, the member is written as the others.
+      backend.put(Json.object("id", 2));
+      assertEquals(1, joining.writes.size());
+   }
+
+   @Test
+   public void testLeftMemberIsNotWritten() {
+      var first = new Member("hotrod://10.0.0.1:11222");
+      var leaving = new Member("hotrod://10.0.0.2:11222");
+      var backend = new FanOutCacheBackend(List.of(first.backend, leaving.backend), state(), 10, 0, 20);
+
+      var inFlight = backend.put(Json.object("id", 1)).toCompletableFuture();
+      backend.leave(leaving.backend.identifier());
+      // The write in-flight to the member gone does not fail the change.
+      first.writes.get(0).complete(null);
+      leaving.writes.get(0).completeExceptionally(new RuntimeException("Member gone"));
+      assertTrue(inFlight.isDone());
+      assertFalse(inFlight.isCompletedExceptionally());
+      assertFalse(backend.lagging());
+
+      var stage = backend.put(Json.object("id", 2)).toCompletableFuture();
+      assertEquals(1, leaving.writes.size());
+      first.writes.get(1).complete(null);
+      assertTrue(stage.isDone());
+   }
+
+   @Test
+   public void testSingleMemberFailureFailsWrite() {
+      var only = new Member("hotrod://10.0.0.1:11222");
+      var backend = new FanOutCacheBackend(List.of(only.backend), state(), 10, 0, 20);
+
+      // Without another member to copy from, the engine does not commit past the change.
+      var stage = backend.put(Json.object("id", 1)).toCompletableFuture();
+      only.writes.get(0).completeExceptionally(new RuntimeException("Member down"));
+      assertTrue(stage.isCompletedExceptionally());
+      assertFalse(backend.lagging());
+   }
+
+   // Reads the state stored, as a capture starting again.
+   private CaptureState state() {
+      var caches = List.of(CacheIdentifier.of("rule", URI.create("hotrod://10.0.0.1:11222")),
+            CacheIdentifier.of("rule", URI.create("hotrod://10.0.0.2:11222")));
+      return CaptureState.load(offsets, CAPTURE, caches).toCompletableFuture().join();
+   }
+
+   private static final class Member {
+      private final List<byte[]> keys = new ArrayList<>();
+      private final List<byte[]> values = new ArrayList<>();
+      private final List<CompletableFuture<Void>> writes = new ArrayList<>();
+      private final List<HotRodCacheBackend.Encoded> drained = new ArrayList<>();
+      private final NotificationManager eventing = mock(NotificationManager.class);
+      private final List<CacheIdentifier> copiedFrom = new CopyOnWriteArrayList<>();
+      private final AtomicInteger failedCopies = new AtomicInteger();
+      private volatile CompletableFuture<Void> copying = CompletableFuture.completedFuture(null);
+      private volatile boolean down;
+      private volatile boolean stopped;
+      private final HotRodCacheBackend backend;
+
+      private Member(String uri) {
+         // Captures the encoded writes instead of sending them.
+         backend = new HotRodCacheBackend(CacheIdentifier.of("rule", URI.create(uri)), null,
+               new ColumnStringTranslator(List.of("id"), "|"), IdentityTranslator.getInstance(),
+               eventing, mock(DBSyncerMetrics.class), 100) {
+            @Override
+            CompletionStage<Void> put(byte[] key, byte[] value, long start) {
+               keys.add(key);
+               values.add(value);
+               var cf = new CompletableFuture<Void>();
+               writes.add(cf);
+               return cf;
+            }
+
+            @Override
+            CompletionStage<Void> bulk(Encoded changes) {
+               if (down) return CompletableFuture.failedFuture(new RuntimeException("Member down"));
+               drained.add(changes);
+               return CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            CompletionStage<Void> probe() {
+               return down
+                     ? CompletableFuture.failedFuture(new RuntimeException("Member down"))
+                     : CompletableFuture.completedFuture(null);
+            }
+
+            @Override
+            CompletionStage<Void> copyFrom(HotRodCacheBackend source, Executor executor, BooleanSupplier cancelled) {
+               if (down) {
+                  failedCopies.incrementAndGet();
+                  return CompletableFuture.failedFuture(new RuntimeException("Member down"));
+               }
+               copiedFrom.add(source.identifier());
+               return copying;
+            }
+
+            @Override
+            public void stop() {
+               stopped = true;
+            }
+
+            @Override
+            public boolean isRunning() {
+               return !stopped;
+            }
+         };
+      }
+   }
+}
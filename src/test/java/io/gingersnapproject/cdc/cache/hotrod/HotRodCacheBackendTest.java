@@ -0,0 +1,86 @@
+package io.gingersnapproject.cdc.cache.hotrod;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import io.gingersnapproject.cdc.cache.CacheIdentifier;
+import io.gingersnapproject.cdc.event.NotificationManager;
+import io.gingersnapproject.cdc.translation.ColumnStringTranslator;
+import io.gingersnapproject.cdc.translation.IdentityTranslator;
+import io.gingersnapproject.metrics.DBSyncerMetrics;
+
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.junit.jupiter.api.Test;
+
+public class HotRodCacheBackendTest {
+
+   @Test
+   public void testBulkKeepsLastValueOfEachKey() {
+      List<Map<byte[], byte[]>> written = new ArrayList<>();
+      // Captures the entries instead of sending them.
+      var backend = new HotRodCacheBackend(CacheIdentifier.of("rule", URI.create("hotrod://10.0.0.1:11222")), null,
+            new ColumnStringTranslator(List.of("id"), "|"), IdentityTranslator.getInstance(),
+            mock(NotificationManager.class), mock(DBSyncerMetrics.class), 100) {
+         @Override
+         CompletionStage<Void> putAll(Map<byte[], byte[]> entries, long[] hashes) {
+            written.add(entries);
+            return CompletableFuture.completedFuture(null);
+         }
+      };
+
+      // Each change encodes its key to another array with the same bytes.
+      backend.bulk(List.of(Json.object("id", 1, "v", "first"), Json.object("id", 2, "v", "other"),
+            Json.object("id", 1, "v", "last")), new BitSet()).toCompletableFuture().join();
+
+      assertEquals(1, written.size());
+      Map<String, String> entries = new HashMap<>();
+      written.get(0).forEach((k, v) -> entries.put(new String(k), new String(v)));
+      assertEquals(2, entries.size());
+      assertEquals(Json.object("id", 1, "v", "last"), Json.read(entries.get("1")));
+   }
+
+   @Test
+   public void testBulkKeepsLastOperationOfEachCacheKey() {
+      Map<String, String> written = new HashMap<>();
+      List<String> removed = new ArrayList<>();
+      // Rows with different primary keys share the columns of the cache key.
+      var backend = new HotRodCacheBackend(CacheIdentifier.of("rule", URI.create("hotrod://10.0.0.1:11222")), null,
+            new ColumnStringTranslator(List.of("email"), "|"), IdentityTranslator.getInstance(),
+            mock(NotificationManager.class), mock(DBSyncerMetrics.class), 100) {
+         @Override
+         CompletionStage<Void> putAll(Map<byte[], byte[]> entries, long[] hashes) {
+            entries.forEach((k, v) -> written.put(new String(k), new String(v)));
+            return CompletableFuture.completedFuture(null);
+         }
+
+         @Override
+         CompletionStage<Void> remove(byte[] key, long start) {
+            removed.add(new String(key));
+            return CompletableFuture.completedFuture(null);
+         }
+      };
+
+      BitSet removes = new BitSet();
+      removes.set(1);
+      removes.set(2);
+      backend.bulk(List.of(Json.object("id", 1, "email", "a"), Json.object("id", 2, "email", "a"),
+            Json.object("id", 3, "email", "b"), Json.object("id", 4, "email", "b")), removes)
+            .toCompletableFuture().join();
+
+      // The row removed after the write of the same key removes it, the row written after the removal writes it.
+      assertEquals(List.of("a"), removed);
+      assertEquals(1, written.size());
+      assertTrue(written.containsKey("b"));
+      assertEquals(Json.object("id", 4, "email", "b"), Json.read(written.get("b")));
+   }
+}
@@ -6,6 +6,7 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.clearInvocations;
@@ -37,6 +38,10 @@ import io.gingersnapproject.util.Utils;
 import io.quarkus.test.junit.QuarkusMock;
 import io.quarkus.test.junit.QuarkusTest;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.infinispan.client.hotrod.RemoteCacheManager;
+import org.infinispan.commons.api.CacheContainerAdmin;
+import org.infinispan.commons.configuration.StringConfiguration;
+import org.infinispan.commons.dataconversion.MediaType;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -151,6 +156,23 @@ public class HotRodServiceTest {
       assertSame(backend1, manager.backends.get(rule1.rule()));
    }
 
+   @Test
+   public void testExistingCacheWithOtherEncodingRejected() {
+      var identifier = CacheIdentifier.of("protostream-rule", hotRodURI);
+      var rcm = new RemoteCacheManager(hotRodURI);
+      try {
+         rcm.administration().withFlags(CacheContainerAdmin.AdminFlag.VOLATILE)
+               .getOrCreateCache(identifier.rule(), new StringConfiguration(
+                     "<local-cache><encoding media-type=\"" + MediaType.APPLICATION_PROTOSTREAM_TYPE + "\"/></local-cache>"));
+
+         // The rule encodes the values as text, the cache would keep storing them as protostream.
+         assertThrows(IllegalStateException.class, () -> service.start(identifier, dummyRule));
+      } finally {
+         rcm.administration().removeCache(identifier.rule());
+         rcm.stop();
+      }
+   }
+
    @Test
    public void testSameRuleDifferentURIs() throws Exception {
       URI anotherURI = createAnotherHotRodURI();
@@ -0,0 +1,64 @@
+package io.gingersnapproject.cdc.cache.hotrod;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class WriteFingerprintsTest {
+
+   @Test
+   public void testMatchesLastWrittenValue() {
+      var fingerprints = new WriteFingerprints(16);
+      long key = hash("key");
+
+      assertFalse(fingerprints.matches(key, hash("first")));
+      fingerprints.record(key, hash("first"));
+      assertTrue(fingerprints.matches(key, hash("first")));
+
+      fingerprints.record(key, hash("second"));
+      assertFalse(fingerprints.matches(key, hash("first")));
+      assertTrue(fingerprints.matches(key, hash("second")));
+
+      fingerprints.forget(key);
+      assertFalse(fingerprints.matches(key, hash("second")));
+   }
+
+   @Test
+   public void testCapacityRoundsUp() {
+      assertEquals(4, new WriteFingerprints(0).capacity());
+      assertEquals(4, new WriteFingerprints(4).capacity());
+      assertEquals(8, new WriteFingerprints(5).capacity());
+      assertEquals(16, new WriteFingerprints(10).capacity());
+      assertEquals(16, new WriteFingerprints(16).capacity());
+      assertEquals(32, new WriteFingerprints(17).capacity());
+   }
+
+   @Test
+   public void testEvictsLeastRecentlyWrittenOnceFull() {
+      // Rounded up to a single set of four keys.
+      var fingerprints = new WriteFingerprints(3);
+      assertEquals(4, fingerprints.capacity());
+
+      for (long key = 1; key <= 4; key++) {
+         fingerprints.record(key, key);
+      }
+      // Writing the first key again makes the second the least recent.
+      fingerprints.record(1, 10);
+      fingerprints.record(5, 5);
+
+      assertTrue(fingerprints.matches(1, 10));
+      assertFalse(fingerprints.matches(2, 2));
+      assertTrue(fingerprints.matches(3, 3));
+      assertTrue(fingerprints.matches(4, 4));
+      assertTrue(fingerprints.matches(5, 5));
+      assertFalse(fingerprints.empty().matches(5, 5));
+   }
+
+   private static long hash(String value) {
+      return WriteFingerprints.hash(value.getBytes(StandardCharsets.UTF_8));
+   }
+}
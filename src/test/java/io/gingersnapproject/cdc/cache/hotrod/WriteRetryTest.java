@@ -0,0 +1,76 @@
+package io.gingersnapproject.cdc.cache.hotrod;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.client.hotrod.exceptions.HotRodClientException;
+import org.infinispan.client.hotrod.exceptions.TransportException;
+import org.junit.jupiter.api.Test;
+
+public class WriteRetryTest {
+
+   @Test
+   public void testTransientFailureRetried() throws Exception {
+      AtomicInteger retries = new AtomicInteger();
+      AtomicInteger attempts = new AtomicInteger();
+      var retry = new WriteRetry(3, 1, 10, retries::incrementAndGet);
+
+      var result = retry.execute(() -> attempts.incrementAndGet() < 3
+            ? CompletableFuture.failedFuture(new TransportException("Connection reset", null))
+            : CompletableFuture.completedFuture("written"));
+
+      assertEquals("written", result.toCompletableFuture().get(5, TimeUnit.SECONDS));
+      assertEquals(3, attempts.get());
+      assertEquals(2, retries.get());
+   }
+
+   @Test
+   public void testFailsOnceRetriesExhausted() {
+      AtomicInteger attempts = new AtomicInteger();
+      var retry = new WriteRetry(2, 1, 10, () -> {});
+
+      var result = retry.execute(() -> {
+         attempts.incrementAndGet();
+         return CompletableFuture.failedFuture(new TransportException("Connection reset", null));
+      });
+
+      var e = assertThrows(ExecutionException.class, () -> result.toCompletableFuture().get(5, TimeUnit.SECONDS));
+      assertInstanceOf(TransportException.class, e.getCause());
+      assertEquals(3, attempts.get());
+   }
+
+   @Test
+   public void testNonTransientFailureNotRetried() {
+      AtomicInteger attempts = new AtomicInteger();
+      var retry = new WriteRetry(3, 1, 10, () -> {});
+
+      var result = retry.execute(() -> {
+         attempts.incrementAndGet();
+         return CompletableFuture.failedFuture(new HotRodClientException("ISPN000000: Invalid value"));
+      });
+
+      assertThrows(ExecutionException.class, () -> result.toCompletableFuture().get(5, TimeUnit.SECONDS));
+      assertEquals(1, attempts.get());
+   }
+
+   @Test
+   public void testBackoffGrowsUpToMaximum() {
+      var retry = new WriteRetry(10, 100, 1000, () -> {});
+
+      for (int i = 0; i < 100; i++) {
+         long first = retry.delay(0);
+         long third = retry.delay(2);
+         long last = retry.delay(70);
+         assertTrue(first >= 50 && first <= 100, "First was " + first);
+         assertTrue(third >= 200 && third <= 400, "Third was " + third);
+         assertTrue(last >= 500 && last <= 1000, "Last was " + last);
+      }
+   }
+}
@@ -5,13 +5,22 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.clearInvocations;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.gingersnapproject.cdc.configuration.Connector;
 import io.gingersnapproject.cdc.configuration.Rule;
+import io.gingersnapproject.cdc.util.CompletionStages;
 import io.gingersnapproject.fwk.ControlledCacheBackend;
 
+import org.infinispan.client.hotrod.exceptions.HotRodClientException;
 import org.infinispan.commons.dataconversion.internal.Json;
+import org.infinispan.commons.util.concurrent.CompletableFutures;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -44,19 +53,117 @@ public class EventProcessingChainTest {
 
       Json value = createContent();
 
-      assertTrue(chain.process(new Event(Json.object(), createValue("c", value)), null));
+      assertTrue(CompletionStages.join(chain.process(new Event(Json.object(), createValue("c", value)), null)));
       assertTrue(backend.data().contains(value));
       assertEquals(1, backend.data().size());
 
       value.set("added_later", UUID.randomUUID().toString());
-      assertTrue(chain.process(new Event(Json.object(), createValue("u", value)), null));
+      assertTrue(CompletionStages.join(chain.process(new Event(Json.object(), createValue("u", value)), null)));
       assertTrue(backend.data().contains(value));
       assertEquals(1, backend.data().size());
 
-      assertTrue(chain.process(new Event(Json.object(), createValue("d", value)), null));
+      assertTrue(CompletionStages.join(chain.process(new Event(Json.object(), createValue("d", value)), null)));
       assertTrue(backend.data().isEmpty());
    }
 
+   @Test
+   public void testBulkContextWritesOnFlush() {
+      EventProcessingChain chain = EventProcessingChainFactory.create(customerRule, backend);
+      EventContext ctx = EventContext.bulk();
+
+      Json created = createContent();
+      Json deleted = createContent();
+      backend.put(deleted);
+
+      var put = chain.process(new Event(Json.object(), createValue("c", created)), ctx);
+      var remove = chain.process(new Event(Json.object(), createValue("d", deleted)), ctx);
+
+      // Nothing is applied until the context is flushed.
+      assertFalse(put.toCompletableFuture().isDone());
+      assertFalse(remove.toCompletableFuture().isDone());
+      assertEquals(1, backend.data().size());
+      assertTrue(backend.data().contains(deleted));
+
+      CompletionStages.join(ctx.flush());
+      assertTrue(CompletionStages.join(put));
+      assertTrue(CompletionStages.join(remove));
+      assertEquals(1, backend.data().size());
+      assertTrue(backend.data().contains(created));
+   }
+
+   @Test
+   public void testBulkFailureIsolatedPerEvent() {
+      EventProcessingChain chain = EventProcessingChainFactory.create(customerRule, backend);
+      EventContext ctx = EventContext.bulk();
+
+      Json valid = createContent();
+      Json malformed = Json.object("value", UUID.randomUUID().toString());
+
+      var put = chain.process(new Event(Json.object(), createValue("c", valid)), ctx);
+      var failed = chain.process(new Event(Json.object(), createValue("c", malformed)), ctx);
+      CompletionStages.join(ctx.flush().exceptionally(ignore -> null));
+
+      assertTrue(CompletionStages.join(put));
+      assertTrue(failed.toCompletableFuture().isCompletedExceptionally());
+      assertEquals(1, backend.data().size());
+      assertTrue(backend.data().contains(valid));
+   }
+
+   @Test
+   public void testBulkFailureIsolatedPerScope() {
+      List<Json> written = new ArrayList<>();
+      ControlledCacheBackend counting = new ControlledCacheBackend(j -> j.at(KEY)) {
+         @Override
+         public CompletionStage<Void> put(Json json) {
+            written.add(json);
+            return super.put(json);
+         }
+      };
+      EventProcessingChain chain = EventProcessingChainFactory.create(customerRule, counting);
+      EventContext ctx = EventContext.bulk();
+
+      Json other = createContent();
+      var put = chain.process(new Event(Json.object(), createValue("c", other)), ctx.scope("first"));
+      var failed = chain.process(new Event(Json.object(), createValue("c", Json.object("value", "malformed"))),
+            ctx.scope("second"));
+      CompletionStages.join(ctx.flush().exceptionally(ignore -> null));
+
+      // Only the writes of the failed scope are applied again one by one.
+      assertTrue(failed.toCompletableFuture().isCompletedExceptionally());
+      assertTrue(CompletionStages.join(put));
+      assertEquals(1, written.stream().filter(other::equals).count());
+      assertTrue(counting.data().contains(other));
+   }
+
+   @Test
+   public void testBulkBackendFailureNotRetried() {
+      AtomicInteger singles = new AtomicInteger();
+      ControlledCacheBackend failing = new ControlledCacheBackend(j -> j.at(KEY)) {
+         @Override
+         public CompletionStage<Void> put(Json json) {
+            singles.incrementAndGet();
+            return super.put(json);
+         }
+
+         @Override
+         public CompletionStage<Void> bulk(List<Json> changes, BitSet removes) {
+            return CompletableFuture.failedFuture(new HotRodClientException("Server down"));
+         }
+      };
+      EventProcessingChain chain = EventProcessingChainFactory.create(customerRule, failing);
+      EventContext ctx = EventContext.bulk();
+
+      var first = chain.process(new Event(Json.object(), createValue("c", createContent())), ctx);
+      var second = chain.process(new Event(Json.object(), createValue("c", createContent())), ctx);
+      var flush = ctx.flush().toCompletableFuture();
+
+      // The failure propagates once, the writes are not applied one by one.
+      assertTrue(flush.isCompletedExceptionally());
+      assertTrue(first.toCompletableFuture().isCompletedExceptionally());
+      assertTrue(second.toCompletableFuture().isCompletedExceptionally());
+      assertEquals(0, singles.get());
+   }
+
    @Test
    public void testEventFiltered() {
       EventProcessingChain chain = EventProcessingChainFactory.create(customerRule, backend);
@@ -65,24 +172,32 @@ public class EventProcessingChainTest {
       // Filter unregistered tables.
       Json value = createValue("c", content);
       value.at("source").set("table", "other_table");
-      assertFalse(chain.process(new Event(Json.object(), value), null));
+      assertFalse(CompletionStages.join(chain.process(new Event(Json.object(), value), null)));
       assertTrue(backend.data().isEmpty());
 
       // Filter DDL events.
       value = createValue("c", content);
       value.set("ddl", "CREATE TABLE customer");
-      assertFalse(chain.process(new Event(Json.object(), value), null));
+      assertFalse(CompletionStages.join(chain.process(new Event(Json.object(), value), null)));
       assertTrue(backend.data().isEmpty());
 
       // Filter if source/table not present.
       value = createValue("c", content);
       value.set("source", null);
-      assertFalse(chain.process(new Event(Json.object(), value), null));
+      assertFalse(CompletionStages.join(chain.process(new Event(Json.object(), value), null)));
       assertTrue(backend.data().isEmpty());
 
       value = createValue("c", content);
       value.at("source").set("table", null);
-      assertFalse(chain.process(new Event(Json.object(), value), null));
+      assertFalse(CompletionStages.join(chain.process(new Event(Json.object(), value), null)));
+      assertTrue(backend.data().isEmpty());
+
+      // Filter if the operation is not present.
+      value = createValue("c", content);
+      value.set("op", null);
+      assertFalse(CompletionStages.join(chain.process(new Event(Json.object(), value), null)));
+      value.delAt("op");
+      assertFalse(CompletionStages.join(chain.process(new Event(Json.object(), value), null)));
       assertTrue(backend.data().isEmpty());
    }
 
@@ -94,8 +209,69 @@ public class EventProcessingChainTest {
       Json value = createValue("c", content);
       value.set("op", "what");
 
-      assertFalse(chain.process(new Event(Json.object(), value), null));
+      assertFalse(CompletionStages.join(chain.process(new Event(Json.object(), value), null)));
+      assertTrue(backend.data().isEmpty());
+   }
+
+   @Test
+   public void testUnchangedUpdateSkipped() {
+      AtomicInteger skipped = new AtomicInteger();
+      EventProcessingChain chain = EventProcessingChainFactory.create(customerRule, backend, skipped::incrementAndGet);
+      Json content = createContent();
+
+      Json value = createValue("u", content);
+      value.set("before", clone(content));
+      assertFalse(CompletionStages.join(chain.process(new Event(Json.object(), value), null)));
+      assertTrue(backend.data().isEmpty());
+      assertEquals(1, skipped.get());
+
+      // Changed or without the image before, the update is written.
+      value = createValue("u", content);
+      value.set("before", clone(content).set("value", "previous"));
+      assertTrue(CompletionStages.join(chain.process(new Event(Json.object(), value), null)));
+      assertTrue(CompletionStages.join(chain.process(new Event(Json.object(), createValue("u", content)), null)));
+      assertTrue(backend.data().contains(content));
+      assertEquals(1, skipped.get());
+   }
+
+   @Test
+   public void testCustomLinksRunBeforeWrite() {
+      AtomicInteger seen = new AtomicInteger();
+      EventProcessingChain custom = new EventProcessingChain() {
+         @Override
+         public CompletionStage<Boolean> process(Event event, EventContext ctx) {
+            seen.incrementAndGet();
+            return event.after().has("skip") ? CompletableFutures.completedFalse() : processNext(event, ctx);
+         }
+      };
+      EventProcessingChain chain = EventProcessingChainFactory.create(customerRule, backend, () -> {}, custom);
+
+      Json skipped = createContent().set("skip", true);
+      assertFalse(CompletionStages.join(chain.process(new Event(Json.object(), createValue("c", skipped)), null)));
       assertTrue(backend.data().isEmpty());
+
+      Json written = createContent();
+      assertTrue(CompletionStages.join(chain.process(new Event(Json.object(), createValue("c", written)), null)));
+      assertTrue(backend.data().contains(written));
+
+      // The filter still runs first.
+      Json value = createValue("c", createContent());
+      value.at("source").set("table", "other_table");
+      assertFalse(CompletionStages.join(chain.process(new Event(Json.object(), value), null)));
+      assertEquals(2, seen.get());
+   }
+
+   @Test
+   public void testTableMatchedByValue() {
+      EventProcessingChain chain = EventProcessingChainFactory.create(customerRule, backend);
+
+      // Each event carries a distinct instance of the table name.
+      for (int i = 0; i < 3; i++) {
+         Json value = createValue("c", createContent());
+         value.at("source").set("table", new String(TABLE_NAME.toCharArray()));
+         assertTrue(CompletionStages.join(chain.process(new Event(Json.object(), value), null)));
+      }
+      assertEquals(3, backend.data().size());
    }
 
    private static Json createValue(String operation, Json content) {
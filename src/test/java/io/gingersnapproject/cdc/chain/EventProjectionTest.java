@@ -0,0 +1,137 @@
+package io.gingersnapproject.cdc.chain;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Optional;
+
+import io.gingersnapproject.cdc.configuration.Rule;
+import io.gingersnapproject.cdc.util.Serialization;
+
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class EventProjectionTest {
+
+   private static final Schema KEY_SCHEMA = SchemaBuilder.struct()
+         .field("id", Schema.INT32_SCHEMA)
+         .build();
+   private static final Schema ROW_SCHEMA = SchemaBuilder.struct().optional()
+         .field("id", Schema.INT32_SCHEMA)
+         .field("name", Schema.OPTIONAL_STRING_SCHEMA)
+         .field("age", Schema.OPTIONAL_INT32_SCHEMA)
+         .field("email", Schema.OPTIONAL_STRING_SCHEMA)
+         .build();
+   private static final Schema SOURCE_SCHEMA = SchemaBuilder.struct()
+         .field("db", Schema.STRING_SCHEMA)
+         .field("table", Schema.STRING_SCHEMA)
+         .build();
+   private static final Schema VALUE_SCHEMA = SchemaBuilder.struct()
+         .field("before", ROW_SCHEMA)
+         .field("after", ROW_SCHEMA)
+         .field("source", SOURCE_SCHEMA)
+         .field("op", Schema.STRING_SCHEMA)
+         .field("ts_ms", Schema.OPTIONAL_INT64_SCHEMA)
+         .build();
+
+   @Test
+   public void testProjectsOnlyRuleColumns() {
+      var projection = new EventProjection(rule(Optional.of(List.of("name"))));
+
+      Event event = projection.create(record(row(1, "jose", 25), row(1, "jose", 26), "u"));
+
+      var expected = Json.object()
+            .set("op", "u")
+            .set("source", Json.object("table", "users"))
+            .set("before", Json.object("id", 1, "name", "jose"))
+            .set("after", Json.object("id", 1, "name", "jose"));
+      assertEquals(Json.object("id", 1), event.key());
+      assertEquals(expected, event.value());
+   }
+
+   @Test
+   public void testKeepsAllColumnsWithoutValueColumns() {
+      var projection = new EventProjection(rule(Optional.empty()));
+      var after = row(2, "maria", 30);
+
+      Event event = projection.create(record(null, after, "c"));
+
+      var expected = Json.object()
+            .set("op", "c")
+            .set("source", Json.object("table", "users"))
+            .set("after", Serialization.convert(after));
+      assertEquals(expected, event.value());
+   }
+
+   @Test
+   public void testAccessorsReadOnlyTheRecordParts() {
+      var projection = new EventProjection(rule(Optional.of(List.of("name"))));
+
+      Event event = projection.create(record(row(3, "ana", 40), null, "d"));
+
+      assertEquals("d", event.op());
+      assertEquals(Operation.DELETE, event.operation());
+      assertEquals(Operation.CREATE, projection.create(record(null, row(4, "bia", 30), "c")).operation());
+      assertEquals(Operation.DELETE, projection.create(record(row(4, "bia", 30), null, "d")).operation());
+      assertEquals("users", event.table());
+      assertFalse(event.isDdl());
+      assertEquals(Json.object("id", 3, "name", "ana"), event.before());
+      assertNull(event.after());
+      assertEquals(event.before(), event.value().at("before"));
+   }
+
+   @Test
+   public void testNonDataChangeIsFullyConverted() {
+      var projection = new EventProjection(rule(Optional.of(List.of("name"))));
+      var schema = SchemaBuilder.struct()
+            .field("source", SOURCE_SCHEMA)
+            .field("ddl", Schema.STRING_SCHEMA)
+            .build();
+      var value = new Struct(schema)
+            .put("source", new Struct(SOURCE_SCHEMA).put("db", "inventory").put("table", "users"))
+            .put("ddl", "ALTER TABLE users ADD COLUMN phone VARCHAR(16)");
+
+      Struct key = new Struct(KEY_SCHEMA).put("id", 1);
+      Event event = projection.create(new SourceRecord(null, null, "topic", null, KEY_SCHEMA, key, schema, value));
+
+      assertEquals(Serialization.convert(value), event.value());
+      assertTrue(event.isDdl());
+   }
+
+   private static Rule rule(Optional<List<String>> valueColumns) {
+      Rule rule = mock(Rule.class);
+      when(rule.keyColumns()).thenReturn(List.of("id"));
+      when(rule.valueColumns()).thenReturn(valueColumns);
+      return rule;
+   }
+
+   private static Struct row(int id, String name, int age) {
+      return new Struct(ROW_SCHEMA)
+            .put("id", id)
+            .put("name", name)
+            .put("age", age)
+            .put("email", name + "@example.com");
+   }
+
+   private static SourceRecord record(Struct before, Struct after, String op) {
+      Struct value = new Struct(VALUE_SCHEMA)
+            .put("before", before)
+            .put("after", after)
+            .put("source", new Struct(SOURCE_SCHEMA).put("db", "inventory").put("table", "users"))
+            .put("op", op)
+            .put("ts_ms", 1L);
+      Struct key = new Struct(KEY_SCHEMA).put("id", 1);
+      return new SourceRecord(null, null, "topic", null, KEY_SCHEMA, key, VALUE_SCHEMA, value);
+   }
+}
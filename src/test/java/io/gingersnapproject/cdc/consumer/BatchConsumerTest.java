@@ -1,34 +1,55 @@
 package io.gingersnapproject.cdc.consumer;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import io.gingersnapproject.cdc.EngineWrapper;
 import io.gingersnapproject.cdc.chain.Event;
+import io.gingersnapproject.cdc.chain.EventContext;
 import io.gingersnapproject.cdc.chain.EventProcessingChain;
+import io.gingersnapproject.cdc.chain.EventProjection;
+import io.gingersnapproject.cdc.configuration.Connector;
+import io.gingersnapproject.cdc.configuration.Processing;
+import io.gingersnapproject.cdc.configuration.Rule;
+import io.gingersnapproject.cdc.configuration.WaitStrategy;
+import io.gingersnapproject.cdc.deadletter.DeadLetters;
+import io.gingersnapproject.metrics.DBSyncerMetrics;
 
 import io.debezium.engine.ChangeEvent;
 import io.debezium.engine.DebeziumEngine;
 import org.apache.kafka.connect.source.SourceRecord;
 import org.infinispan.commons.dataconversion.internal.Json;
-import org.junit.jupiter.api.BeforeAll;
+import org.infinispan.commons.util.concurrent.CompletableFutures;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
@@ -38,21 +59,26 @@ import org.mockito.Mockito;
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
 public class BatchConsumerTest {
 
+   private static final long TIMEOUT = 5000;
+
    private final EngineWrapper engineMock = mock(EngineWrapper.class);
    private final EventProcessingChain chainMock = mock(EventProcessingChain.class);
+   private final DBSyncerMetrics metricsMock = mock(DBSyncerMetrics.class);
+   private final Rule ruleMock = mock(Rule.class);
+   private final Connector connectorMock = mock(Connector.class);
    private BatchConsumer consumer;
 
-   @BeforeAll
-   public void initializeMocks() {
-      when(chainMock.process(any(), any())).thenReturn(true);
-   }
-
    @BeforeEach
    public void initializeConsumer() {
-      reset(engineMock, chainMock);
-      clearInvocations(engineMock, chainMock);
+      reset(engineMock, chainMock, metricsMock);
+      clearInvocations(engineMock, chainMock, metricsMock);
+      when(chainMock.process(any(), any())).thenReturn(CompletableFutures.completedTrue());
       doNothing().when(engineMock).notifyError(any());
-      consumer = new BatchConsumer(engineMock, chainMock, Executors.newSingleThreadExecutor());
+      when(ruleMock.connector()).thenReturn(connectorMock);
+      when(connectorMock.table()).thenReturn("some_table");
+      consumer = new BatchConsumer(engineMock, chainMock, new EventProjection(ruleMock), new RecordFilter(ruleMock),
+            Executors.newSingleThreadExecutor(), 4, 2,
+            new InFlightWrites(2, new InFlightWrites(0, metricsMock), metricsMock));
    }
 
    @Test
@@ -70,6 +96,7 @@ public class BatchConsumerTest {
       }
 
       consumer.handleBatch(records, committer);
+      assertTrue(consumer.commit(TIMEOUT, TimeUnit.MILLISECONDS));
 
       verify(committer, times(eventSize)).markProcessed(any());
       verify(committer, times(1)).markBatchFinished();
@@ -99,7 +126,7 @@ public class BatchConsumerTest {
 
       // Verify that we published only one event, and it was the last change event.
       var publishedEvent = ArgumentCaptor.forClass(Event.class);
-      verify(chainMock, times(1)).process(publishedEvent.capture(), any());
+      verify(chainMock, timeout(TIMEOUT).times(1)).process(publishedEvent.capture(), any());
       assertNotNull(publishedEvent.getValue());
 
       Event captured = publishedEvent.getValue();
@@ -108,13 +135,14 @@ public class BatchConsumerTest {
       assertEquals(captured.value(), lastEvent.value().value());
 
       // Event publishing only the last, we must commit all events in the batch.
+      assertTrue(consumer.commit(TIMEOUT, TimeUnit.MILLISECONDS));
       verify(committer, times(eventSize + 1)).markProcessed(any());
       verify(committer, times(1)).markBatchFinished();
       verifyNoInteractions(engineMock);
    }
 
    @Test
-   public void testNotifyExceptionOnFailure() {
+   public void testNotifyExceptionOnFailure() throws Exception {
       var committer = Mockito.mock(DebeziumEngine.RecordCommitter.class);
 
       var ex = new RuntimeException("Something feels wrong");
@@ -123,16 +151,280 @@ public class BatchConsumerTest {
 
       consumer.handleBatch(List.of(changeEvent()), committer);
 
-      verifyNoInteractions(committer);
-
       var captor = ArgumentCaptor.forClass(Exception.class);
-      verify(engineMock, times(1)).notifyError(captor.capture());
+      verify(engineMock, timeout(TIMEOUT).times(1)).notifyError(captor.capture());
+      verifyNoInteractions(committer);
 
       Exception actual = captor.getValue();
       assertTrue(actual instanceof CompletionException);
       assertEquals(ex, actual.getCause());
    }
 
+   @Test
+   public void testCommitsFollowReceivedOrder() throws Exception {
+      var committer = Mockito.mock(DebeziumEngine.RecordCommitter.class);
+      var slowKey = Json.object("id", "slow");
+      var slowWrite = new CompletableFuture<Boolean>();
+      when(chainMock.process(any(), any())).thenAnswer(invocation -> {
+         Event event = invocation.getArgument(0);
+         return slowKey.equals(event.key()) ? slowWrite : CompletableFutures.completedTrue();
+      });
+
+      // The second event must not share the lane with the slow write, otherwise it waits for it.
+      var lanes = new Lanes(4, Runnable::run, (ev, ctx) -> CompletableFutures.completedNull());
+      var first = changeEvent(slowKey);
+      var second = changeEvent();
+      while (lanes.index(second.value().key()) == lanes.index(slowKey)) {
+         second = changeEvent();
+      }
+
+      // The engine is not blocked while the writes are in-flight.
+      consumer.handleBatch(List.of(first), committer);
+      consumer.handleBatch(List.of(second), committer);
+      verify(chainMock, timeout(TIMEOUT).times(2)).process(any(), any());
+
+      // The second write completed, but is not committed before the first.
+      assertFalse(consumer.commit(100, TimeUnit.MILLISECONDS));
+      verify(committer, never()).markProcessed(any());
+      verify(committer, never()).markBatchFinished();
+
+      slowWrite.complete(true);
+      assertTrue(consumer.commit(TIMEOUT, TimeUnit.MILLISECONDS));
+      var inOrder = inOrder(committer);
+      inOrder.verify(committer).markProcessed(first);
+      inOrder.verify(committer).markBatchFinished();
+      inOrder.verify(committer).markProcessed(second);
+      inOrder.verify(committer).markBatchFinished();
+   }
+
+   @Test
+   public void testCommitsRunInEngineThread() throws Exception {
+      var committer = Mockito.mock(DebeziumEngine.RecordCommitter.class);
+      var committing = Collections.synchronizedList(new ArrayList<Thread>());
+      doAnswer(invocation -> {
+         committing.add(Thread.currentThread());
+         return null;
+      }).when(committer).markProcessed(any());
+
+      // The write completes in the processing executor, the commit waits for the engine thread.
+      consumer.handleBatch(List.of(changeEvent()), committer);
+      verify(chainMock, timeout(TIMEOUT).times(1)).process(any(), any());
+      verify(committer, after(100).never()).markProcessed(any());
+      assertTrue(consumer.commit(TIMEOUT, TimeUnit.MILLISECONDS));
+
+      // With the pipeline full, the engine thread commits the batches in-flight while waiting.
+      var slowWrite = new CompletableFuture<Boolean>();
+      when(chainMock.process(any(), any())).thenReturn(slowWrite);
+      consumer.handleBatch(List.of(changeEvent()), committer);
+      consumer.handleBatch(List.of(changeEvent()), committer);
+      var engineThread = Executors.newSingleThreadExecutor();
+      var handled = engineThread.submit(() -> {
+         consumer.handleBatch(List.of(changeEvent()), committer);
+         return Thread.currentThread();
+      });
+      assertThrows(TimeoutException.class, () -> handled.get(100, TimeUnit.MILLISECONDS));
+
+      slowWrite.complete(true);
+      var thread = handled.get(TIMEOUT, TimeUnit.MILLISECONDS);
+      verify(committer, atLeast(2)).markBatchFinished();
+      assertEquals(List.of(Thread.currentThread(), thread), committing.subList(0, 2));
+      engineThread.shutdown();
+   }
+
+   @Test
+   public void testBlocksWhileWritesInFlightLimitReached() throws Exception {
+      var committer = Mockito.mock(DebeziumEngine.RecordCommitter.class);
+      var slowWrite = new CompletableFuture<Boolean>();
+      when(chainMock.process(any(), any())).thenReturn(slowWrite);
+
+      // Limited to two writes in-flight, the third waits until the previous complete.
+      var engineThread = Executors.newSingleThreadExecutor();
+      var handled = engineThread.submit(() -> {
+         consumer.handleBatch(List.of(changeEvent(), changeEvent(), changeEvent()), committer);
+         return null;
+      });
+
+      verify(chainMock, timeout(TIMEOUT).times(2)).process(any(), any());
+      assertThrows(TimeoutException.class, () -> handled.get(100, TimeUnit.MILLISECONDS));
+
+      slowWrite.complete(true);
+      handled.get(TIMEOUT, TimeUnit.MILLISECONDS);
+      assertTrue(consumer.commit(TIMEOUT, TimeUnit.MILLISECONDS));
+      verify(committer, times(3)).markProcessed(any());
+      verify(committer, times(1)).markBatchFinished();
+      verify(metricsMock).recordBackpressure(anyLong());
+      engineThread.shutdown();
+   }
+
+   @Test
+   public void testUnrelatedRecordsCommittedWithoutProcessing() throws Exception {
+      var committer = Mockito.mock(DebeziumEngine.RecordCommitter.class);
+      var heartbeat = changeEvent(new SourceRecord(null, null, "__debezium-heartbeat.engine", null,
+            Json.object("serverName", "engine"), null, Json.object("ts_ms", 1)));
+      var schemaChange = changeEvent(new SourceRecord(null, null, "engine", null,
+            Json.object("databaseName", "inventory"), null, Json.object("ddl", "DROP TABLE other")));
+      var otherTable = changeEvent(new SourceRecord(null, null, "engine.inventory.other_table", null,
+            Json.object("id", 1), null, Json.object("op", "c")));
+      var accepted = changeEvent();
+
+      consumer.handleBatch(List.of(heartbeat, schemaChange, otherTable, accepted), committer);
+      assertTrue(consumer.commit(TIMEOUT, TimeUnit.MILLISECONDS));
+
+      verify(committer, times(4)).markProcessed(any());
+      verify(committer, times(1)).markBatchFinished();
+      verify(chainMock, times(1)).process(any(), any());
+   }
+
+   @Test
+   public void testHeartbeatCommitsIdleEngine() throws Exception {
+      var committer = Mockito.mock(DebeziumEngine.RecordCommitter.class);
+      var write = new CompletableFuture<Boolean>();
+      when(chainMock.process(any(), any())).thenReturn(write);
+      var written = changeEvent();
+      consumer.handleBatch(List.of(written), committer);
+      verify(chainMock, timeout(TIMEOUT).times(1)).process(any(), any());
+      write.complete(true);
+
+      // The connector is idle, only the heartbeats reach the engine.
+      var heartbeat = changeEvent(new SourceRecord(null, null, "__debezium-heartbeat.engine", null,
+            Json.object("serverName", "engine"), null, Json.object("ts_ms", 1)));
+      consumer.handleBatch(List.of(heartbeat), committer);
+
+      var inOrder = inOrder(committer);
+      inOrder.verify(committer).markProcessed(written);
+      inOrder.verify(committer).markBatchFinished();
+      inOrder.verify(committer).markProcessed(heartbeat);
+      inOrder.verify(committer).markBatchFinished();
+   }
+
+   @Test
+   public void testChunkedBatchKeepsLastWrite() throws Exception {
+      var committer = Mockito.mock(DebeziumEngine.RecordCommitter.class);
+      var chunked = new BatchConsumer(engineMock, chainMock, new EventProjection(ruleMock),
+            new RecordFilter(ruleMock), Executors.newSingleThreadExecutor(), 4, 2,
+            new InFlightWrites(0, metricsMock), false, null, 2);
+      var key = Json.object("id", "chunked");
+      var first = changeEvent(key);
+      var last = changeEvent(key);
+
+      // The key appears in both chunks, the lane might still squash the first change if not written yet.
+      chunked.handleBatch(List.of(first, changeEvent(), last, changeEvent()), committer);
+      assertTrue(chunked.commit(TIMEOUT, TimeUnit.MILLISECONDS));
+      verify(committer, times(4)).markProcessed(any());
+      verify(committer, times(1)).markBatchFinished();
+
+      var events = ArgumentCaptor.forClass(Event.class);
+      verify(chainMock, atLeast(3)).process(events.capture(), any());
+      var written = events.getAllValues().stream().filter(e -> key.equals(e.key())).toList();
+      assertEquals(last.value().value(), written.get(written.size() - 1).value());
+   }
+
+   @Test
+   public void testFailedEventSkippedToDeadLetters() throws Exception {
+      var committer = Mockito.mock(DebeziumEngine.RecordCommitter.class);
+      var deadLetters = new DeadLetters(10, metricsMock);
+      var skipping = new BatchConsumer(engineMock, chainMock, new EventProjection(ruleMock),
+            new RecordFilter(ruleMock), Executors.newSingleThreadExecutor(), 4, 2,
+            new InFlightWrites(0, metricsMock), false, deadLetters, 0);
+      var poisonKey = Json.object("id", "poison");
+      when(chainMock.process(any(), any())).thenAnswer(invocation -> {
+         Event event = invocation.getArgument(0);
+         if (poisonKey.equals(event.key())) throw new IllegalStateException("Column not found");
+         return CompletableFutures.completedTrue();
+      });
+      when(engineMock.getName()).thenReturn("engine-name");
+
+      skipping.handleBatch(List.of(changeEvent(poisonKey), changeEvent()), committer);
+      assertTrue(skipping.commit(TIMEOUT, TimeUnit.MILLISECONDS));
+
+      verify(committer, times(2)).markProcessed(any());
+      verify(committer, times(1)).markBatchFinished();
+      verify(engineMock, never()).notifyError(any());
+      verify(metricsMock).recordDeadLetter("engine-name");
+
+      var letters = deadLetters.list();
+      assertEquals(1, letters.size());
+      assertEquals("engine-name", letters.get(0).engine());
+      assertEquals(poisonKey, letters.get(0).key());
+      assertTrue(letters.get(0).error().contains("Column not found"));
+   }
+
+   @Test
+   public void testTransactionAppliedAfterEnd() throws Exception {
+      var committer = Mockito.mock(DebeziumEngine.RecordCommitter.class);
+      var transactional = new BatchConsumer(engineMock, chainMock, new EventProjection(ruleMock),
+            new RecordFilter(ruleMock), Executors.newSingleThreadExecutor(), 4, 1,
+            new InFlightWrites(0, metricsMock), true, null, 0);
+
+      var begin = transactionEvent("BEGIN", "tx-1");
+      var first = changeEvent(transactional(createEvent(), "tx-1"));
+      var second = changeEvent(transactional(createEvent(), "tx-1"));
+      var end = transactionEvent("END", "tx-1");
+      var outside = changeEvent();
+
+      // The transaction spans batches, the engine is not blocked waiting for it to end.
+      transactional.handleBatch(List.of(begin, first), committer);
+      verify(chainMock, never()).process(any(), any());
+      verify(committer, never()).markProcessed(first);
+      verify(committer, never()).markBatchFinished();
+
+      transactional.handleBatch(List.of(second, end, outside), committer);
+
+      var contexts = ArgumentCaptor.forClass(EventContext.class);
+      verify(chainMock, timeout(TIMEOUT).times(3)).process(any(), contexts.capture());
+      assertSame(contexts.getAllValues().get(0), contexts.getAllValues().get(1));
+
+      assertTrue(transactional.commit(TIMEOUT, TimeUnit.MILLISECONDS));
+      var inOrder = inOrder(committer);
+      inOrder.verify(committer).markProcessed(begin);
+      inOrder.verify(committer).markProcessed(first);
+      inOrder.verify(committer).markBatchFinished();
+      inOrder.verify(committer).markProcessed(second);
+      inOrder.verify(committer).markProcessed(end);
+      inOrder.verify(committer).markProcessed(outside);
+      inOrder.verify(committer).markBatchFinished();
+      verifyNoInteractions(engineMock);
+   }
+
+   private ChangeEvent<SourceRecord, SourceRecord> transactionEvent(String status, String id) {
+      return changeEvent(new SourceRecord(null, null, "engine.transaction", null, Json.object("id", id), null,
+            Json.object("status", status, "id", id)));
+   }
+
+   private static SourceRecord transactional(SourceRecord record, String id) {
+      ((Json) record.value()).set("transaction", Json.object("id", id, "total_order", 1));
+      return record;
+   }
+
+   @Test
+   public void testWriteBehindAppliesPerRule() throws Exception {
+      var processing = mock(Processing.class);
+      when(processing.lanes()).thenReturn(4);
+      when(processing.pipelineDepth()).thenReturn(2);
+      when(processing.laneCapacity()).thenReturn(16);
+      when(processing.waitStrategy()).thenReturn(WaitStrategy.SLEEP);
+      var delayed = mock(EventProcessingChain.class);
+      when(delayed.process(any(), any())).thenReturn(CompletableFutures.completedTrue());
+      var routes = new Routes(List.of(
+            new Routes.Route("delayed", record -> "engine.inventory.delayed".equals(record.topic()),
+                  new EventProjection(ruleMock), delayed, TimeUnit.MINUTES.toMillis(1)),
+            new Routes.Route("immediate", record -> "engine.inventory.immediate".equals(record.topic()),
+                  new EventProjection(ruleMock), chainMock, 0)));
+      var multiplexed = new BatchConsumer(engineMock, routes, Executors.newSingleThreadExecutor(), processing,
+            new InFlightWrites(2, new InFlightWrites(0, metricsMock), metricsMock), null);
+      var committer = Mockito.mock(DebeziumEngine.RecordCommitter.class);
+
+      multiplexed.handleBatch(List.of(
+            changeEvent(new SourceRecord(null, null, "engine.inventory.delayed", null, Json.object("id", 1), null,
+                  Json.object("op", "c"))),
+            changeEvent(new SourceRecord(null, null, "engine.inventory.immediate", null, Json.object("id", 2), null,
+                  Json.object("op", "c")))), committer);
+
+      // The rule without a window does not wait for the window of the other rule.
+      verify(chainMock, timeout(TIMEOUT).times(1)).process(any(), any());
+      verify(delayed, never()).process(any(), any());
+   }
+
    private ChangeEvent<SourceRecord, SourceRecord> changeEvent() {
       return changeEvent(createEvent());
    }
@@ -171,6 +463,6 @@ public class BatchConsumerTest {
             .set("after", Json.object("key", "key", "value", "value"))
             .set("op", "c");
 
-      return new SourceRecord(null, null, "topic", null, key, null, value);
+      return new SourceRecord(null, null, "engine.inventory.some_table", null, key, null, value);
    }
 }
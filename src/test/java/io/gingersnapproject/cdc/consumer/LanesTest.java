@@ -0,0 +1,183 @@
+package io.gingersnapproject.cdc.consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import io.gingersnapproject.cdc.configuration.WaitStrategy;
+import io.gingersnapproject.cdc.util.CompletionStages;
+
+import io.debezium.engine.ChangeEvent;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.junit.jupiter.api.Test;
+
+public class LanesTest {
+
+   private final List<Object> processed = new CopyOnWriteArrayList<>();
+   private final Map<Object, CompletableFuture<Void>> answers = new ConcurrentHashMap<>();
+
+   @Test
+   public void testSameKeyWaitsPreviousWrite() throws Exception {
+      Lanes lanes = new Lanes(2, Runnable::run, (ev, ctx) -> process(ev));
+
+      var first = event("k1", "v1");
+      var second = event("k1", "v2");
+      var blocked = new CompletableFuture<Void>();
+      answers.put("v1", blocked);
+
+      CompletionStage<Void> firstStage = lanes.submit(first);
+      CompletionStage<Void> secondStage = lanes.submit(second);
+
+      // The second change for the key is only processed after the first is written.
+      assertEquals(List.of("v1"), processed);
+      assertFalse(firstStage.toCompletableFuture().isDone());
+      assertFalse(secondStage.toCompletableFuture().isDone());
+
+      blocked.complete(null);
+      CompletionStages.join(firstStage);
+      CompletionStages.join(secondStage);
+      assertEquals(List.of("v1", "v2"), processed);
+   }
+
+   @Test
+   public void testSlowLaneDoesNotBlockOthers() throws Exception {
+      Lanes lanes = new Lanes(2, Runnable::run, (ev, ctx) -> process(ev));
+
+      var slow = event("k1", "slow");
+      var blocked = new CompletableFuture<Void>();
+      answers.put("slow", blocked);
+      CompletionStage<Void> slowStage = lanes.submit(slow);
+
+      // Find a key owned by the other lane.
+      String other = null;
+      for (int i = 0; other == null; i++) {
+         String candidate = "k" + i;
+         if (lanes.index(Json.object("id", candidate)) != lanes.index(Json.object("id", "k1"))) other = candidate;
+      }
+
+      CompletionStages.join(lanes.submit(event(other, "fast")));
+      assertTrue(processed.contains("fast"));
+      assertFalse(slowStage.toCompletableFuture().isDone());
+
+      blocked.complete(null);
+      CompletionStages.join(slowStage);
+   }
+
+   @Test
+   public void testProducerWaitsWhileLaneFull() throws Exception {
+      List<Object> written = new CopyOnWriteArrayList<>();
+      Lanes lanes = new Lanes(1, 2, WaitStrategy.SLEEP, 0, Executors.newSingleThreadExecutor(), (ev, ctx) -> process(ev),
+            (attachment, t) -> written.add(attachment));
+
+      var blocked = new CompletableFuture<Void>();
+      answers.put("v1", blocked);
+
+      // The lane holds two events, the third waits until the first drain is written.
+      var producer = Executors.newSingleThreadExecutor();
+      var submitted = producer.submit(() -> {
+         lanes.submit(event("k1", "v1"), "first");
+         lanes.submit(event("k2", "v2"), "second");
+         lanes.submit(event("k3", "v3"), "third");
+         return null;
+      });
+      assertThrows(TimeoutException.class, () -> submitted.get(100, TimeUnit.MILLISECONDS));
+      assertTrue(written.isEmpty());
+
+      blocked.complete(null);
+      submitted.get(5, TimeUnit.SECONDS);
+      for (int i = 0; i < 50 && written.size() < 3; i++) {
+         Thread.sleep(100);
+      }
+      assertEquals(Set.of("first", "second", "third"), Set.copyOf(written));
+      producer.shutdown();
+   }
+
+   @Test
+   public void testProducerInterruptedWhileLaneFull() throws Exception {
+      List<Object> written = new CopyOnWriteArrayList<>();
+      Lanes lanes = new Lanes(1, 1, WaitStrategy.SLEEP, 0, Executors.newSingleThreadExecutor(), (ev, ctx) -> process(ev),
+            (attachment, t) -> written.add(attachment));
+
+      var blocked = new CompletableFuture<Void>();
+      answers.put("v1", blocked);
+
+      var producer = Executors.newSingleThreadExecutor();
+      var submitted = producer.submit(() -> {
+         lanes.submit(event("k1", "v1"), "first");
+         lanes.submit(event("k2", "v2"), "second");
+         return null;
+      });
+      assertThrows(TimeoutException.class, () -> submitted.get(100, TimeUnit.MILLISECONDS));
+
+      // The producer blocked on the full lane gives up once interrupted.
+      producer.shutdownNow();
+      var failure = assertThrows(ExecutionException.class, () -> submitted.get(5, TimeUnit.SECONDS));
+      assertTrue(failure.getCause() instanceof InterruptedException);
+
+      blocked.complete(null);
+      for (int i = 0; i < 50 && written.isEmpty(); i++) {
+         Thread.sleep(100);
+      }
+      assertEquals(List.of("first"), written);
+      assertFalse(processed.contains("v2"));
+   }
+
+   @Test
+   public void testWriteBehindCoalescesKeyWithinWindow() throws Exception {
+      List<Object> written = new CopyOnWriteArrayList<>();
+      Lanes lanes = new Lanes(1, 16, WaitStrategy.SLEEP, 200, Runnable::run, (ev, ctx) -> process(ev),
+            (attachment, t) -> written.add(attachment));
+
+      for (int i = 0; i < 5; i++) {
+         lanes.submit(event("k1", "v" + i), i);
+      }
+      // Nothing is written before the window ends.
+      assertTrue(processed.isEmpty());
+
+      for (int i = 0; i < 50 && written.size() < 5; i++) {
+         Thread.sleep(100);
+      }
+      assertEquals(List.of("v4"), processed);
+      assertEquals(List.of(0, 1, 2, 3, 4), written);
+   }
+
+   private CompletionStage<?> process(ChangeEvent<SourceRecord, SourceRecord> ev) {
+      Object value = ((Json) ev.value().value()).at("value").asString();
+      processed.add(value);
+      return answers.getOrDefault(value, CompletableFuture.completedFuture(null));
+   }
+
+   private static ChangeEvent<SourceRecord, SourceRecord> event(String key, String value) {
+      var record = new SourceRecord(null, null, "topic", null, Json.object("id", key), null, Json.object("value", value));
+      return new ChangeEvent<>() {
+         @Override
+         public SourceRecord key() {
+            return null;
+         }
+
+         @Override
+         public SourceRecord value() {
+            return record;
+         }
+
+         @Override
+         public String destination() {
+            return null;
+         }
+      };
+   }
+}
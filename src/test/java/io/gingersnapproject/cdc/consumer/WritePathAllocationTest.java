@@ -0,0 +1,190 @@
+package io.gingersnapproject.cdc.consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+
+import io.gingersnapproject.cdc.CacheBackend;
+import io.gingersnapproject.cdc.EngineWrapper;
+import io.gingersnapproject.cdc.chain.EventProcessingChainFactory;
+import io.gingersnapproject.cdc.chain.EventProjection;
+import io.gingersnapproject.cdc.configuration.Connector;
+import io.gingersnapproject.cdc.configuration.Rule;
+import io.gingersnapproject.metrics.DBSyncerMetrics;
+
+import io.debezium.engine.ChangeEvent;
+import io.debezium.engine.DebeziumEngine;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.infinispan.commons.util.concurrent.CompletableFutures;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the bytes allocated for each event from the engine batch to the cache backend.
+ * <p>Everything runs in the test thread, so the allocations of the thread are all the allocations of the write path.
+ * The backend does not encode nor send anything, and the records are created before measuring.</p>
+ */
+public class WritePathAllocationTest {
+   private static final Logger log = LoggerFactory.getLogger(WritePathAllocationTest.class);
+   private static final int BATCH_SIZE = 512;
+   private static final int BATCHES = 200;
+   // About 1.5 KB measured, the margin only covers the variance between runs.
+   private static final long MAX_BYTES_PER_EVENT = 1700;
+
+   private static final Schema KEY_SCHEMA = SchemaBuilder.struct()
+         .field("id", Schema.INT32_SCHEMA)
+         .build();
+   private static final Schema ROW_SCHEMA = SchemaBuilder.struct().optional()
+         .field("id", Schema.INT32_SCHEMA)
+         .field("name", Schema.OPTIONAL_STRING_SCHEMA)
+         .field("age", Schema.OPTIONAL_INT32_SCHEMA)
+         .build();
+   private static final Schema SOURCE_SCHEMA = SchemaBuilder.struct()
+         .field("db", Schema.STRING_SCHEMA)
+         .field("table", Schema.STRING_SCHEMA)
+         .build();
+   private static final Schema VALUE_SCHEMA = SchemaBuilder.struct()
+         .name("engine.inventory.users.Envelope")
+         .field("before", ROW_SCHEMA)
+         .field("after", ROW_SCHEMA)
+         .field("source", SOURCE_SCHEMA)
+         .field("op", Schema.STRING_SCHEMA)
+         .build();
+
+   @Test
+   public void testBytesAllocatedPerEvent() throws Exception {
+      var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      assertTrue(threads.isThreadAllocatedMemorySupported());
+
+      Rule rule = mock(Rule.class);
+      Connector connector = mock(Connector.class);
+      when(rule.connector()).thenReturn(connector);
+      when(connector.table()).thenReturn("users");
+      when(rule.keyColumns()).thenReturn(List.of("id"));
+      when(rule.valueColumns()).thenReturn(Optional.empty());
+
+      var backend = new CountingBackend();
+      var metrics = mock(DBSyncerMetrics.class);
+      var consumer = new BatchConsumer(mock(EngineWrapper.class), EventProcessingChainFactory.create(rule, backend),
+            new EventProjection(rule), new RecordFilter(rule), Runnable::run, 4, 2,
+            new InFlightWrites(BATCH_SIZE, new InFlightWrites(0, metrics), metrics));
+      var committer = new NoopCommitter();
+      List<ChangeEvent<SourceRecord, SourceRecord>> batch = batch();
+
+      // Warms up the code paths, so the measure does not include the class loading nor the interpreter.
+      for (int i = 0; i < BATCHES; i++) {
+         consumer.handleBatch(batch, committer);
+      }
+
+      long thread = Thread.currentThread().getId();
+      int written = backend.writes;
+      long before = threads.getThreadAllocatedBytes(thread);
+      for (int i = 0; i < BATCHES; i++) {
+         consumer.handleBatch(batch, committer);
+      }
+      long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+      long events = (long) BATCHES * BATCH_SIZE;
+      assertEquals(events, backend.writes - written);
+      long perEvent = allocated / events;
+      log.info("Write path allocated {} bytes per event", perEvent);
+      assertTrue(perEvent < MAX_BYTES_PER_EVENT, "Allocated " + perEvent + " bytes per event");
+   }
+
+   private static List<ChangeEvent<SourceRecord, SourceRecord>> batch() {
+      List<ChangeEvent<SourceRecord, SourceRecord>> batch = new ArrayList<>(BATCH_SIZE);
+      for (int i = 0; i < BATCH_SIZE; i++) {
+         Struct after = new Struct(ROW_SCHEMA).put("id", i).put("name", "user" + i).put("age", i % 90);
+         Struct value = new Struct(VALUE_SCHEMA)
+               .put("after", after)
+               .put("source", new Struct(SOURCE_SCHEMA).put("db", "inventory").put("table", "users"))
+               .put("op", "c");
+         var record = new SourceRecord(null, null, "engine.inventory.users", null, KEY_SCHEMA,
+               new Struct(KEY_SCHEMA).put("id", i), VALUE_SCHEMA, value);
+         batch.add(new ChangeEvent<>() {
+            @Override
+            public SourceRecord key() {
+               return null;
+            }
+
+            @Override
+            public SourceRecord value() {
+               return record;
+            }
+
+            @Override
+            public String destination() {
+               return record.topic();
+            }
+         });
+      }
+      return batch;
+   }
+
+   private static final class CountingBackend implements CacheBackend {
+      private int writes;
+
+      @Override
+      public CompletionStage<Void> remove(Json json) {
+         writes++;
+         return CompletableFutures.completedNull();
+      }
+
+      @Override
+      public CompletionStage<Void> put(Json json) {
+         writes++;
+         return CompletableFutures.completedNull();
+      }
+
+      @Override
+      public CompletionStage<Void> bulk(List<Json> changes, BitSet removes) {
+         writes += changes.size();
+         return CompletableFutures.completedNull();
+      }
+
+      @Override
+      public void stop() { }
+
+      @Override
+      public void start() { }
+
+      @Override
+      public boolean reconnect() {
+         return true;
+      }
+
+      @Override
+      public boolean isRunning() {
+         return true;
+      }
+   }
+
+   private static final class NoopCommitter implements DebeziumEngine.RecordCommitter<ChangeEvent<SourceRecord, SourceRecord>> {
+      @Override
+      public void markProcessed(ChangeEvent<SourceRecord, SourceRecord> record) { }
+
+      @Override
+      public void markBatchFinished() { }
+
+      @Override
+      public void markProcessed(ChangeEvent<SourceRecord, SourceRecord> record, DebeziumEngine.Offsets sourceOffsets) { }
+
+      @Override
+      public DebeziumEngine.Offsets buildOffsets() {
+         return null;
+      }
+   }
+}
@@ -0,0 +1,198 @@
+package io.gingersnapproject.cdc.translation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiFunction;
+
+import org.apache.kafka.connect.data.Decimal;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.infinispan.protostream.FileDescriptorSource;
+import org.infinispan.protostream.ProtobufUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class ProtostreamTranslatorTest {
+
+   private static final Schema ROW_SCHEMA = SchemaBuilder.struct().optional()
+         .field("id", Schema.INT64_SCHEMA)
+         .field("full name", Schema.OPTIONAL_STRING_SCHEMA)
+         .field("age", Schema.OPTIONAL_INT32_SCHEMA)
+         .field("score", Schema.OPTIONAL_FLOAT64_SCHEMA)
+         .field("enabled", Schema.OPTIONAL_BOOLEAN_SCHEMA)
+         .field("balance", Decimal.builder(2).optional().build())
+         .build();
+
+   @Test
+   public void testValuesReadableWithGeneratedSchema() throws Exception {
+      Map<String, String> registered = new HashMap<>();
+      var translator = new ProtostreamTranslator("my-rule", "users", null, register(registered));
+      translator.schemaChanged(ROW_SCHEMA);
+
+      String file = registered.get(translator.fileName());
+      assertNotNull(file);
+
+      var row = Json.object()
+            .set("id", 1L)
+            .set("full name", "José")
+            .set("age", -7)
+            .set("score", 2.5)
+            .set("enabled", true)
+            .set("balance", new BigDecimal("10.50"));
+
+      var ctx = ProtobufUtil.newSerializationContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString(translator.fileName(), file));
+      Json actual = Json.read(ProtobufUtil.toCanonicalJSON(ctx, translator.apply(row)));
+
+      var expected = Json.object()
+            .set("_type", "gingersnap.my_rule.users")
+            .set("id", 1)
+            .set("full_name", "José")
+            .set("age", -7)
+            .set("score", 2.5)
+            .set("enabled", true)
+            .set("balance", "10.50");
+      assertEquals(expected, actual);
+   }
+
+   @Test
+   public void testRegistersOnlyWhenSchemaChanges() {
+      Map<String, String> registered = new HashMap<>();
+      var translator = new ProtostreamTranslator("rule", "users", List.of("id", "age"), register(registered));
+
+      translator.schemaChanged(ROW_SCHEMA);
+      assertEquals(1, registered.size());
+
+      // An equivalent schema instance does not register again.
+      registered.clear();
+      translator.schemaChanged(SchemaBuilder.struct().optional()
+            .field("id", Schema.INT64_SCHEMA)
+            .field("full name", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("age", Schema.OPTIONAL_INT32_SCHEMA)
+            .build());
+      assertNull(registered.get(translator.fileName()));
+   }
+
+   @Test
+   public void testFieldNumbersStableAcrossChanges() throws Exception {
+      Map<String, String> registered = new HashMap<>();
+      var translator = new ProtostreamTranslator("rule", "users", null, register(registered));
+      translator.schemaChanged(SchemaBuilder.struct().optional()
+            .field("id", Schema.INT64_SCHEMA)
+            .field("name", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("age", Schema.OPTIONAL_INT32_SCHEMA)
+            .build());
+
+      // The removed column and the previous type of the changed column reserve their numbers.
+      translator.schemaChanged(SchemaBuilder.struct().optional()
+            .field("email", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("id", Schema.INT64_SCHEMA)
+            .field("name", Schema.OPTIONAL_INT32_SCHEMA)
+            .build());
+      String file = registered.get(translator.fileName());
+      assertTrue(file.contains("optional int64 id = 1;"), file);
+      assertTrue(file.contains("optional int32 name = 5;"), file);
+      assertTrue(file.contains("optional string email = 4;"), file);
+      assertTrue(file.contains("optional string _reserved_2 = 2;"), file);
+      assertTrue(file.contains("optional int32 _reserved_3 = 3;"), file);
+
+      // A translator created later keeps the numbers registered.
+      registered.clear();
+      var restarted = new ProtostreamTranslator("rule", "users", null, file, register(registered));
+      restarted.schemaChanged(SchemaBuilder.struct().optional()
+            .field("id", Schema.INT64_SCHEMA)
+            .field("email", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("age", Schema.OPTIONAL_INT32_SCHEMA)
+            .build());
+      file = registered.get(restarted.fileName());
+      assertTrue(file.contains("optional int64 id = 1;"), file);
+      assertTrue(file.contains("optional string email = 4;"), file);
+      assertTrue(file.contains("optional int32 age = 6;"), file);
+      assertTrue(file.contains("optional int32 _reserved_5 = 5;"), file);
+
+      var ctx = ProtobufUtil.newSerializationContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString(restarted.fileName(), file));
+      Json actual = Json.read(ProtobufUtil.toCanonicalJSON(ctx,
+            restarted.apply(Json.object("id", 1L, "email", "a@b.c", "age", 3))));
+      assertEquals(Json.object("_type", "gingersnap.rule.users", "id", 1, "email", "a@b.c", "age", 3), actual);
+   }
+
+   @Test
+   public void testSameSchemaNotRegisteredAgain() {
+      Map<String, String> registered = new HashMap<>();
+      var translator = new ProtostreamTranslator("rule", "users", null, register(registered));
+      translator.schemaChanged(ROW_SCHEMA);
+      String file = registered.remove(translator.fileName());
+
+      // Restarted with the same table schema, the file is the one registered.
+      var restarted = new ProtostreamTranslator("rule", "users", null, file, register(registered));
+      restarted.schemaChanged(ROW_SCHEMA);
+      assertTrue(registered.isEmpty());
+
+      assertThrows(IllegalStateException.class,
+            () -> new ProtostreamTranslator("rule", "users", null, "message {", register(registered)));
+   }
+
+   @Test
+   public void testCollidingColumnsRejected() {
+      Map<String, String> registered = new HashMap<>();
+      var translator = new ProtostreamTranslator("rule", "users", null, register(registered));
+
+      assertThrows(IllegalStateException.class, () -> translator.schemaChanged(SchemaBuilder.struct().optional()
+            .field("full name", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("full_name", Schema.OPTIONAL_STRING_SCHEMA)
+            .build()));
+      assertTrue(registered.isEmpty());
+   }
+
+   @Test
+   public void testRowEncodedWithItsOwnSchema() throws Exception {
+      Map<String, String> registered = new HashMap<>();
+      var translator = new ProtostreamTranslator("rule", "users", null, register(registered));
+      translator.schemaChanged(SchemaBuilder.struct().optional()
+            .field("id", Schema.INT64_SCHEMA)
+            .field("age", Schema.OPTIONAL_INT32_SCHEMA)
+            .build());
+      String first = registered.get(translator.fileName());
+
+      // A row captured before the column was removed is still in-flight.
+      translator.schemaChanged(SchemaBuilder.struct().optional()
+            .field("id", Schema.INT64_SCHEMA)
+            .field("nick", Schema.OPTIONAL_STRING_SCHEMA)
+            .build());
+
+      var ctx = ProtobufUtil.newSerializationContext();
+      ctx.registerProtoFiles(FileDescriptorSource.fromString(translator.fileName(), first));
+      Json actual = Json.read(ProtobufUtil.toCanonicalJSON(ctx, translator.apply(Json.object("id", 1L, "age", 7))));
+      assertEquals(Json.object("_type", "gingersnap.rule.users", "id", 1, "age", 7), actual);
+   }
+
+   @Test
+   public void testRejectedSchemaFailsValues() {
+      var translator = new ProtostreamTranslator("rule", "users", null,
+            (file, contents) -> CompletableFuture.failedFuture(new IllegalStateException("Invalid schema")));
+
+      var registration = translator.schemaChanged(ROW_SCHEMA).toCompletableFuture();
+      assertTrue(registration.isCompletedExceptionally());
+      assertThrows(IllegalStateException.class, () -> translator.apply(Json.object("id", 1L)));
+   }
+
+   private static BiFunction<String, String, CompletionStage<Void>> register(Map<String, String> registered) {
+      return (file, contents) -> {
+         registered.put(file, contents);
+         return CompletableFuture.completedFuture(null);
+      };
+   }
+}
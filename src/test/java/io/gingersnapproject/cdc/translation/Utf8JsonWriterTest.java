@@ -0,0 +1,55 @@
+package io.gingersnapproject.cdc.translation;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.infinispan.commons.dataconversion.internal.Json;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+public class Utf8JsonWriterTest {
+
+   private static final Json ROW = Json.object()
+         .set("id", 42)
+         .set("code", "A-1")
+         .set("name", "josé \"the\" \\ \n\t\u0001\u007f  😀 a/b")
+         .set("score", 1.5)
+         .set("enabled", true)
+         .set("nothing", Json.nil())
+         .set("tags", Json.array("a", 2, Json.object("nested", "ç")));
+
+   @Test
+   public void testIdentityWritesSameAsString() {
+      assertSameBytes(IdentityTranslator.getInstance(), ROW);
+   }
+
+   @Test
+   public void testColumnTranslatorsWriteSameAsString() {
+      var columns = List.of("id", "name", "missing", "tags");
+      assertSameBytes(new ColumnJsonTranslator(columns), ROW);
+      assertSameBytes(new PrependJsonTranslator(new ColumnJsonTranslator(columns), "__type", "users"), ROW);
+
+      var text = new ColumnStringTranslator(List.of("code", "name"), "|");
+      assertSameBytes(text, ROW);
+      assertSameBytes(new PrependStringTranslator(text, "users"), ROW);
+   }
+
+   @Test
+   public void testWriterIsReusable() {
+      var writer = new Utf8JsonWriter();
+      IdentityTranslator.getInstance().write(ROW, writer);
+      writer.reset();
+      IdentityTranslator.getInstance().write(Json.object("k", "v"), writer);
+
+      assertArrayEquals("{\"k\":\"v\"}".getBytes(StandardCharsets.UTF_8), writer.toByteArray());
+   }
+
+   private static void assertSameBytes(JsonTranslator<?> translator, Json json) {
+      var writer = new Utf8JsonWriter();
+      translator.write(json, writer);
+      assertArrayEquals(translator.apply(json).toString().getBytes(StandardCharsets.UTF_8), writer.toByteArray());
+   }
+}
@@ -1,7 +1,9 @@
 package io.gingersnapproject.fwk;
 
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletionStage;
@@ -35,6 +37,15 @@ public class ControlledCacheBackend implements CacheBackend {
       return nextAnswer;
    }
 
+   @Override
+   public CompletionStage<Void> bulk(List<Json> changes, BitSet removes) {
+      for (int i = 0; i < changes.size(); i++) {
+         if (removes.get(i)) remove(changes.get(i));
+         else put(changes.get(i));
+      }
+      return nextAnswer;
+   }
+
    @Override
    public void stop() { }
 
@@ -0,0 +1,64 @@
+package io.gingersnapproject.metrics.micrometer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.net.URI;
+
+import io.gingersnapproject.cdc.cache.CacheIdentifier;
+import io.gingersnapproject.cdc.event.Events;
+import io.gingersnapproject.metrics.CacheServiceOperation;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+public class MicrometerMetricsTest {
+
+   @Test
+   public void testAccessRecordedByOutcome() {
+      var registry = new SimpleMeterRegistry();
+      var metrics = new MicrometerMetrics(registry);
+      var failure = new RuntimeException("Failed write");
+
+      metrics.recordCacheServiceAccess(CacheServiceOperation.PUT, System.nanoTime(), null);
+      metrics.recordCacheServiceAccess(CacheServiceOperation.PUT, System.nanoTime(), failure);
+      metrics.recordCacheServiceAccess(CacheServiceOperation.REMOVE, System.nanoTime(), failure);
+      metrics.recordCacheServiceAccess(CacheServiceOperation.PUT_ALL, System.nanoTime(), null);
+
+      assertEquals(1, count(registry, TimerMetrics.CACHE_PUT_OK));
+      assertEquals(1, count(registry, TimerMetrics.CACHE_PUT_FAILED));
+      assertEquals(0, count(registry, TimerMetrics.CACHE_REMOVE_OK));
+      assertEquals(1, count(registry, TimerMetrics.CACHE_REMOVE_FAILED));
+      assertEquals(1, count(registry, TimerMetrics.CACHE_PUT_ALL_OK));
+   }
+
+   @Test
+   public void testCountersRemovedWithTheirCaches() {
+      var registry = new SimpleMeterRegistry();
+      var metrics = new MicrometerMetrics(registry);
+      var engine = CacheIdentifier.of("engine", URI.create("hotrod://10.0.0.1:11222"));
+      var first = CacheIdentifier.of("first", URI.create("hotrod://10.0.0.1:11222"));
+      var second = CacheIdentifier.of("second", URI.create("hotrod://10.0.0.2:11222"));
+
+      // An engine with many rules records the writes of each cache.
+      metrics.recordSkippedWrite(first.toString());
+      metrics.recordWriteRetry(first.toString());
+      metrics.recordSkippedWrite(second.toString());
+      metrics.recordDeadLetter(engine.rule());
+
+      metrics.unregisterMetrics(new Events.BackendStoppedEvent(first));
+      assertNull(registry.find(MicrometerMetrics.SKIPPED_WRITES_METRIC_NAME).tag(TagUtil.RULE_KEY, first.toString()).counter());
+      assertNull(registry.find(MicrometerMetrics.WRITE_RETRIES_METRIC_NAME).counter());
+      assertNotNull(registry.find(MicrometerMetrics.SKIPPED_WRITES_METRIC_NAME).tag(TagUtil.RULE_KEY, second.toString()).counter());
+
+      metrics.unregisterMetrics(new Events.BackendStoppedEvent(second));
+      metrics.unregisterMetrics(new Events.ConnectorStoppedEvent(engine));
+      assertNull(registry.find(MicrometerMetrics.SKIPPED_WRITES_METRIC_NAME).counter());
+      assertNull(registry.find(MicrometerMetrics.DEAD_LETTERS_METRIC_NAME).counter());
+   }
+
+   private static long count(SimpleMeterRegistry registry, TimerMetrics metric) {
+      return registry.get(metric.metricName()).timer().count();
+   }
+}
@@ -0,0 +1,41 @@
+package io.gingersnapproject.util;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.gingersnapproject.cdc.OffsetBackend;
+
+import org.apache.kafka.connect.util.Callback;
+
+/**
+ * Keeps the offsets in memory, instead of the offsets cache of a member.
+ */
+public class MemoryOffsetBackend implements OffsetBackend {
+   private final Map<ByteBuffer, ByteBuffer> values = new ConcurrentHashMap<>();
+
+   @Override
+   public CompletionStage<Map<ByteBuffer, ByteBuffer>> get(Collection<ByteBuffer> collection) {
+      Map<ByteBuffer, ByteBuffer> found = new HashMap<>();
+      for (ByteBuffer key : collection) {
+         ByteBuffer value = values.get(key);
+         if (value != null) found.put(key, value);
+      }
+      return CompletableFuture.completedFuture(found);
+   }
+
+   @Override
+   public CompletionStage<Void> set(Map<ByteBuffer, ByteBuffer> map, Callback<Void> callback) {
+      values.putAll(map);
+      callback.onCompletion(null, null);
+      return CompletableFuture.completedFuture(null);
+   }
+
+   public Map<ByteBuffer, ByteBuffer> values() {
+      return values;
+   }
+}